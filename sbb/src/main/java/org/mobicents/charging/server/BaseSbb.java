@@ -22,11 +22,13 @@
 
 package org.mobicents.charging.server;
 
+import javax.naming.Context;
 import javax.slee.ActivityContextInterface;
 import javax.slee.CreateException;
 import javax.slee.RolledBackContext;
 import javax.slee.Sbb;
 import javax.slee.SbbContext;
+import javax.slee.facilities.Tracer;
 
 /**
  * Base SBB Class for Charging Server SBBs.
@@ -80,4 +82,23 @@ public abstract class BaseSbb implements Sbb/*Ext*/ {
 	public void unsetSbbContext() {
 	}
 
+	/**
+	 * Reads an env entry, falling back to a default if it is not set or cannot be read.
+	 *
+	 * @param ctx the SBB environment naming context, may be null if it could not be looked up
+	 * @param name the env entry name
+	 * @param deFault the value to use if the env entry cannot be read
+	 * @param tracer the tracer to warn about the default being used
+	 * @return the env entry value, or the default
+	 */
+	protected static Object loadEnvEntry(Context ctx, String name, Object deFault, Tracer tracer) {
+		try {
+			return ctx.lookup(name);
+		}
+		catch (Exception e) {
+			tracer.warning("[!!] Unable to read '" + name + "' env entry. Defaulting to " + deFault + ".");
+			return deFault;
+		}
+	}
+
 }
@@ -0,0 +1,183 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2013, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.slee.facilities.Tracer;
+
+/**
+ * Watches configuration files (tariffs, unit determination, AVP mappings) and reloads them when they change, without
+ * a restart. Files are checked and loaded by a single background thread, so the new tables are built away from the
+ * traffic. The {@link Reloadable} builds an immutable table from the file and publishes it with a single write to a
+ * volatile field, so readers see either the old or the new table, never a mix.
+ *
+ * A file that fails to load is logged and the current table is kept. A reload can also be requested at any time with
+ * {@link #reload(String)}.
+ *
+ * @author ammendonca
+ */
+public class ConfigReloader {
+
+	/**
+	 * Builds and publishes a new table from the contents of a watched file.
+	 */
+	public interface Reloadable {
+
+		void reload(Properties props) throws Exception;
+
+	}
+
+	private static final Map<String, Watch> watches = new HashMap<String, Watch>();
+
+	private static Timer timer;
+
+	private ConfigReloader() {
+	}
+
+	/**
+	 * Loads a properties file.
+	 */
+	public static Properties load(File file) throws IOException {
+		Properties props = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			props.load(in);
+		}
+		finally {
+			in.close();
+		}
+		return props;
+	}
+
+	/**
+	 * Starts watching a file, replacing any previous watch with the same name. The file is expected to be loaded
+	 * already; it is only reloaded once it changes.
+	 *
+	 * @param name the name of the watch, eg, "tariffs"
+	 * @param file the file to watch
+	 * @param interval time (in ms) between checks for changes
+	 * @param reloadable called with the file contents when it changes
+	 * @param tracer where to log reloads and failures
+	 */
+	public static synchronized void watch(String name, File file, long interval, Reloadable reloadable, Tracer tracer) {
+		Watch watch = watches.remove(name);
+		if (watch != null) {
+			watch.cancel();
+		}
+		watch = new Watch(name, file, reloadable, tracer);
+		watches.put(name, watch);
+		getTimer().schedule(watch, interval, interval);
+	}
+
+	/**
+	 * Reloads a watched file in the background, even if unchanged.
+	 *
+	 * @return false if there is no watch with the given name
+	 */
+	public static synchronized boolean reload(String name) {
+		final Watch watch = watches.get(name);
+		if (watch == null) {
+			return false;
+		}
+		getTimer().schedule(new TimerTask() {
+			public void run() {
+				watch.reload();
+			}
+		}, 0);
+		return true;
+	}
+
+	/**
+	 * Stops all the watches and the background thread, which would otherwise keep the watchers (and their classes)
+	 * alive after the service is stopped. Watches can be started again afterwards.
+	 */
+	public static synchronized void stopAll() {
+		for (Watch watch : watches.values()) {
+			watch.cancel();
+		}
+		watches.clear();
+		if (timer != null) {
+			timer.cancel();
+			timer = null;
+		}
+	}
+
+	private static Timer getTimer() {
+		if (timer == null) {
+			timer = new Timer("CS-ConfigReloader", true);
+		}
+		return timer;
+	}
+
+	private static class Watch extends TimerTask {
+
+		private final String name;
+		private final File file;
+		private final Reloadable reloadable;
+		private final Tracer tracer;
+
+		private long lastModified;
+
+		Watch(String name, File file, Reloadable reloadable, Tracer tracer) {
+			this.name = name;
+			this.file = file;
+			this.reloadable = reloadable;
+			this.tracer = tracer;
+			this.lastModified = file.lastModified();
+		}
+
+		@Override
+		public void run() {
+			if (file.lastModified() != lastModified) {
+				reload();
+			}
+		}
+
+		// always called from the timer thread
+		void reload() {
+			long modified = file.lastModified();
+			try {
+				long start = System.currentTimeMillis();
+				reloadable.reload(load(file));
+				if (tracer.isInfoEnabled()) {
+					tracer.info("[--] Reloaded " + name + " from " + file.getAbsolutePath() + " in " + (System.currentTimeMillis() - start) + "ms.");
+				}
+			}
+			catch (Exception e) {
+				tracer.warning("[!!] Unable to reload " + name + " from " + file.getAbsolutePath() + ". Keeping the current ones.", e);
+			}
+			// a failed file is not retried until it changes again
+			lastModified = modified;
+		}
+	}
+
+}
@@ -22,6 +22,8 @@
 
 package org.mobicents.charging.server;
 
+import java.util.ArrayList;
+
 import org.mobicents.charging.server.account.CreditControlInfo;
 import org.mobicents.charging.server.ratingengine.RatingInfo;
 
@@ -42,4 +44,6 @@ public interface DiameterChargingServer {
 
 	public void getRateForServiceResult(RatingInfo ratingInfo);
 
+	public void getRatesForServiceResult(ArrayList<RatingInfo> ratingInfos);
+
 }
\ No newline at end of file
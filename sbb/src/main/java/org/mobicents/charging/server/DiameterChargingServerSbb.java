@@ -22,17 +22,21 @@
 
 package org.mobicents.charging.server;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.slee.ActivityContextInterface;
+import javax.slee.ActivityEndEvent;
 import javax.slee.ChildRelation;
 import javax.slee.CreateException;
 import javax.slee.InitialEventSelector;
@@ -41,11 +45,11 @@ import javax.slee.Sbb;
 import javax.slee.SbbContext;
 import javax.slee.facilities.TimerEvent;
 import javax.slee.facilities.TimerFacility;
-import javax.slee.facilities.TimerID;
 import javax.slee.facilities.TimerOptions;
 import javax.slee.facilities.TimerPreserveMissed;
 import javax.slee.facilities.Tracer;
 import javax.slee.resource.ResourceAdaptorTypeID;
+import javax.slee.serviceactivity.ServiceActivity;
 import javax.slee.serviceactivity.ServiceStartedEvent;
 
 import net.java.slee.resource.diameter.base.events.avp.DiameterAvp;
@@ -75,10 +79,20 @@ import org.mobicents.charging.server.account.CreditControlInfo;
 import org.mobicents.charging.server.account.CreditControlInfo.ErrorCodeType;
 import org.mobicents.charging.server.account.CreditControlUnit;
 import org.mobicents.charging.server.cdr.CDRGenerator;
+import org.mobicents.charging.server.cdr.CDRGeneratorSbb;
+import org.mobicents.charging.server.ratingengine.CachingRatingEngineClient;
+import org.mobicents.charging.server.ratingengine.CircuitBreaker;
+import org.mobicents.charging.server.ratingengine.CircuitBreakerRatingEngineClient;
+import org.mobicents.charging.server.ratingengine.RateCache;
 import org.mobicents.charging.server.ratingengine.RatingEngineClient;
+import org.mobicents.charging.server.ratingengine.RatingEngineClientDecorator;
 import org.mobicents.charging.server.ratingengine.RatingInfo;
+import org.mobicents.charging.server.ratingengine.local.LocalRatingEngineSbb;
+import org.mobicents.charging.server.data.CreditControlRequestInfo;
 import org.mobicents.charging.server.data.DataSource;
+import org.mobicents.charging.server.data.SessionStore;
 import org.mobicents.charging.server.data.UserSessionInfo;
+import org.mobicents.charging.server.data.session.SessionExpiryManager;
 import org.mobicents.slee.ChildRelationExt;
 import org.mobicents.slee.SbbContextExt;
 import org.mobicents.slee.SbbLocalObjectExt;
@@ -93,10 +107,12 @@ import org.mobicents.slee.SbbLocalObjectExt;
 public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb, DiameterChargingServer {
 
 	private static final long DEFAULT_VALIDITY_TIME = 86400;
-	private static final TimerOptions DEFAULT_TIMER_OPTIONS = new TimerOptions(0, TimerPreserveMissed.ALL);
+	// the session expiry tick only needs to run once after being late
+	private static final TimerOptions EXPIRY_TIMER_OPTIONS = new TimerOptions(0, TimerPreserveMissed.LAST);
 
 	private boolean performRating = false; // true = centralized, false = decentralized (ie, has been done by CTF (eg SIP AS))
 	private boolean generateCDR = false;
+	private boolean generateInterimCDR = false;
 
 	private static TimerOptions createDefaultTimerOptions() {
 		TimerOptions timerOptions = new TimerOptions();
@@ -119,7 +135,32 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 
 	private String sidString = "SID<Unknown/?#?>";
 
-	private static HashMap<String, String> abmfAVPs = new HashMap<String, String>();
+	// the Ro activity of the Credit-Control-Request being handled, only valid in the transaction that delivered it
+	private ActivityContextInterface ccServerAci;
+
+	// the session decoded from CMP, only valid in the transaction that decoded it
+	private UserSessionInfo sessionInfo;
+
+	// immutable, replaced as a whole on reload
+	private static volatile Map<String, String> abmfAVPs = Collections.emptyMap();
+
+	// shared by all the SBB entities, null if disabled. Rates are cached per quarter hour of BeginTime, as time-of-day
+	// bands are whole hours in the tariff time zone, and all time zone offsets are whole quarter hours.
+	private static final long RATE_CACHE_TIME_SLOT = 15 * 60 * 1000L;
+	private static RateCache rateCache;
+	private static CircuitBreaker ratingCircuitBreaker;
+	private static RateCache lastKnownRates;
+
+	// sessions of all the SBB entities, by Session-Id, if configured. Null if each entity keeps its session in CMP.
+	private static final int DEFAULT_SESSION_STORE_SHARDS = 64;
+	private static volatile SessionStore sessionStore;
+
+	// expiry of the sessions of all the SBB entities, swept on a single periodic timer, see onTimerEvent
+	private static final long DEFAULT_SESSION_EXPIRY_TICK = 1000;
+	private static final int SESSION_EXPIRY_WHEEL_SIZE = 4096;
+	private static volatile SessionExpiryManager<RoServerSessionActivity> sessionExpiry = new SessionExpiryManager<RoServerSessionActivity>(DEFAULT_SESSION_EXPIRY_TICK, SESSION_EXPIRY_WHEEL_SIZE);
+	private static volatile int sessionExpiryBatch = 1000;
+	private static volatile long validityTime = DEFAULT_VALIDITY_TIME;
 
 	// ---------------------------- SLEE Callbacks ----------------------------
 
@@ -140,6 +181,26 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		this.tracer = null;
 	}
 
+	@Override
+	public void sbbLoad() {
+		// a new transaction, ACIs are not to be kept across transactions, nor the session decoded from CMP
+		this.ccServerAci = null;
+		this.sessionInfo = null;
+	}
+
+	@Override
+	public void sbbRemove() {
+		// the Diameter session is over
+		String sessionId = getSessionId();
+		if (sessionId != null) {
+			SessionStore store = sessionStore;
+			if (store != null) {
+				store.remove(sessionId);
+			}
+			sessionExpiry.cancel(sessionId);
+		}
+	}
+
 	/**
 	 * Convenience method to retrieve the SbbContext object stored in
 	 * setSbbContext.
@@ -210,6 +271,17 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		return (RatingEngineClient) sbbLocalObject;
 	}
 
+	/**
+	 * @return the Rating Engine Child SBB, behind the circuit breaker and the rate cache if they are enabled
+	 */
+	protected RatingEngineClient getRatingEngine() throws IllegalArgumentException, NullPointerException, SLEEException, CreateException {
+		RatingEngineClient ratingEngine = getRatingEngineManager();
+		if (ratingCircuitBreaker != null) {
+			ratingEngine = new CircuitBreakerRatingEngineClient(ratingEngine, ratingCircuitBreaker, lastKnownRates);
+		}
+		return rateCache != null ? new CachingRatingEngineClient(ratingEngine, rateCache) : ratingEngine;
+	}
+
 	private static final String CDRGEN_CHILD_NAME = "CDR_GENERATOR";
 	protected CDRGenerator getCDRGenerator() throws IllegalArgumentException, NullPointerException, SLEEException, CreateException {
 		ChildRelationExt cre = (ChildRelationExt) getCDRGeneratorChildRelation();
@@ -221,6 +293,18 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		return (CDRGenerator) sbbLocalObject;
 	}
 
+	/**
+	 * @param ccInfo
+	 * @return DIAMETER_SUCCESS if the Credit Control was successful, or the code for its error otherwise
+	 */
+	protected long getResultCode(CreditControlInfo ccInfo) {
+		if (ccInfo.isSuccessful()) {
+			return DiameterResultCode.DIAMETER_SUCCESS;
+		}
+		// If we can't determine error, say UNABLE_TO_COMPLY
+		return ccInfo.getErrorCodeType() != null ? getResultCode(ccInfo.getErrorCodeType()) : DiameterResultCode.DIAMETER_UNABLE_TO_COMPLY;
+	}
+
 	/**
 	 * @param errorCodeType
 	 * @return
@@ -285,20 +369,94 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 
 		try {
 			Context ctx = (Context) new InitialContext().lookup("java:comp/env");
-			boolean loadUsersFromCSV = (Boolean) loadEnvEntry(ctx, "loadUsersFromCSV", false);
-			performRating = (Boolean) loadEnvEntry(ctx, "performRating", false);
-			generateCDR = (Boolean) loadEnvEntry(ctx, "generateCDR", false);
-			String abmfAVPsProp = (String) loadEnvEntry(ctx, "ABMF_AVPs", "");
+			boolean loadUsersFromCSV = (Boolean) loadEnvEntry(ctx, "loadUsersFromCSV", false, tracer);
+			performRating = (Boolean) loadEnvEntry(ctx, "performRating", false, tracer);
+			generateCDR = (Boolean) loadEnvEntry(ctx, "generateCDR", false, tracer);
+			generateInterimCDR = (Boolean) loadEnvEntry(ctx, "generateInterimCDR", false, tracer);
+			String abmfAVPsProp = (String) loadEnvEntry(ctx, "ABMF_AVPs", "", tracer);
+
+			long rateCacheTTL = (Long) loadEnvEntry(ctx, "rateCacheTTL", 0L, tracer);
+			int rateCacheSize = (Integer) loadEnvEntry(ctx, "rateCacheSize", 10000, tracer);
+			String[] rateCacheKey = ((String) loadEnvEntry(ctx, "rateCacheKey", "ServiceId,UnitTypeId,SubscriptionIdType", tracer)).trim().split("\\s*,\\s*");
+			if (rateCacheTTL > 0) {
+				rateCache = new RateCache(rateCacheKey, rateCacheTTL, rateCacheSize, RATE_CACHE_TIME_SLOT);
+				if (tracer.isInfoEnabled()) {
+					tracer.info("[><] Rate cache enabled, with TTL = " + rateCacheTTL + "ms, size = " + rateCacheSize + " and key = " + Arrays.toString(rateCacheKey) + " plus the " + (RATE_CACHE_TIME_SLOT / 60000) + " minute slot of BeginTime.");
+				}
+			}
 
+			int ratingFailureThreshold = (Integer) loadEnvEntry(ctx, "ratingFailureThreshold", 0, tracer);
+			if (ratingFailureThreshold > 0) {
+				long ratingOpenTime = (Long) loadEnvEntry(ctx, "ratingOpenTime", 10000L, tracer);
+				ratingCircuitBreaker = new CircuitBreaker(ratingFailureThreshold, ratingOpenTime);
+				// last known rates never expire, they are only used while the Rating Engine is failing, but are still kept per
+				// time slot so a rate from another time-of-day band is not applied
+				lastKnownRates = new RateCache(rateCacheKey, 0, rateCacheSize, RATE_CACHE_TIME_SLOT);
+				if (tracer.isInfoEnabled()) {
+					tracer.info("[><] Rating circuit breaker enabled, opening for " + ratingOpenTime + "ms after " + ratingFailureThreshold + " consecutive failures.");
+				}
+			}
 
-			try {
-				String[] avps = abmfAVPsProp.trim().split(",");
-				for (String avp : avps) {
-					String[] codeName = avp.trim().split("=");
+
+			String sessionStoreClass = ((String) loadEnvEntry(ctx, "sessionStore", "", tracer)).trim();
+			int sessionStoreShards = (Integer) loadEnvEntry(ctx, "sessionStoreShards", DEFAULT_SESSION_STORE_SHARDS, tracer);
+			if (sessionStoreClass.length() == 0) {
+				sessionStore = null;
+				if (tracer.isInfoEnabled()) {
+					tracer.info("[><] Keeping sessions in CMP.");
+				}
+			}
+			else {
+				try {
+					sessionStore = (SessionStore) Class.forName(sessionStoreClass, true, this.getClass().getClassLoader()).getConstructor(int.class).newInstance(sessionStoreShards);
 					if (tracer.isInfoEnabled()) {
-						tracer.info("[><] Mapping AVP with Code " + codeName[0] + " as '" + codeName[1] + "' on received CCRs for ABMF Data.");
+						tracer.info("[><] Keeping sessions in " + sessionStoreClass + ", with " + sessionStoreShards + " shards.");
+					}
+				}
+				catch (Exception e) {
+					tracer.warning("[!!] Unable to create session store '" + sessionStoreClass + "'. Keeping sessions in CMP.", e);
+					sessionStore = null;
+				}
+			}
+
+			validityTime = (Long) loadEnvEntry(ctx, "validityTime", DEFAULT_VALIDITY_TIME, tracer);
+			long sessionExpiryTick = (Long) loadEnvEntry(ctx, "sessionExpiryTick", DEFAULT_SESSION_EXPIRY_TICK, tracer);
+			sessionExpiryBatch = (Integer) loadEnvEntry(ctx, "sessionExpiryBatch", 1000, tracer);
+			if (sessionExpiryTick != sessionExpiry.getTickMillis()) {
+				sessionExpiry = new SessionExpiryManager<RoServerSessionActivity>(sessionExpiryTick, SESSION_EXPIRY_WHEEL_SIZE);
+			}
+			// one timer for all the sessions, on the service activity
+			timerFacility.setTimer(aci, null, System.currentTimeMillis() + sessionExpiryTick, sessionExpiryTick, 0, EXPIRY_TIMER_OPTIONS);
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[><] Expiring sessions after " + validityTime + "s without a request, checking every " + sessionExpiryTick + "ms.");
+			}
+
+			String abmfAVPsFile = ((String) loadEnvEntry(ctx, "ABMF_AVPsFile", "", tracer)).trim();
+			long reloadInterval = (Long) loadEnvEntry(ctx, "reloadInterval", 60000L, tracer);
+			try {
+				if (abmfAVPsFile.length() > 0) {
+					File file = new File(abmfAVPsFile);
+					abmfAVPs = compileAbmfAVPs(ConfigReloader.load(file));
+					if (reloadInterval > 0) {
+						ConfigReloader.watch("ABMF AVPs", file, reloadInterval, new ConfigReloader.Reloadable() {
+							public void reload(Properties props) {
+								abmfAVPs = compileAbmfAVPs(props);
+							}
+						}, tracer);
+					}
+				}
+				else {
+					Properties props = new Properties();
+					for (String avp : abmfAVPsProp.trim().split(",")) {
+						String[] codeName = avp.trim().split("=");
+						props.setProperty(codeName[0], codeName[1]);
+					}
+					abmfAVPs = compileAbmfAVPs(props);
+				}
+				if (tracer.isInfoEnabled()) {
+					for (Map.Entry<String, String> avp : abmfAVPs.entrySet()) {
+						tracer.info("[><] Mapping AVP with Code " + avp.getKey() + " as '" + avp.getValue() + "' on received CCRs for ABMF Data.");
 					}
-					abmfAVPs.put(codeName[0], codeName[1]);
 				}
 			}
 			catch (Exception e) {
@@ -337,6 +495,23 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		}
 	}
 
+	public void onActivityEndEvent(ActivityEndEvent event, ActivityContextInterface aci) {
+		if (aci.getActivity() instanceof RoServerSessionActivity) {
+			// still attached, so the session ended with no termination request (eg, expired)
+			releaseSession();
+			return;
+		}
+		if (!(aci.getActivity() instanceof ServiceActivity)) {
+			return;
+		}
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[><] Service stopping. Stopping configuration watches and CDR writer.");
+		}
+		ConfigReloader.stopAll();
+		LocalRatingEngineSbb.unload();
+		CDRGeneratorSbb.stopCDRWriter();
+	}
+
 	/**
 	 * Helper method to load env-entry. In case of exception returns the default value
 	 *
@@ -345,29 +520,12 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 	 * @param deFault the value to return in case the env-entry is not present
 	 * @return the value of the env-entry, or default if not present
 	 */
-	private Object loadEnvEntry(Context ctx, String name, Object deFault) {
-		try {
-			return ctx.lookup(name);
-		}
-		catch (Exception e) {
-			tracer.warning("Unable to read '" + name + "' env entry. Defaulting to " + deFault + ".");
-			return deFault;
-		}
-	}
-
 	public void onCreditControlRequest(RoCreditControlRequest ccr, ActivityContextInterface aci) {
 		String serviceContextId = "Some-Service-Context-Id";
 
 		String sessionId = ccr.getSessionId();
-
-		UserSessionInfo sessionInfo = getSessionInfo();
-		if (sessionInfo == null) {
-			sessionInfo = new UserSessionInfo();
-			sessionInfo.setSessionStartTime(System.currentTimeMillis());
-		}
-		sessionInfo.setCcr(ccr);
-		sessionInfo.setSessionId(sessionId);
-		setSessionInfo(sessionInfo);
+		setSessionId(sessionId);
+		this.ccServerAci = aci;
 
 		String reqType = ccr.getCcRequestType().toString();
 		long reqNumber = ccr.getCcRequestNumber();
@@ -383,6 +541,22 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		// Some common ops. may be moved to proper places to avoid unnecessary ops
 		RoServerSessionActivity ccServerActivity = (RoServerSessionActivity) aci.getActivity();
 
+		UserSessionInfo sessionInfo = getSessionInfo();
+		if (sessionInfo == null) {
+			// an update or termination must find what was reserved, otherwise used units would go uncharged
+			if (ccr.getCcRequestType() == CcRequestType.UPDATE_REQUEST || ccr.getCcRequestType() == CcRequestType.TERMINATION_REQUEST) {
+				tracer.warning("[!!] " + sidString + " No session found for Credit-Control-Request [" + reqType + "]. Replying with DIAMETER_UNKNOWN_SESSION_ID.");
+				RoCreditControlAnswer cca = createCCA(ccServerActivity, null, DiameterResultCode.DIAMETER_UNKNOWN_SESSION_ID);
+				sendCCA(cca, aci, true);
+				return;
+			}
+			sessionInfo = new UserSessionInfo();
+			sessionInfo.setSessionStartTime(System.currentTimeMillis());
+		}
+		sessionInfo.setRequest(new CreditControlRequestInfo(ccr));
+		sessionInfo.setSessionId(sessionId);
+		setSessionInfo(sessionInfo);
+
 		SubscriptionIdType endUserType = null; 
 		String endUserId = null;
 
@@ -403,14 +577,14 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		}
 		else {
 			tracer.severe("[xx] " + sidString + " Subscription-Id AVP missing in CCR. Rejecting CCR.");
-			cca = createCCA(ccServerActivity, ccr, null, DiameterResultCode.DIAMETER_MISSING_AVP);
+			cca = createCCA(ccServerActivity, null, DiameterResultCode.DIAMETER_MISSING_AVP);
 			sendCCA(cca, aci, true);
 			return;
 		}
 
 		if (endUserId == null) {
 			tracer.severe("[xx] " + sidString + " Subscription-Id AVP is present but could not read it's data. Rejecting CCR.");
-			cca = createCCA(ccServerActivity, ccr, null, DiameterResultCode.DIAMETER_MISSING_AVP);
+			cca = createCCA(ccServerActivity, null, DiameterResultCode.DIAMETER_MISSING_AVP);
 			sendCCA(cca, aci, true);
 			return;
 		}
@@ -418,13 +592,13 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		// Retrieve child SBBs
 		try {
 			accountBalanceManagement = getAccountManager();
-			ratingEngineManagement = getRatingEngineManager();
+			ratingEngineManagement = getRatingEngine();
 			cdrGenerator = getCDRGenerator();
 		}
 		catch (Exception e) {
 			// TODO: By configuration it should be possible to proceed
 			tracer.severe("[xx] " + sidString + " Unable to retrieve Account & Balance Management or Rating Child SBB. Unable to continue.", e);
-			cca = createCCA(ccServerActivity, ccr, new ArrayList<CreditControlInfo>(), DiameterResultCode.DIAMETER_UNABLE_TO_COMPLY);
+			cca = createCCA(ccServerActivity, null, DiameterResultCode.DIAMETER_UNABLE_TO_COMPLY);
 			sendCCA(cca, aci, true);
 		}
 
@@ -434,31 +608,25 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 			// ... intentionally did not break;
 			// UPDATE_REQUEST 2
 		case UPDATE_REQUEST:
-			// FIXME: We may need to set timeout timer.. but not like this.
-			// timerFacility.setTimer(aci, null, System.currentTimeMillis() + 15000, DEFAULT_TIMER_OPTIONS);
-
 			try {
 				// retrieve service information from AVPs
 				serviceContextId = ccr.getServiceContextId();
 				if (serviceContextId == null) {
 					tracer.severe("[xx] " + sidString + " Service-Context-Id AVP missing in CCR. Rejecting CCR.");
 					// TODO: include missing avp - its a "SHOULD"
-					cca = createCCA(ccServerActivity, ccr, null, DiameterResultCode.DIAMETER_MISSING_AVP);
+					cca = createCCA(ccServerActivity, null, DiameterResultCode.DIAMETER_MISSING_AVP);
 					sendCCA(cca, aci, true);
 				}
 				else {
 					if (serviceContextId.equals("")) {
 						tracer.severe("[xx] " + sidString + " Service-Context-Id AVP is empty in CCR. Rejecting CCR.");
-						cca = createCCA(ccServerActivity, ccr, null, DiameterResultCode.DIAMETER_INVALID_AVP_VALUE);
+						cca = createCCA(ccServerActivity, null, DiameterResultCode.DIAMETER_INVALID_AVP_VALUE);
 						sendCCA(cca, aci, true);
 					}
 				}
 
 				// TODO: For Ro, support Service-Information AVP
 
-				List<CreditControlInfo> reservations = new ArrayList<CreditControlInfo>();
-				long resultCode = DiameterResultCode.DIAMETER_SUCCESS;
-
 				MultipleServicesCreditControlAvp[] multipleServicesCreditControlAvps = ccr.getMultipleServicesCreditControls();
 				if (multipleServicesCreditControlAvps != null && tracer.isFineEnabled()) {
 					tracer.fine("[--] " + sidString + " Received CCR has Multiple-Services-Credit-Control AVP with length = " + multipleServicesCreditControlAvps.length);
@@ -474,10 +642,15 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 					multipleServicesCreditControlAvps = new MultipleServicesCreditControlAvp[]{fakeMSCC};
 				}
 
+				sessionInfo = getSessionInfo();
+				CreditControlInfo[] ccInfos = new CreditControlInfo[multipleServicesCreditControlAvps.length];
+				int[] requestedCounts = new int[multipleServicesCreditControlAvps.length];
+
 				// RFC4006 / 8.16.  Multiple-Services-Credit-Control AVP
 				// Note that each instance of this AVP carries units related to one or more services or related to a
 				// single rating group.
-				for (MultipleServicesCreditControlAvp mscc : multipleServicesCreditControlAvps) {
+				for (int index = 0; index < multipleServicesCreditControlAvps.length; index++) {
+					MultipleServicesCreditControlAvp mscc = multipleServicesCreditControlAvps[index];
 
 					// The Service-Identifier and the Rating-Group AVPs are used to associate the granted units to a
 					// given service or rating group.  If both the Service-Identifier and the Rating-Group AVPs are
@@ -496,54 +669,39 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 					// quota in the corresponding answer.
 
 					RequestedServiceUnitAvp rsu = mscc.getRequestedServiceUnit();
-					ArrayList<CreditControlUnit> ccUnits = getRequestedUnits(ccr, rsu, serviceIds);
+					ArrayList<CreditControlUnit> ccUnits = getRequestedUnits(rsu);
+					requestedCounts[index] = ccUnits.size();
 
 					// if its UPDATE, lets first update data
 					if (ccr.getCcRequestType() == CcRequestType.UPDATE_REQUEST) {
-						// update used units for each CC-Type.
+						// update used units for each CC-Type, against what was reserved for this service/rating group
 						UsedServiceUnitAvp[] usedUnitsAvps = mscc.getUsedServiceUnits();
+						CreditControlInfo reservedInfo = sessionInfo.getLastReservation(ratingGroup, serviceIds);
 
-						sessionInfo = getSessionInfo();
-						CreditControlInfo reservedInfo = sessionInfo.getReservations().get(sessionInfo.getReservations().size() - 1);
-
-						ArrayList<CreditControlUnit> usedCCUnits = collectUsedUnits(usedUnitsAvps, reservedInfo.getCcUnits());
+						ArrayList<CreditControlUnit> usedCCUnits = collectUsedUnits(usedUnitsAvps, reservedInfo);
 
 						// Merge Requested with Used/Reserved CC Units into a single CCUnits
 						ccUnits.addAll(usedCCUnits);
-
-						// Call ABMF with this Credit Control Info
-						CreditControlInfo ccInfo = buildCCInfo(ccr, endUserId, endUserType, ccUnits);
-						accountBalanceManagement.updateRequest(ccInfo);
 					}
-					else {
-						// Initial Request
 
-						// Call ABMF with this Credit Control Info
-						CreditControlInfo ccInfo = buildCCInfo(ccr, endUserId, endUserType, ccUnits);
-						accountBalanceManagement.initialRequest(ccInfo);
-					}
+					ccInfos[index] = buildCCInfo(ccr, endUserId, endUserType, ccUnits, index, ratingGroup, serviceIds);
+				}
 
-					// Store Credit Control Info in CMP
-					sessionInfo = getSessionInfo();
-					sessionInfo.setCcr(ccr);
-					sessionInfo.setServiceIds(serviceIds);
-					sessionInfo.setEndUserId(endUserId);
-					sessionInfo.setEndUserType(endUserType);
-					setSessionInfo(sessionInfo);
+				// Store Credit Control Info in CMP
+				sessionInfo.setServiceIds(getServiceIds(multipleServicesCreditControlAvps));
+				sessionInfo.setEndUserId(endUserId);
+				sessionInfo.setEndUserType(endUserType);
+				sessionInfo.startReservations(ccInfos, requestedCounts);
 
-					return; // we'll continue @ resumeOnCreditControlRequest(..)
-				}
+				// Rate the requested units and call ABMF with all the Credit Control Infos
+				rateAndRequestUnits(sessionInfo, 0);
 
-				if (reservations.size() > 0) {
-					cca = createCCA(ccServerActivity, ccr, reservations, resultCode);
-				}
-				else {
-					cca = createCCA(ccServerActivity, ccr, null, DiameterResultCode.DIAMETER_MISSING_AVP);
-				}
-				sendCCA(cca, aci, false);
+				// we'll continue @ getRateForServiceResult(..) or resumeOnCreditControlRequest(..)
 			}
 			catch (Exception e) {
 				tracer.severe("[xx] " + sidString + " Failure processing Credit-Control-Request [" + (ccr.getCcRequestType() == CcRequestType.INITIAL_REQUEST ? "INITIAL" : "UPDATE") + "]", e);
+				// an update keeps the session, so what was reserved is settled by its termination or expiry
+				sendErrorCCA(ccServerActivity, aci, ccr.getCcRequestType() == CcRequestType.INITIAL_REQUEST);
 			}
 			break;
 			// TERMINATION_REQUEST 3
@@ -553,23 +711,26 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 					tracer.info("[>>] " + sidString + " '" + endUserId + "' requested service termination for '" + serviceContextId + "'.");
 				}
 
-				for (MultipleServicesCreditControlAvp mscc : ccr.getMultipleServicesCreditControls()) {
-
-					UsedServiceUnitAvp[] usedUnitsAvps = mscc.getUsedServiceUnits();
-
+				MultipleServicesCreditControlAvp[] multipleServicesCreditControlAvps = ccr.getMultipleServicesCreditControls();
+				if (multipleServicesCreditControlAvps.length > 0) {
 					sessionInfo = getSessionInfo();
-					CreditControlInfo reservedInfo = sessionInfo.getReservations().get(sessionInfo.getReservations().size() - 1);
+					CreditControlInfo[] ccInfos = new CreditControlInfo[multipleServicesCreditControlAvps.length];
 
-					ArrayList<CreditControlUnit> ccUnits = collectUsedUnits(usedUnitsAvps, reservedInfo.getCcUnits());
+					for (int index = 0; index < multipleServicesCreditControlAvps.length; index++) {
+						MultipleServicesCreditControlAvp mscc = multipleServicesCreditControlAvps[index];
+						long ratingGroup = mscc.getRatingGroup();
+						long[] serviceIds = mscc.getServiceIdentifiers();
 
-					// Call ABMF with this Credit Control Info
-					CreditControlInfo ccInfo = buildCCInfo(ccr, endUserId, endUserType, ccUnits);
-					accountBalanceManagement.terminateRequest(ccInfo);
+						UsedServiceUnitAvp[] usedUnitsAvps = mscc.getUsedServiceUnits();
+						CreditControlInfo reservedInfo = sessionInfo.getLastReservation(ratingGroup, serviceIds);
 
-					// No need to Store Credit Control Info in CMP. SLEE Container automatically takes care of garbage collection.
-					// sessionInfo = getSessionInfo();
-					// sessionInfo.getReservations().add(ccInfo);
-					// setSessionInfo(sessionInfo);
+						ArrayList<CreditControlUnit> ccUnits = collectUsedUnits(usedUnitsAvps, reservedInfo);
+						ccInfos[index] = buildCCInfo(ccr, endUserId, endUserType, ccUnits, index, ratingGroup, serviceIds);
+					}
+
+					// Call ABMF with all the Credit Control Infos, there's nothing to rate
+					sessionInfo.startReservations(ccInfos, new int[ccInfos.length]);
+					rateAndRequestUnits(sessionInfo, 0);
 
 					return; // we'll continue @ resumeOnCreditControlRequest(..)
 				}
@@ -627,11 +788,13 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 
 				// Answer with DIAMETER_SUCCESS, since "4) The default action for failed operations should be to terminate the data session"
 				// its terminated, we cant do much here...
-				cca = createCCA(ccServerActivity, ccr, null, DiameterResultCode.DIAMETER_SUCCESS);
+				cca = createCCA(ccServerActivity, null, DiameterResultCode.DIAMETER_SUCCESS);
 				sendCCA(cca, aci, true);
 			}
 			catch (Exception e) {
 				tracer.severe("[xx] " + sidString + " Failure processing Credit-Control-Request [TERMINATION]", e);
+				// the session is kept, so what is still reserved is released when it expires
+				sendErrorCCA(ccServerActivity, aci, false);
 			}
 			break;
 			// EVENT_REQUEST 4
@@ -648,43 +811,49 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 
 				if (reqAction == null) {
 					tracer.severe("[xx] " + sidString + " Unable to retrieve Requested-Action AVP. Replying with MISSING_AVP.");
-					createCCA(ccServerActivity, ccr, new ArrayList<CreditControlInfo>(), DiameterResultCode.DIAMETER_MISSING_AVP);
+					createCCA(ccServerActivity, null, DiameterResultCode.DIAMETER_MISSING_AVP);
 					sendCCA(cca, aci, true);
 				}
 				else if (reqAction == RequestedActionType.DIRECT_DEBITING) {
-					for (MultipleServicesCreditControlAvp mscc : ccr.getMultipleServicesCreditControls()) {
+					MultipleServicesCreditControlAvp[] multipleServicesCreditControlAvps = ccr.getMultipleServicesCreditControls();
+					CreditControlInfo[] ccInfos = new CreditControlInfo[multipleServicesCreditControlAvps.length];
+					int[] requestedCounts = new int[multipleServicesCreditControlAvps.length];
+
+					for (int index = 0; index < multipleServicesCreditControlAvps.length; index++) {
+						MultipleServicesCreditControlAvp mscc = multipleServicesCreditControlAvps[index];
 						RequestedServiceUnitAvp rsu = mscc.getRequestedServiceUnit();
 
-						long[] serviceIds = mscc.getServiceIdentifiers();
+						ArrayList<CreditControlUnit> ccUnits = getRequestedUnits(rsu);
+						requestedCounts[index] = ccUnits.size();
 
-						ArrayList<CreditControlUnit> ccUnits = getRequestedUnits(ccr, rsu, serviceIds);
+						ccInfos[index] = buildCCInfo(ccr, endUserId, endUserType, ccUnits, index, mscc.getRatingGroup(), mscc.getServiceIdentifiers());
+					}
 
-						// Call ABMF with this Credit Control Info
-						CreditControlInfo ccInfo = buildCCInfo(ccr, endUserId, endUserType, ccUnits);
-						accountBalanceManagement.eventRequest(ccInfo);
+					// Store Credit Control Info in CMP
+					sessionInfo = getSessionInfo();
+					sessionInfo.setServiceIds(getServiceIds(multipleServicesCreditControlAvps));
+					sessionInfo.setEndUserId(endUserId);
+					sessionInfo.setEndUserType(endUserType);
+					sessionInfo.startReservations(ccInfos, requestedCounts);
 
-						// Store Credit Control Info in CMP
-						sessionInfo = getSessionInfo();
-						sessionInfo.setCcr(ccr);
-						sessionInfo.setEndUserId(endUserId);
-						//sessionInfo.getReservations().add(ccInfo);
-						setSessionInfo(sessionInfo);
+					if (tracer.isInfoEnabled()) {
+						tracer.info(sessionInfo.toString());
+					}
 
-						if (tracer.isInfoEnabled()) {
-							tracer.info(sessionInfo.toString());
-						}
+					// Rate the requested units and call ABMF with all the Credit Control Infos
+					rateAndRequestUnits(sessionInfo, 0);
 
-						return; // we'll continue @ resumeOnCreditControlRequest(..)
-					}
+					// we'll continue @ getRateForServiceResult(..) or resumeOnCreditControlRequest(..)
 				}
 				else {
 					tracer.severe("[xx] " + sidString + " Unsupported Requested-Action AVP (" + reqAction + "). Replying with DIAMETER_UNABLE_TO_COMPLY.");
-					createCCA(ccServerActivity, ccr, new ArrayList<CreditControlInfo>(), DiameterResultCode.DIAMETER_UNABLE_TO_COMPLY);
+					createCCA(ccServerActivity, null, DiameterResultCode.DIAMETER_UNABLE_TO_COMPLY);
 					sendCCA(cca, aci, true);
 				}
 			}
 			catch (Exception e) {
 				tracer.severe("[xx] " + sidString + " Failure processing Credit-Control-Request [EVENT]", e);
+				sendErrorCCA(ccServerActivity, aci, true);
 			}
 			break;
 		default:
@@ -693,9 +862,12 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		}
 	}
 
-	private CreditControlInfo buildCCInfo(RoCreditControlRequest ccr, String endUserId, SubscriptionIdType endUserType, ArrayList<CreditControlUnit> ccUnits) {
+	private CreditControlInfo buildCCInfo(RoCreditControlRequest ccr, String endUserId, SubscriptionIdType endUserType, ArrayList<CreditControlUnit> ccUnits, int msccIndex, long ratingGroup, long[] serviceIds) {
 		// Build Credit Control Info Request to ABMF
 		CreditControlInfo ccInfo = new CreditControlInfo();
+		ccInfo.setMsccIndex(msccIndex);
+		ccInfo.setRatingGroup(ratingGroup);
+		ccInfo.setServiceIds(serviceIds);
 		ccInfo.setEventTimestamp(System.currentTimeMillis());
 		CcRequestType type = ccr.getCcRequestType();
 		ccInfo.setEventType(type.toString());
@@ -716,24 +888,128 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		return ccInfo;
 	}
 
+	/**
+	 * @return the Service-Identifiers of all the Multiple-Services-Credit-Control AVPs, in order
+	 */
+	private long[] getServiceIds(MultipleServicesCreditControlAvp[] msccs) {
+		int count = 0;
+		for (MultipleServicesCreditControlAvp mscc : msccs) {
+			count += mscc.getServiceIdentifiers().length;
+		}
+		long[] serviceIds = new long[count];
+		int index = 0;
+		for (MultipleServicesCreditControlAvp mscc : msccs) {
+			long[] msccServiceIds = mscc.getServiceIdentifiers();
+			System.arraycopy(msccServiceIds, 0, serviceIds, index, msccServiceIds.length);
+			index += msccServiceIds.length;
+		}
+		return serviceIds;
+	}
+
 	public void onTimerEvent(TimerEvent timer, ActivityContextInterface aci) {
-		// detach from this activity, we don't want to handle any other event on it
-		aci.detach(this.sbbContextExt.getSbbLocalObject());
+		// the session expiry tick, set at service start
+		List<SessionExpiryManager.Entry<RoServerSessionActivity>> expired = sessionExpiry.expire(System.currentTimeMillis(), sessionExpiryBatch);
+		if (expired.isEmpty()) {
+			return;
+		}
+		if (tracer.isFineEnabled()) {
+			tracer.fine("[--] Expiring " + expired.size() + " sessions. " + sessionExpiry);
+		}
+		for (SessionExpiryManager.Entry<RoServerSessionActivity> entry : expired) {
+			expireSession(entry.getSessionId(), entry.getAttachment());
+		}
+	}
+
+	/**
+	 * Ends a session whose validity is over. The entity of the session releases what is still reserved for it, once
+	 * the activity ends, see {@link #releaseSession()}.
+	 */
+	private void expireSession(String sessionId, RoServerSessionActivity activity) {
 		if (tracer.isInfoEnabled()) {
-			tracer.info("[--] " + sidString + " Forcing Activity Termination '" + aci.getActivity() + "' due to timeout expire.");
+			tracer.info("[--] SID<" + sessionId + "> Forcing Activity Termination '" + activity + "' due to timeout expire.");
 		}
+
 		// TODO: allow for different options, such as sending a RAR request.
-		((RoServerSessionActivity) aci.getActivity()).endActivity();
+		try {
+			activity.endActivity();
+		}
+		catch (Exception e) {
+			tracer.warning("[!!] SID<" + sessionId + "> Unable to end activity of expired session.", e);
+		}
+	}
+
+	/**
+	 * Releases what is still reserved for the session of this entity back to the balance, and forgets the session.
+	 */
+	private void releaseSession() {
+		String sessionId = getSessionId();
+		UserSessionInfo sessionInfo = getSessionInfo();
+		if (sessionInfo == null) {
+			return;
+		}
+		// forgotten first, so the answers come back at resumeOnCreditControlRequest with no request to answer
+		removeSessionInfo();
+
+		CreditControlInfo[] reservations = sessionInfo.getLastReservations();
+		if (reservations != null) {
+			for (CreditControlInfo reservation : reservations) {
+				CreditControlInfo releaseInfo = buildReleaseInfo(reservation);
+				if (releaseInfo == null) {
+					continue;
+				}
+				try {
+					getAccountManager().terminateRequest(releaseInfo);
+				}
+				catch (Exception e) {
+					tracer.severe("[xx] SID<" + sessionId + "> Unable to release reserved units of ended session.", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return a termination with no used units for the units still reserved, or null if nothing is reserved
+	 */
+	private CreditControlInfo buildReleaseInfo(CreditControlInfo reservation) {
+		if (!reservation.isSuccessful() || reservation.getCcUnits() == null) {
+			return null;
+		}
+		ArrayList<CreditControlUnit> ccUnits = new ArrayList<CreditControlUnit>();
+		for (CreditControlUnit reservedUnit : reservation.getCcUnits()) {
+			if (reservedUnit.getReservedAmount() <= 0) {
+				continue;
+			}
+			CreditControlUnit ccUnit = new CreditControlUnit();
+			ccUnit.setUnitType(reservedUnit.getUnitType());
+			ccUnit.setReservedUnits(reservedUnit.getReservedUnits());
+			ccUnit.setReservedAmount(reservedUnit.getReservedAmount());
+			ccUnits.add(ccUnit);
+		}
+		if (ccUnits.isEmpty()) {
+			return null;
+		}
+
+		CreditControlInfo releaseInfo = new CreditControlInfo();
+		releaseInfo.setSessionId(reservation.getSessionId());
+		releaseInfo.setRequestNumber(reservation.getRequestNumber());
+		releaseInfo.setSubscriptionId(reservation.getSubscriptionId());
+		releaseInfo.setSubscriptionIdType(reservation.getSubscriptionIdType());
+		releaseInfo.setMsccIndex(reservation.getMsccIndex());
+		releaseInfo.setRatingGroup(reservation.getRatingGroup());
+		releaseInfo.setServiceIds(reservation.getServiceIds());
+		releaseInfo.setEventType(CcRequestType.TERMINATION_REQUEST.toString());
+		releaseInfo.setEventTimestamp(System.currentTimeMillis());
+		releaseInfo.setCcUnits(ccUnits);
+		return releaseInfo;
 	}
 
 	/**
 	 * @param ccServerActivity
-	 * @param request
-	 * @param reservations
+	 * @param reservations the reservations made, one per request MSCC, or null to answer with no MSCCs
 	 * @param resultCode
 	 * @return
 	 */
-	private RoCreditControlAnswer createCCA(RoServerSessionActivity ccServerActivity, RoCreditControlRequest request, List<CreditControlInfo> reservations, long resultCode) {
+	private RoCreditControlAnswer createCCA(RoServerSessionActivity ccServerActivity, CreditControlInfo[] reservations, long resultCode) {
 		RoCreditControlAnswer answer = ccServerActivity.createRoCreditControlAnswer();
 
 		// <Credit-Control-Answer> ::= < Diameter Header: 272, PXY >
@@ -785,16 +1061,14 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		//                          [ CC-Output-Octets ]
 		//                          [ CC-Service-Specific-Units ]
 		//                         *[ AVP ]
-		if (reservations != null && reservations.size() > 0) {
-			MultipleServicesCreditControlAvp[] reqMSCCs = request.getMultipleServicesCreditControls();
+		if (reservations != null) {
+			// one answer MSCC per request MSCC, each with the reservation made for it
 			List<MultipleServicesCreditControlAvp> ansMSCCs = new ArrayList<MultipleServicesCreditControlAvp>();
-			for (int index = 0; index < reqMSCCs.length; index++) {
-				MultipleServicesCreditControlAvp reqMSCC = reqMSCCs[index];
+			for (int index = 0; index < reservations.length; index++) {
+				CreditControlInfo ccInfo = reservations[index];
 				MultipleServicesCreditControlAvp ansMscc = avpFactory.createMultipleServicesCreditControl();
-				ansMscc.setRatingGroup(reqMSCC.getRatingGroup());
-				ansMscc.setServiceIdentifiers(reqMSCC.getServiceIdentifiers());
-				// FIXME: Check how to handle this in case of MSCC if anything different is needed
-				CreditControlInfo ccInfo = reservations.get(reservations.size()-1);
+				ansMscc.setRatingGroup(ccInfo.getRatingGroup());
+				ansMscc.setServiceIdentifiers(ccInfo.getServiceIds());
 				if (ccInfo.isSuccessful()) {
 					GrantedServiceUnitAvp gsu = avpFactory.createGrantedServiceUnit();
 					ArrayList<CreditControlUnit> ccUnits = ccInfo.getCcUnits();
@@ -834,10 +1108,10 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 					fuiAvp.setFinalUnitAction(FinalUnitActionType.TERMINATE);
 					ansMscc.setFinalUnitIndication(fuiAvp);
 
-					ansMscc.setResultCode(resultCode);
+					ansMscc.setResultCode(getResultCode(ccInfo));
 				}
 				ansMSCCs.add(ansMscc);
-				ansMscc.setValidityTime(DEFAULT_VALIDITY_TIME);
+				ansMscc.setValidityTime(ccInfo.getValidityTime() > 0 ? ccInfo.getValidityTime() : validityTime);
 			}
 			answer.setMultipleServicesCreditControls(ansMSCCs.toArray(new MultipleServicesCreditControlAvp[ansMSCCs.size()]));
 		}
@@ -868,6 +1142,23 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		return answer;
 	}
 
+	/**
+	 * @return the Ro activity to answer on, the one the request was received on if ABMF answered while handling it
+	 */
+	private ActivityContextInterface getCcServerAci() {
+		if (ccServerAci != null) {
+			return ccServerAci;
+		}
+
+		// answered in a later transaction, look for it among the attached activities (usually just this one)
+		for (ActivityContextInterface aci : this.sbbContextExt.getActivities()) {
+			if (aci.getActivity() instanceof RoServerSessionActivity) {
+				return aci;
+			}
+		}
+		throw new IllegalStateException("Not attached to any Ro server session activity.");
+	}
+
 	/**
 	 * Sends the Credit-Control-Answer through the ACI and detaches if set to.
 	 * @param cca the Credit-Control-Answer to send
@@ -876,24 +1167,19 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 	 * @return true if it succeeds sending, false otherwise
 	 */
 	private boolean sendCCA(RoCreditControlAnswer cca, ActivityContextInterface aci, boolean detach) {
-		// Start by cancelling any existing Timer
-		TimerID timerID = getTimerID();
-		if (timerID != null) {
-			timerFacility.cancelTimer(timerID);
-			if(tracer.isFineEnabled()) {
-				tracer.info("[><] " + sidString + " Cancelling existing timer " + timerID);
-			}
+		RoServerSessionActivity ccServerActivity = (RoServerSessionActivity) aci.getActivity();
+		// Refresh the session validity, unless we are leaving...
+		if (detach) {
+			sessionExpiry.cancel(getSessionId());
 		}
-		// Set a new one, unless we are leaving...
-		if (!detach) {
-			timerID = timerFacility.setTimer(aci, null, System.currentTimeMillis() + DEFAULT_VALIDITY_TIME*1000, DEFAULT_TIMER_OPTIONS);
-			setTimerID(timerID);
-			if(tracer.isFineEnabled()) {
-				tracer.fine("[><] " + sidString + " Setting new timer " + timerID + " for " + System.currentTimeMillis() + DEFAULT_VALIDITY_TIME*1000);
+		else {
+			long validity = getValidityTime(cca);
+			sessionExpiry.schedule(getSessionId(), ccServerActivity, validity * 1000);
+			if (tracer.isFineEnabled()) {
+				tracer.fine("[><] " + sidString + " Session valid for " + validity + "s.");
 			}
 		}
 		try {
-			RoServerSessionActivity ccServerActivity = (RoServerSessionActivity) aci.getActivity();
 			ccServerActivity.sendRoCreditControlAnswer(cca);
 			if (detach) {
 				if (tracer.isFineEnabled()) {
@@ -909,6 +1195,50 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		}
 	}
 
+	/**
+	 * Answers the request being handled with DIAMETER_UNABLE_TO_COMPLY, when it failed to be processed, so that it is
+	 * not left unanswered.
+	 */
+	private void sendErrorCCA(RoServerSessionActivity ccServerActivity, ActivityContextInterface aci, boolean detach) {
+		try {
+			sendCCA(createCCA(ccServerActivity, null, DiameterResultCode.DIAMETER_UNABLE_TO_COMPLY), aci, detach);
+		}
+		catch (Exception e) {
+			tracer.severe("[xx] " + sidString + " Unable to send error Credit-Control-Answer.", e);
+		}
+	}
+
+	/**
+	 * Answers the request being resumed (eg, after rating) with DIAMETER_UNABLE_TO_COMPLY, when it failed to be
+	 * processed. As when it is received, only an initial or event request ends the session.
+	 */
+	private void sendResumedErrorCCA(UserSessionInfo sessionInfo) {
+		try {
+			ActivityContextInterface aci = getCcServerAci();
+			CcRequestType requestType = sessionInfo.getRequest().getRequestType();
+			sendErrorCCA((RoServerSessionActivity) aci.getActivity(), aci, requestType == CcRequestType.INITIAL_REQUEST || requestType == CcRequestType.EVENT_REQUEST);
+		}
+		catch (Exception e) {
+			tracer.severe("[xx] " + sidString + " Unable to send error Credit-Control-Answer.", e);
+		}
+	}
+
+	/**
+	 * @return the longest Validity-Time of the answer MSCCs, so that the session outlives all of its grants
+	 */
+	private long getValidityTime(RoCreditControlAnswer cca) {
+		long validity = 0;
+		MultipleServicesCreditControlAvp[] msccs = cca.getMultipleServicesCreditControls();
+		if (msccs != null) {
+			for (MultipleServicesCreditControlAvp mscc : msccs) {
+				if (mscc.hasValidityTime()) {
+					validity = Math.max(validity, mscc.getValidityTime());
+				}
+			}
+		}
+		return validity > 0 ? validity : validityTime;
+	}
+
 	//private String storedEndUserId;
 	//private long storedRequestedUnits;
 	//private long[] storedServiceIds;
@@ -917,43 +1247,58 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 	@Override
 	public void resumeOnCreditControlRequest(CreditControlInfo ccInfo) {
 		UserSessionInfo sessionInfo = getSessionInfo();
-		RoCreditControlRequest storedCCR = sessionInfo.getCcr();
+		if (sessionInfo == null) {
+			// units of an ended session released by releaseSession, there's no request to answer
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[--] SID<" + ccInfo.getSessionId() + "> Released reserved units of ended session. Balance is now " + ccInfo.getBalanceAfter() + ".");
+			}
+			return;
+		}
+
+		CreditControlRequestInfo storedRequest = sessionInfo.getRequest();
 		if (tracer.isInfoEnabled()) {
-			tracer.info("[<<] " + sidString + " Resuming Handling of Credit-Control-Request [" + storedCCR.getCcRequestType().toString() + "]");
+			tracer.info("[<<] " + sidString + " Resuming Handling of Credit-Control-Request [" + storedRequest.getRequestType().toString() + "]");
 		}
 		if (tracer.isFineEnabled()) {
 			tracer.fine("[<<] \" + sidString + \" " + ccInfo);
 		}
-		sessionInfo.getReservations().add(ccInfo);
-		setSessionInfo(sessionInfo);
-		long resultCode = DiameterResultCode.DIAMETER_SUCCESS;
 		if (ccInfo.isSuccessful()) {
 			if (tracer.isInfoEnabled()) {
-				tracer.info("[>>] " + sidString + " '" + sessionInfo.getEndUserId() + "' GRANTED for '" + Arrays.toString(sessionInfo.getServiceIds()) + "'.");
+				tracer.info("[>>] " + sidString + " '" + sessionInfo.getEndUserId() + "' GRANTED for '" + Arrays.toString(ccInfo.getServiceIds()) + "'.");
 			}
 		}
 		else {
 			if (tracer.isInfoEnabled()) {
-				tracer.info("[>>] " + sidString + " '" + sessionInfo.getEndUserId() + "' DENIED for '" + Arrays.toString(sessionInfo.getServiceIds()) + "'.");
+				tracer.info("[>>] " + sidString + " '" + sessionInfo.getEndUserId() + "' DENIED for '" + Arrays.toString(ccInfo.getServiceIds()) + "'.");
 			}
-			// If we can't determine error, say UNABLE_TO_COMPLY
-			resultCode = ccInfo.getErrorCodeType() != null ? getResultCode(ccInfo.getErrorCodeType()) : DiameterResultCode.DIAMETER_UNABLE_TO_COMPLY;
 		}
 
-		try {
-			ActivityContextInterface[] acis = this.sbbContextExt.getActivities();
-			ActivityContextInterface aci = null;
-			RoServerSessionActivity activity = null;
-			for (ActivityContextInterface curAci : acis) {
-				if (curAci.getActivity() instanceof RoServerSessionActivity) {
-					aci = curAci;
-					activity = (RoServerSessionActivity) curAci.getActivity();
-					break;
-				}
+		// the answer is only sent once ABMF has answered for every MSCC of the request
+		boolean complete = sessionInfo.addReservation(ccInfo);
+		setSessionInfo(sessionInfo);
+		if (!complete) {
+			if (tracer.isFineEnabled()) {
+				tracer.fine("[--] " + sidString + " Waiting for " + sessionInfo.getPendingCount() + " more Credit Control answers from ABMF.");
+			}
+			return;
+		}
+
+		// success if anything was granted, otherwise the failure of the first MSCC. Each MSCC has its own result code.
+		CreditControlInfo[] reservations = sessionInfo.getLastReservations();
+		long resultCode = getResultCode(reservations[0]);
+		for (CreditControlInfo reservation : reservations) {
+			if (reservation.isSuccessful()) {
+				resultCode = DiameterResultCode.DIAMETER_SUCCESS;
+				break;
 			}
+		}
+
+		try {
+			ActivityContextInterface aci = getCcServerAci();
+			RoServerSessionActivity activity = (RoServerSessionActivity) aci.getActivity();
 
-			RoCreditControlAnswer cca = sessionInfo.getReservations().size() > 0 ? createCCA(activity, storedCCR, sessionInfo.getReservations(), resultCode) : createCCA(activity, storedCCR, null, DiameterResultCode.DIAMETER_MISSING_AVP);
-			sendCCA(cca, aci, storedCCR.getCcRequestType() == CcRequestType.TERMINATION_REQUEST || storedCCR.getCcRequestType() == CcRequestType.EVENT_REQUEST);
+			RoCreditControlAnswer cca = createCCA(activity, storedRequest.getMsccCount() > 0 ? reservations : null, resultCode);
+			sendCCA(cca, aci, storedRequest.getRequestType() == CcRequestType.TERMINATION_REQUEST || storedRequest.getRequestType() == CcRequestType.EVENT_REQUEST);
 
 			// Output the user session details.
 			if (tracer.isInfoEnabled()) {
@@ -968,9 +1313,12 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		}
 
 
-		if (generateCDR && cdrGenerator != null && storedCCR.getCcRequestType() == CcRequestType.TERMINATION_REQUEST) {
+		// final CDR on TERMINATION, event CDR on EVENT and, if enabled, interim CDRs on UPDATE
+		CcRequestType requestType = storedRequest.getRequestType();
+		boolean writeCDR = requestType == CcRequestType.TERMINATION_REQUEST || requestType == CcRequestType.EVENT_REQUEST || (generateInterimCDR && requestType == CcRequestType.UPDATE_REQUEST);
+		if (generateCDR && cdrGenerator != null && writeCDR) {
 			if (tracer.isInfoEnabled()) {
-				tracer.info("[><] " + sidString + " Generating CDR.");
+				tracer.info("[><] " + sidString + " Generating CDR for " + requestType + ".");
 			}
 
 			try {
@@ -994,32 +1342,165 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		}
 	}
 
+	private static Map<String, String> compileAbmfAVPs(Properties props) {
+		HashMap<String, String> avps = new HashMap<String, String>();
+		for (String code : props.stringPropertyNames()) {
+			avps.put(code.trim(), props.getProperty(code).trim());
+		}
+		return Collections.unmodifiableMap(avps);
+	}
+
 	// --------- Call to decentralized rating engine ---------------------
+
+	/**
+	 * Rates the Credit Control Infos of the request being handled, from the one at index 'from' on, and then calls ABMF
+	 * with all of them, without waiting for each answer, so that the reservations for independent services or rating
+	 * groups are made concurrently. The answers are gathered at resumeOnCreditControlRequest(..).
+	 */
+	private void rateAndRequestUnits(UserSessionInfo sessionInfo, int from) {
+		CreditControlInfo[] ccInfos = sessionInfo.getPendingReservations();
+		for (int i = from; i < ccInfos.length; i++) {
+			if (!rateRequestedUnits(sessionInfo, ccInfos[i], 0, sessionInfo.getRequestedCount(i))) {
+				return;
+			}
+		}
+
+		// ABMF may answer right away, so the session must be stored first
+		setSessionInfo(sessionInfo);
+		CcRequestType requestType = sessionInfo.getRequest().getRequestType();
+		if (tracer.isFineEnabled()) {
+			tracer.fine("[--] " + sidString + " Requesting units to ABMF for " + ccInfos.length + " Multiple-Services-Credit-Control AVP(s).");
+		}
+		for (CreditControlInfo ccInfo : ccInfos) {
+			requestUnits(requestType, ccInfo);
+		}
+	}
+
+	/**
+	 * Rates the requested units of a Credit Control Info, from index 'from' up to 'count'. Several units are rated with
+	 * a single batch request. If the Rating Engine answers asynchronously, the Credit Control Info is stored in CMP and
+	 * rating continues at getRateForServiceResult(..) or getRatesForServiceResult(..).
+	 *
+	 * @return true if all units are rated, false if waiting for the Rating Engine
+	 */
+	@SuppressWarnings("rawtypes")
+	private boolean rateRequestedUnits(UserSessionInfo sessionInfo, CreditControlInfo ccInfo, int from, int count) {
+		if (!performRating || from >= count) {
+			return true;
+		}
+
+		ArrayList<RatingInfo> ratingInfos;
+		if (count - from == 1) {
+			CreditControlUnit ccUnit = ccInfo.getCcUnits().get(from);
+			RatingInfo ratingInfo = ratingEngineManagement.getRateForService(buildRatingParams(sessionInfo, ccInfo, ccUnit.getUnitType().getValue(), ccUnit.getRequestedUnits()));
+			ratingInfos = null;
+			if (ratingInfo != null) {
+				ratingInfos = new ArrayList<RatingInfo>(1);
+				ratingInfos.add(ratingInfo);
+			}
+		}
+		else {
+			ratingInfos = ratingEngineManagement.getRatesForService(buildRatingParamsList(sessionInfo, ccInfo, from, count));
+		}
+
+		if (ratingInfos == null) {
+			// asynchronous rating, suspend until the result arrives
+			sessionInfo.setPendingRating(ccInfo);
+			sessionInfo.setRatingIndex(from);
+			sessionInfo.setRatingCount(count);
+			setSessionInfo(sessionInfo);
+			if (tracer.isFineEnabled()) {
+				tracer.fine("[--] " + sidString + " Waiting for Rating Engine to rate units " + (from + 1) + " to " + count + " of MSCC #" + ccInfo.getMsccIndex() + ".");
+			}
+			return false;
+		}
+
+		applyRates(ccInfo, from, ratingInfos);
+		return true;
+	}
+
+	private void applyRates(CreditControlInfo ccInfo, int from, ArrayList<RatingInfo> ratingInfos) {
+		for (int i = 0; i < ratingInfos.size(); i++) {
+			applyRate(ccInfo.getCcUnits().get(from + i), getRate(ratingInfos.get(i)));
+		}
+	}
+
+	private void applyRate(CreditControlUnit ccUnit, double rateForService) {
+		ccUnit.setRateForService(rateForService);
+		// FIXME: This is not right. Rating should convert to monetary units...
+		ccUnit.setRequestedAmount((long) Math.ceil(ccUnit.getRequestedUnits() * rateForService));
+	}
+
+	/**
+	 * Calls ABMF with the (rated) Credit Control Info, according to the request type.
+	 */
+	private void requestUnits(CcRequestType requestType, CreditControlInfo ccInfo) {
+		switch (requestType) {
+		case INITIAL_REQUEST:
+			accountBalanceManagement.initialRequest(ccInfo);
+			break;
+		case UPDATE_REQUEST:
+			accountBalanceManagement.updateRequest(ccInfo);
+			break;
+		case TERMINATION_REQUEST:
+			accountBalanceManagement.terminateRequest(ccInfo);
+			break;
+		case EVENT_REQUEST:
+			accountBalanceManagement.eventRequest(ccInfo);
+			break;
+		default:
+			tracer.warning("[xx] " + sidString + " Unexpected request type for requesting units.");
+			break;
+		}
+	}
+
 	@SuppressWarnings({ "rawtypes", "unchecked" })
-	private double getRateForService(RoCreditControlRequest ccr, long serviceId, long unitTypeId, long requestedUnits) {
+	private HashMap buildRatingParams(UserSessionInfo sessionInfo, CreditControlInfo ccInfo, long unitTypeId, long requestedUnits) {
+		CreditControlRequestInfo request = sessionInfo.getRequest();
 
 		// Let's make some variables available to be sent to the rating engine
 		HashMap params = new HashMap();
-		params.put("ChargingServerHost", ccr.getDestinationHost());
-		params.put("SessionId", ccr.getSessionId());
-		params.put("RequestType", ccr.getCcRequestType().toString());
-		SubscriptionIdAvp[] subscriptionIds = ccr.getSubscriptionIds();
-		boolean hasSubscriptionIds = (subscriptionIds != null && subscriptionIds.length > 0);
-		params.put("SubscriptionIdType", hasSubscriptionIds ? subscriptionIds[0].getSubscriptionIdType().getValue() : -1);
-		params.put("SubscriptionIdData", hasSubscriptionIds ? subscriptionIds[0].getSubscriptionIdData() : null);
+		params.put("ChargingServerHost", request.getDestinationHost());
+		params.put("SessionId", sessionInfo.getSessionId());
+		params.put("RequestType", request.getRequestType().toString());
+		SubscriptionIdType endUserType = sessionInfo.getEndUserType();
+		params.put("SubscriptionIdType", endUserType != null ? endUserType.getValue() : -1);
+		params.put("SubscriptionIdData", sessionInfo.getEndUserId());
 		//params.put("UnitId", getUnitId((int)serviceId));
 		params.put("UnitTypeId", unitTypeId);
 		params.put("UnitValue", requestedUnits);
-		params.put("ServiceId", serviceId);
-		params.put("BeginTime", ccr.getEventTimestamp().getTime());
+		params.put("ServiceId", getRatedServiceId(ccInfo));
+		params.put("RatingGroup", ccInfo.getRatingGroup());
+		params.put("BeginTime", request.getEventTimestamp());
 		params.put("ActualTime", System.currentTimeMillis());
 
 		// TODO: Extract DestinationId AVP from the CCR if available.
 		params.put("DestinationIdType", "?");
 		params.put("DestinationIdData", "?");
 
-		RatingInfo ratingInfo = ratingEngineManagement.getRateForService(params);
+		return params;
+	}
 
+	/**
+	 * @return the Service-Identifier to rate a Credit Control for or, if it has none, its Rating-Group. An MSCC with only
+	 *         a Rating-Group relates to all the services in the group (RFC 4006, 8.16).
+	 */
+	private static long getRatedServiceId(CreditControlInfo ccInfo) {
+		long[] serviceIds = ccInfo.getServiceIds();
+		return serviceIds != null && serviceIds.length > 0 ? serviceIds[0] : ccInfo.getRatingGroup();
+	}
+
+	@SuppressWarnings("rawtypes")
+	private ArrayList<HashMap> buildRatingParamsList(UserSessionInfo sessionInfo, CreditControlInfo ccInfo, int from, int count) {
+		ArrayList<HashMap> paramsList = new ArrayList<HashMap>(count - from);
+		for (int i = from; i < count; i++) {
+			CreditControlUnit ccUnit = ccInfo.getCcUnits().get(i);
+			paramsList.add(buildRatingParams(sessionInfo, ccInfo, ccUnit.getUnitType().getValue(), ccUnit.getRequestedUnits()));
+		}
+		return paramsList;
+	}
+
+	private double getRate(RatingInfo ratingInfo) {
 		// Retrieve the rating information [and optionally the unit type] from ratingInfo.
 
 		int responseCode = ratingInfo.getResponseCode();
@@ -1040,6 +1521,74 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 	@Override
 	public void getRateForServiceResult(RatingInfo ratingInfo) {
 		tracer.info("[><] " + sidString + " Got Rate for Service: " + ratingInfo);
+
+		UserSessionInfo sessionInfo = getSessionInfo();
+		CreditControlInfo ccInfo = sessionInfo != null ? sessionInfo.getPendingRating() : null;
+		if (ccInfo == null) {
+			tracer.warning("[xx] " + sidString + " Received Rate for Service with no pending rating request. Ignoring it.");
+			return;
+		}
+
+		int index = sessionInfo.getRatingIndex();
+		int count = sessionInfo.getRatingCount();
+		sessionInfo.setPendingRating(null);
+		setSessionInfo(sessionInfo);
+
+		try {
+			accountBalanceManagement = getAccountManager();
+			ratingEngineManagement = getRatingEngine();
+
+			CreditControlUnit ccUnit = ccInfo.getCcUnits().get(index);
+			if (ratingEngineManagement instanceof RatingEngineClientDecorator) {
+				ratingInfo = ((RatingEngineClientDecorator) ratingEngineManagement).onRateForServiceResult(buildRatingParams(sessionInfo, ccInfo, ccUnit.getUnitType().getValue(), ccUnit.getRequestedUnits()), ratingInfo);
+			}
+			applyRate(ccUnit, getRate(ratingInfo));
+			sessionInfo.setPendingReservation(ccInfo);
+			if (rateRequestedUnits(sessionInfo, ccInfo, index + 1, count)) {
+				rateAndRequestUnits(sessionInfo, ccInfo.getMsccIndex() + 1);
+			}
+		}
+		catch (Exception e) {
+			tracer.severe("[xx] " + sidString + " Failure resuming Credit-Control-Request after rating.", e);
+			sendResumedErrorCCA(sessionInfo);
+		}
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void getRatesForServiceResult(ArrayList<RatingInfo> ratingInfos) {
+		tracer.info("[><] " + sidString + " Got Rates for Service: " + ratingInfos);
+
+		UserSessionInfo sessionInfo = getSessionInfo();
+		CreditControlInfo ccInfo = sessionInfo != null ? sessionInfo.getPendingRating() : null;
+		if (ccInfo == null) {
+			tracer.warning("[xx] " + sidString + " Received Rates for Service with no pending rating request. Ignoring them.");
+			return;
+		}
+
+		int index = sessionInfo.getRatingIndex();
+		int count = sessionInfo.getRatingCount();
+		sessionInfo.setPendingRating(null);
+		setSessionInfo(sessionInfo);
+
+		try {
+			accountBalanceManagement = getAccountManager();
+			ratingEngineManagement = getRatingEngine();
+
+			if (ratingEngineManagement instanceof RatingEngineClientDecorator) {
+				ArrayList<HashMap> paramsList = buildRatingParamsList(sessionInfo, ccInfo, index, count);
+				ratingInfos = ((RatingEngineClientDecorator) ratingEngineManagement).onRatesForServiceResult(paramsList, ratingInfos);
+			}
+			applyRates(ccInfo, index, ratingInfos);
+			sessionInfo.setPendingReservation(ccInfo);
+			if (rateRequestedUnits(sessionInfo, ccInfo, index + ratingInfos.size(), count)) {
+				rateAndRequestUnits(sessionInfo, ccInfo.getMsccIndex() + 1);
+			}
+		}
+		catch (Exception e) {
+			tracer.severe("[xx] " + sidString + " Failure resuming Credit-Control-Request after rating.", e);
+			sendResumedErrorCCA(sessionInfo);
+		}
 	}
 
 	// TODO: Ok, so let's not use this for now (the serviceid-units csv mapping file). Why?
@@ -1161,7 +1710,7 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		}
 	}
 
-	private ArrayList<CreditControlUnit> getRequestedUnits(RoCreditControlRequest ccr, RequestedServiceUnitAvp rsu, long[] serviceIds) {
+	private ArrayList<CreditControlUnit> getRequestedUnits(RequestedServiceUnitAvp rsu) {
 		ArrayList<CreditControlUnit> ccRequestedUnits = new ArrayList<CreditControlUnit>();
 
 		long requestedUnits = 0;
@@ -1185,15 +1734,8 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 				if (requestedUnits >= 0) {
 					CreditControlUnit ccUnit = new CreditControlUnit();
 					ccUnit.setUnitType(type);
-					if (performRating) {
-						double rateForService = getRateForService(ccr, serviceIds[0], type.getValue(), requestedUnits);
-						ccUnit.setRateForService(rateForService);
-						// FIXME: This is not right. Rating should convert to monetary units...
-						ccUnit.setRequestedAmount((long) Math.ceil(requestedUnits * rateForService));
-					}
-          else {
-            ccUnit.setRequestedAmount(requestedUnits);
-          }
+					// the amount is set again once the unit is rated, see rateRequestedUnits(..)
+					ccUnit.setRequestedAmount(requestedUnits);
 					ccUnit.setRequestedUnits(requestedUnits);
 					ccRequestedUnits.add(ccUnit);
 				}
@@ -1206,10 +1748,12 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		return ccRequestedUnits;
 	}
 
-	private ArrayList<CreditControlUnit> collectUsedUnits(UsedServiceUnitAvp[] usuAvps, ArrayList<CreditControlUnit> reservedCCUnits) {
+	private ArrayList<CreditControlUnit> collectUsedUnits(UsedServiceUnitAvp[] usuAvps, CreditControlInfo reservedInfo) {
 		if (tracer.isInfoEnabled()) {
 			tracer.info("[><] " + sidString + " Collecting " + usuAvps.length + " Used Units AVPs.");
 		}
+		// empty if nothing was reserved before for this service/rating group
+		ArrayList<CreditControlUnit> reservedCCUnits = reservedInfo != null ? reservedInfo.getCcUnits() : new ArrayList<CreditControlUnit>(0);
 		ArrayList<CreditControlUnit> usedCCUnits = new ArrayList<CreditControlUnit>();
 		for (UsedServiceUnitAvp usuAvp : usuAvps) {
 			for (int n = 0; n < CcUnitType.values().length; n++) {
@@ -1281,15 +1825,75 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		return s.substring(0, 1).toUpperCase() + s.substring(1).toLowerCase();
 	}
 
-	// 'sessionInfo' CMP field setter
-	public abstract void setSessionInfo(UserSessionInfo value);
+	/**
+	 * @return the session of this SBB entity, from the session store or CMP, or null if there's none yet
+	 */
+	private UserSessionInfo getSessionInfo() {
+		String sessionId = getSessionId();
+		if (sessionId == null) {
+			return null;
+		}
+		SessionStore store = sessionStore;
+		if (store != null) {
+			return store.get(sessionId);
+		}
+		// decoded once per transaction
+		if (sessionInfo == null) {
+			byte[] record = getSessionRecord();
+			if (record != null) {
+				try {
+					sessionInfo = UserSessionInfo.fromBytes(record);
+				}
+				catch (IOException e) {
+					tracer.severe("[xx] SID<" + sessionId + "> Unable to decode session from CMP. Dropping it.", e);
+					setSessionRecord(null);
+				}
+			}
+		}
+		return sessionInfo;
+	}
+
+	/**
+	 * Stores the session of this SBB entity, after changing it.
+	 */
+	private void setSessionInfo(UserSessionInfo sessionInfo) {
+		SessionStore store = sessionStore;
+		if (store != null) {
+			store.put(getSessionId(), sessionInfo);
+			return;
+		}
+		try {
+			setSessionRecord(sessionInfo.toBytes());
+			this.sessionInfo = sessionInfo;
+		}
+		catch (IOException e) {
+			// only possible with a broken encoding, not with a byte array
+			throw new SLEEException("Unable to encode session " + getSessionId() + ".", e);
+		}
+	}
+
+	/**
+	 * Forgets the session of this SBB entity.
+	 */
+	private void removeSessionInfo() {
+		SessionStore store = sessionStore;
+		if (store != null) {
+			store.remove(getSessionId());
+			return;
+		}
+		setSessionRecord(null);
+		this.sessionInfo = null;
+	}
+
+	// 'sessionId' CMP field setter
+	public abstract void setSessionId(String value);
 
-	// 'sessionInfo' CMP field getter
-	public abstract UserSessionInfo getSessionInfo();
+	// 'sessionId' CMP field getter
+	public abstract String getSessionId();
 
-	// 'timerID' CMP field setter
-	public abstract void setTimerID(TimerID value);
+	// 'sessionRecord' CMP field setter, the session encoded with UserSessionInfo.toBytes() when there's no session store
+	public abstract void setSessionRecord(byte[] value);
 
-	// 'timerID' CMP field getter
-	public abstract TimerID getTimerID();
+	// 'sessionRecord' CMP field getter
+	public abstract byte[] getSessionRecord();
 }
\ No newline at end of file
@@ -24,9 +24,14 @@ package org.mobicents.charging.server.account;
 
 import net.java.slee.resource.diameter.cca.events.avp.RequestedActionType;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Helper class for handling unit reservation
@@ -131,6 +136,14 @@ public class CreditControlInfo implements Serializable {
 	private String subscriptionId = "";
 
 	private ArrayList<CreditControlUnit> ccUnits;
+
+	// Multiple-Services-Credit-Control AVP this is for: its position in the request, Rating-Group and Service-Identifiers
+	private int msccIndex;
+	private long ratingGroup;
+	private long[] serviceIds;
+
+	// Validity-Time of the granted units, in seconds. 0 for the configured default
+	private long validityTime;
 	
 	private long eventTimestamp;
 	
@@ -259,6 +272,38 @@ public class CreditControlInfo implements Serializable {
 		this.ccUnits = ccUnits;
 	}
 
+	public int getMsccIndex() {
+		return msccIndex;
+	}
+
+	public void setMsccIndex(int msccIndex) {
+		this.msccIndex = msccIndex;
+	}
+
+	public long getRatingGroup() {
+		return ratingGroup;
+	}
+
+	public void setRatingGroup(long ratingGroup) {
+		this.ratingGroup = ratingGroup;
+	}
+
+	public long[] getServiceIds() {
+		return serviceIds;
+	}
+
+	public void setServiceIds(long[] serviceIds) {
+		this.serviceIds = serviceIds;
+	}
+
+	public long getValidityTime() {
+		return validityTime;
+	}
+
+	public void setValidityTime(long validityTime) {
+		this.validityTime = validityTime;
+	}
+
 	// Support for service specific values
 	HashMap<String, Object> serviceInfo = new HashMap<String, Object>();
 
@@ -278,6 +323,110 @@ public class CreditControlInfo implements Serializable {
 		return serviceInfo.get(name);
 	}
 
+	/**
+	 * Writes this Credit Control Info in a compact binary form, see {@link #readFrom(DataInput)}. Enumerated values are
+	 * written as their codes and absent values as a marker, so no Java serialization is involved.
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		writeString(out, sessionId);
+		out.writeInt(requestNumber);
+		out.writeInt(requestedAction != null ? requestedAction.getValue() : -1);
+		out.writeInt(subscriptionIdType != null ? subscriptionIdType.getValue() : -1);
+		writeString(out, subscriptionId);
+		out.writeInt(msccIndex);
+		out.writeLong(ratingGroup);
+		writeLongs(out, serviceIds);
+		out.writeLong(validityTime);
+		out.writeLong(eventTimestamp);
+		writeString(out, eventType);
+		out.writeBoolean(success);
+		out.writeLong(errorCode);
+		out.writeInt(errorCodeType != null ? errorCodeType.ordinal() : -1);
+		writeString(out, errorMessage);
+		out.writeLong(balanceBefore);
+		out.writeLong(balanceAfter);
+		out.writeInt(ccUnits != null ? ccUnits.size() : -1);
+		if (ccUnits != null) {
+			for (int i = 0; i < ccUnits.size(); i++) {
+				ccUnits.get(i).writeTo(out);
+			}
+		}
+		out.writeInt(serviceInfo.size());
+		for (Map.Entry<String, Object> info : serviceInfo.entrySet()) {
+			out.writeUTF(info.getKey());
+			writeString(out, info.getValue() != null ? info.getValue().toString() : null);
+		}
+	}
+
+	public static CreditControlInfo readFrom(DataInput in) throws IOException {
+		CreditControlInfo ccInfo = new CreditControlInfo();
+		ccInfo.sessionId = readString(in);
+		ccInfo.requestNumber = in.readInt();
+		int requestedAction = in.readInt();
+		ccInfo.requestedAction = requestedAction >= 0 ? RequestedActionType.fromInt(requestedAction) : null;
+		int subscriptionIdType = in.readInt();
+		ccInfo.subscriptionIdType = subscriptionIdType >= 0 ? net.java.slee.resource.diameter.cca.events.avp.SubscriptionIdType.fromInt(subscriptionIdType) : null;
+		ccInfo.subscriptionId = readString(in);
+		ccInfo.msccIndex = in.readInt();
+		ccInfo.ratingGroup = in.readLong();
+		ccInfo.serviceIds = readLongs(in);
+		ccInfo.validityTime = in.readLong();
+		ccInfo.eventTimestamp = in.readLong();
+		ccInfo.eventType = readString(in);
+		ccInfo.success = in.readBoolean();
+		ccInfo.errorCode = in.readLong();
+		int errorCodeType = in.readInt();
+		ccInfo.errorCodeType = errorCodeType >= 0 ? ErrorCodeType.values()[errorCodeType] : null;
+		ccInfo.errorMessage = readString(in);
+		ccInfo.balanceBefore = in.readLong();
+		ccInfo.balanceAfter = in.readLong();
+		int units = in.readInt();
+		if (units >= 0) {
+			ccInfo.ccUnits = new ArrayList<CreditControlUnit>(units);
+			for (int i = 0; i < units; i++) {
+				ccInfo.ccUnits.add(CreditControlUnit.readFrom(in));
+			}
+		}
+		int infos = in.readInt();
+		for (int i = 0; i < infos; i++) {
+			ccInfo.serviceInfo.put(in.readUTF(), readString(in));
+		}
+		return ccInfo;
+	}
+
+	private static void writeString(DataOutput out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	// the length (-1 for null) followed by the values
+	private static void writeLongs(DataOutput out, long[] values) throws IOException {
+		out.writeInt(values != null ? values.length : -1);
+		if (values != null) {
+			for (long value : values) {
+				out.writeLong(value);
+			}
+		}
+	}
+
+	private static long[] readLongs(DataInput in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		long[] values = new long[length];
+		for (int i = 0; i < length; i++) {
+			values[i] = in.readLong();
+		}
+		return values;
+	}
+
 	@Override
 	public String toString() {
 		String ret = "CreditControlInfo[Event-Timestamp=" + eventTimestamp +
@@ -286,6 +435,10 @@ public class CreditControlInfo implements Serializable {
 				"; Request-Number=" + requestNumber +
 				"; Subscription-ID-Type=" + subscriptionIdType +
 				"; Subscription-ID=" + subscriptionId +
+				"; MSCC=" + msccIndex +
+				"; Rating-Group=" + ratingGroup +
+				"; Service-IDs=" + Arrays.toString(serviceIds) +
+				"; Validity-Time=" + validityTime +
 				"; Balance-Before=" + balanceBefore +
 				"; Balance-After=" + balanceAfter +
 				"; Success=" + success;
@@ -22,6 +22,9 @@
 
 package org.mobicents.charging.server.account;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 
 import net.java.slee.resource.diameter.cca.events.avp.CcUnitType;
@@ -114,6 +117,34 @@ public class CreditControlUnit implements Serializable {
 		this.rateForService = rateForService;
 	}
 
+	/**
+	 * Writes this unit in a compact binary form, see {@link #readFrom(DataInput)}.
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeByte(unitType != null ? unitType.getValue() : -1);
+		out.writeLong(requestedUnits);
+		out.writeLong(requestedAmount);
+		out.writeLong(reservedUnits);
+		out.writeLong(reservedAmount);
+		out.writeLong(usedUnits);
+		out.writeLong(usedAmount);
+		out.writeDouble(rateForService);
+	}
+
+	public static CreditControlUnit readFrom(DataInput in) throws IOException {
+		CreditControlUnit ccUnit = new CreditControlUnit();
+		int unitType = in.readByte();
+		ccUnit.unitType = unitType >= 0 ? CcUnitType.fromInt(unitType) : null;
+		ccUnit.requestedUnits = in.readLong();
+		ccUnit.requestedAmount = in.readLong();
+		ccUnit.reservedUnits = in.readLong();
+		ccUnit.reservedAmount = in.readLong();
+		ccUnit.usedUnits = in.readLong();
+		ccUnit.usedAmount = in.readLong();
+		ccUnit.rateForService = in.readDouble();
+		return ccUnit;
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder("CreditControlUnits[UnitType=").append(unitType).
@@ -0,0 +1,70 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2013, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.cdr;
+
+/**
+ * Call Detail Record (CDR) contents, taken from the session when it ends so that it can be encoded later, away from
+ * the SLEE event thread. Fields are in the order they are written, see {@link CDRFormat}.
+ *
+ * @author ammendonca
+ */
+class CDR {
+
+	// indexes of the used units and amounts, by unit type
+	static final int INPUT_OCTETS = 0;
+	static final int MONEY = 1;
+	static final int OUTPUT_OCTETS = 2;
+	static final int SERVICE_SPECIFIC_UNITS = 3;
+	static final int TIME = 4;
+	static final int TOTAL_OCTETS = 5;
+	static final int UNIT_TYPES = 6;
+
+	// CDR index of each CC-Unit-Type value (TIME, MONEY, TOTAL-OCTETS, INPUT-OCTETS, OUTPUT-OCTETS, SERVICE-SPECIFIC-UNITS)
+	static final int[] BY_CC_UNIT_TYPE = {TIME, MONEY, TOTAL_OCTETS, INPUT_OCTETS, OUTPUT_OCTETS, SERVICE_SPECIFIC_UNITS};
+
+	long recordTime;
+	String originHost;
+	String originRealm;
+	String destinationHost;
+	String destinationRealm;
+	long[] serviceIds;
+	long sessionStartTime;
+	long currentTime;
+	long sessionDuration;
+	String sessionId;
+	int callingPartyType;
+	String callingPartyInfo;
+	int calledPartyType;
+	String calledPartyInfo;
+	long balanceBefore;
+	long balanceAfter;
+	final long[] usedUnits = new long[UNIT_TYPES];
+	final long[] usedAmounts = new long[UNIT_TYPES];
+	// the CC-Request-Type value: 2 for interim, 3 for final and 4 for event CDRs
+	int recordType;
+	int events;
+
+	// System.nanoTime() when handed to the CDR writer, to measure its latency
+	long queuedAt;
+
+}
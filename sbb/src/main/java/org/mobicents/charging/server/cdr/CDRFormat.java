@@ -0,0 +1,236 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2013, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.cdr;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * CDR file encodings.
+ *
+ * <ul>
+ * <li>TEXT: one line per CDR, with the fields delimited by ';' (the record time formatted as
+ * yyyy-MM-dd'T'HH:mm:ss.SSSZ).</li>
+ * <li>BER: one ASN.1 BER encoded SEQUENCE per CDR, with a context-specific tag per field, in {@link CDR} order from
+ * [0] to [29]. Numbers are INTEGERs, strings are UTF8Strings and are omitted when absent, and the service ids are a
+ * SEQUENCE OF INTEGER.</li>
+ * </ul>
+ *
+ * Encoders are not thread-safe, and are meant to be used by a single writer thread.
+ *
+ * @author ammendonca
+ */
+public enum CDRFormat {
+
+	TEXT(".cdr") {
+		@Override
+		Encoder newEncoder() {
+			return new Encoder() {
+				private final DateFormat df = newDateFormat();
+
+				public void encode(CDR cdr, ByteBuffer buffer) {
+					buffer.put(toText(cdr, df).getBytes(UTF8)).put((byte) '\n');
+				}
+			};
+		}
+	},
+
+	BER(".ber") {
+		@Override
+		Encoder newEncoder() {
+			return new Encoder() {
+				public void encode(CDR cdr, ByteBuffer buffer) {
+					encodeBer(cdr, buffer);
+				}
+			};
+		}
+	};
+
+	/**
+	 * Encodes CDRs into a buffer, which must have enough room for a whole CDR.
+	 */
+	interface Encoder {
+
+		void encode(CDR cdr, ByteBuffer buffer);
+
+	}
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String DELIMITER = ";";
+
+	private static final int TAG_SEQUENCE = 0x30;
+	private static final int TAG_INTEGER = 0x02;
+	private static final int TAG_CONTEXT = 0x80;
+	private static final int TAG_CONSTRUCTED = 0x20;
+
+	private final String extension;
+
+	private CDRFormat(String extension) {
+		this.extension = extension;
+	}
+
+	/**
+	 * @return the CDR file name extension
+	 */
+	public String getExtension() {
+		return extension;
+	}
+
+	abstract Encoder newEncoder();
+
+	static DateFormat newDateFormat() {
+		return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+	}
+
+	/**
+	 * Formats a CDR as a ';' delimited line, without the line terminator.
+	 */
+	static String toText(CDR cdr, DateFormat df) {
+		StringBuilder text = new StringBuilder(256);
+		text.append(df.format(new Date(cdr.recordTime))).append(DELIMITER);
+		text.append(cdr.originHost).append(DELIMITER);
+		text.append(cdr.originRealm).append(DELIMITER);
+		text.append(cdr.destinationHost).append(DELIMITER);
+		text.append(cdr.destinationRealm).append(DELIMITER);
+		text.append(Arrays.toString(cdr.serviceIds)).append(DELIMITER);
+		text.append(cdr.sessionStartTime).append(DELIMITER);
+		text.append(cdr.currentTime).append(DELIMITER);
+		text.append(cdr.sessionDuration).append(DELIMITER);
+		text.append(cdr.sessionId).append(DELIMITER);
+		text.append(cdr.callingPartyType).append(DELIMITER);
+		text.append(cdr.callingPartyInfo).append(DELIMITER);
+		text.append(cdr.calledPartyType).append(DELIMITER);
+		text.append(cdr.calledPartyInfo).append(DELIMITER);
+		text.append(cdr.balanceBefore).append(DELIMITER);
+		text.append(cdr.balanceAfter).append(DELIMITER);
+		for (int i = 0; i < CDR.UNIT_TYPES; i++) {
+			text.append(cdr.usedUnits[i]).append(DELIMITER);
+			text.append(cdr.usedAmounts[i]).append(DELIMITER);
+		}
+		text.append(cdr.recordType).append(DELIMITER);
+		text.append(cdr.events).append(DELIMITER);
+		return text.toString();
+	}
+
+	private static void encodeBer(CDR cdr, ByteBuffer buffer) {
+		// the SEQUENCE length is only known at the end, so reserve the longest (4 byte) length form and fill it in then
+		buffer.put((byte) TAG_SEQUENCE);
+		int lengthPosition = buffer.position();
+		buffer.position(lengthPosition + 4);
+		int start = buffer.position();
+
+		int tag = 0;
+		putInteger(buffer, TAG_CONTEXT | tag++, cdr.recordTime);
+		putString(buffer, TAG_CONTEXT | tag++, cdr.originHost);
+		putString(buffer, TAG_CONTEXT | tag++, cdr.originRealm);
+		putString(buffer, TAG_CONTEXT | tag++, cdr.destinationHost);
+		putString(buffer, TAG_CONTEXT | tag++, cdr.destinationRealm);
+		int serviceIdsTag = TAG_CONTEXT | TAG_CONSTRUCTED | tag++;
+		if (cdr.serviceIds != null) {
+			int length = 0;
+			for (long serviceId : cdr.serviceIds) {
+				length += 2 + integerLength(serviceId);
+			}
+			buffer.put((byte) serviceIdsTag);
+			putLength(buffer, length);
+			for (long serviceId : cdr.serviceIds) {
+				putInteger(buffer, TAG_INTEGER, serviceId);
+			}
+		}
+		putInteger(buffer, TAG_CONTEXT | tag++, cdr.sessionStartTime);
+		putInteger(buffer, TAG_CONTEXT | tag++, cdr.currentTime);
+		putInteger(buffer, TAG_CONTEXT | tag++, cdr.sessionDuration);
+		putString(buffer, TAG_CONTEXT | tag++, cdr.sessionId);
+		putInteger(buffer, TAG_CONTEXT | tag++, cdr.callingPartyType);
+		putString(buffer, TAG_CONTEXT | tag++, cdr.callingPartyInfo);
+		putInteger(buffer, TAG_CONTEXT | tag++, cdr.calledPartyType);
+		putString(buffer, TAG_CONTEXT | tag++, cdr.calledPartyInfo);
+		putInteger(buffer, TAG_CONTEXT | tag++, cdr.balanceBefore);
+		putInteger(buffer, TAG_CONTEXT | tag++, cdr.balanceAfter);
+		for (int i = 0; i < CDR.UNIT_TYPES; i++) {
+			putInteger(buffer, TAG_CONTEXT | tag++, cdr.usedUnits[i]);
+			putInteger(buffer, TAG_CONTEXT | tag++, cdr.usedAmounts[i]);
+		}
+		putInteger(buffer, TAG_CONTEXT | tag++, cdr.recordType);
+		putInteger(buffer, TAG_CONTEXT | tag++, cdr.events);
+
+		// long form length, 3 bytes
+		int length = buffer.position() - start;
+		buffer.put(lengthPosition, (byte) 0x83);
+		buffer.put(lengthPosition + 1, (byte) (length >>> 16));
+		buffer.put(lengthPosition + 2, (byte) (length >>> 8));
+		buffer.put(lengthPosition + 3, (byte) length);
+	}
+
+	private static int integerLength(long value) {
+		// minimal two's complement
+		int length = 8;
+		while (length > 1) {
+			long top = value >> ((length - 1) * 8 - 1);
+			if (top != 0 && top != -1) {
+				break;
+			}
+			length--;
+		}
+		return length;
+	}
+
+	private static void putInteger(ByteBuffer buffer, int tag, long value) {
+		int length = integerLength(value);
+		buffer.put((byte) tag);
+		buffer.put((byte) length);
+		for (int i = length - 1; i >= 0; i--) {
+			buffer.put((byte) (value >> (i * 8)));
+		}
+	}
+
+	private static void putString(ByteBuffer buffer, int tag, String value) {
+		if (value == null) {
+			return;
+		}
+		byte[] bytes = value.getBytes(UTF8);
+		buffer.put((byte) tag);
+		putLength(buffer, bytes.length);
+		buffer.put(bytes);
+	}
+
+	private static void putLength(ByteBuffer buffer, int length) {
+		if (length < 0x80) {
+			buffer.put((byte) length);
+		}
+		else if (length < 0x100) {
+			buffer.put((byte) 0x81).put((byte) length);
+		}
+		else if (length < 0x10000) {
+			buffer.put((byte) 0x82).put((byte) (length >>> 8)).put((byte) length);
+		}
+		else {
+			buffer.put((byte) 0x83).put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length);
+		}
+	}
+
+}
@@ -21,23 +21,21 @@
  */
 package org.mobicents.charging.server.cdr;
 
-import net.java.slee.resource.diameter.cca.events.avp.CcUnitType;
 import org.mobicents.charging.server.BaseSbb;
-import org.mobicents.charging.server.account.CreditControlInfo;
-import org.mobicents.charging.server.account.CreditControlUnit;
 import org.mobicents.charging.server.data.UserSessionInfo;
 import org.mobicents.slee.SbbContextExt;
 
+import javax.naming.Context;
+import javax.naming.InitialContext;
 import javax.slee.Sbb;
 import javax.slee.SbbContext;
 import javax.slee.facilities.Tracer;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Date;
+import java.io.File;
 
 /**
- * Call Detail Record (CDR) Generator SBB.
+ * Call Detail Record (CDR) Generator SBB. CDRs are handed to the {@link CDRWriter}, which writes them to files from its
+ * own thread, in the format set by the 'cdrFormat' env entry. If the CDR directory is not set CDRs are logged instead,
+ * and the 'cdrOverflowPolicy' env entry sets what to do when the writer is falling behind.
  *
  * @author ammendonca
  */
@@ -46,75 +44,89 @@ public abstract class CDRGeneratorSbb extends BaseSbb implements Sbb, CDRGenerat
 	private Tracer tracer;
 	private SbbContextExt sbbContextExt;
 
+	// null if CDRs are only logged
+	private static CDRWriter cdrWriter;
+	private static boolean cdrWriterLoaded;
+
 	public void setSbbContext(SbbContext context) {
 		this.sbbContextExt = (SbbContextExt) context;
 		this.tracer = sbbContextExt.getTracer("CS-CDRG");
 	}
 
-	public void unsetSbbContext() {
-		this.sbbContextExt = null;
-		this.tracer = null;
+	/**
+	 * Gets the CDR writer, opening it on first use since the service started, as pooled objects outlive a stop.
+	 */
+	private CDRWriter getCDRWriter() {
+		synchronized (CDRGeneratorSbb.class) {
+			if (!cdrWriterLoaded) {
+				cdrWriterLoaded = true;
+				cdrWriter = openCDRWriter();
+			}
+			return cdrWriter;
+		}
 	}
 
-	public void writeCDR(UserSessionInfo sessionInfo) {
-		// Let's sum up the total used units and total used amount for the CDR.
-		ArrayList<CreditControlInfo> reserv = sessionInfo.getReservations();
-
-		long balanceBefore = 0;
-		long balanceAfter = 0;
-		long totalUsedUnitsInput = 0;
-		long totalUsedUnitsMoney = 0;
-		long totalUsedUnitsOutput = 0;
-		long totalUsedUnitsServiceSpecific = 0;
-		long totalUsedUnitsTime = 0;
-		long totalUsedUnitsTotal = 0;
-		long totalUsedAmountInput = 0;
-		long totalUsedAmountMoney = 0;
-		long totalUsedAmountOutput = 0;
-		long totalUsedAmountServiceSpecific = 0;
-		long totalUsedAmountTime = 0;
-		long totalUsedAmountTotal = 0;
-
-		for (int i = 0; i < reserv.size(); i++) {
-			CreditControlInfo ccI = reserv.get(i);
+	/**
+	 * Stops the CDR writer, writing the CDRs already handed over. It is opened again when the service restarts.
+	 */
+	public static void stopCDRWriter() {
+		synchronized (CDRGeneratorSbb.class) {
+			cdrWriter = null;
+			cdrWriterLoaded = false;
+		}
+		CDRWriter.stop();
+	}
 
-			ArrayList<CreditControlUnit> ccUnits = ccI.getCcUnits();
-			for (int j = 0; j < ccUnits.size(); j++) {
-				CreditControlUnit ccUnit = ccUnits.get(j);
-				if (ccUnit.getUnitType() == CcUnitType.INPUT_OCTETS) {
-					totalUsedUnitsInput += ccUnit.getUsedUnits();
-					totalUsedAmountInput += ccUnit.getUsedAmount();
-				}
-				if (ccUnit.getUnitType() == CcUnitType.MONEY) {
-					totalUsedUnitsMoney += ccUnit.getUsedUnits();
-					totalUsedAmountMoney += ccUnit.getUsedAmount();
-				}
-				if (ccUnit.getUnitType()==CcUnitType.OUTPUT_OCTETS) {
-					totalUsedUnitsOutput += ccUnit.getUsedUnits();
-					totalUsedAmountOutput += ccUnit.getUsedAmount();
-				}
-				if (ccUnit.getUnitType()==CcUnitType.SERVICE_SPECIFIC_UNITS) {
-					totalUsedUnitsServiceSpecific += ccUnit.getUsedUnits();
-					totalUsedAmountServiceSpecific += ccUnit.getUsedAmount();
-				}
-				if (ccUnit.getUnitType()==CcUnitType.TIME) {
-					totalUsedUnitsTime += ccUnit.getUsedUnits();
-					totalUsedAmountTime += ccUnit.getUsedAmount();
-				}
-				if (ccUnit.getUnitType()==CcUnitType.TOTAL_OCTETS) {
-					totalUsedUnitsTotal += ccUnit.getUsedUnits();
-					totalUsedAmountTotal += ccUnit.getUsedAmount();
-				}
-			}
+	private CDRWriter openCDRWriter() {
+		Context ctx = null;
+		try {
+			ctx = (Context) new InitialContext().lookup("java:comp/env");
+		}
+		catch (Exception e) {
+			tracer.warning("[!!] Unable to read env entries. Using defaults.");
+		}
+		String dir = (String) loadEnvEntry(ctx, "cdrDir", "", tracer);
+		if (dir == null || dir.trim().length() == 0) {
+			tracer.info("[--] CDR directory not set. CDRs will be logged.");
+			return null;
+		}
 
-			if (i == 0) {
-				balanceBefore = ccI.getBalanceBefore();
-			}
-			if (i == reserv.size() - 1) {
-				balanceAfter = ccI.getBalanceAfter();
+		File directory = new File(dir.trim());
+		if (!directory.isAbsolute()) {
+			directory = new File(System.getProperty("jboss.server.data.dir", System.getProperty("java.io.tmpdir")), dir.trim());
+		}
+		try {
+			CDRFormat format = CDRFormat.valueOf(((String) loadEnvEntry(ctx, "cdrFormat", "TEXT", tracer)).trim().toUpperCase());
+			CDRWriter writer = CDRWriter.getInstance(directory, format,
+					(Long) loadEnvEntry(ctx, "cdrMaxFileSize", 10485760L, tracer),
+					(Long) loadEnvEntry(ctx, "cdrRotateInterval", 3600000L, tracer),
+					(Integer) loadEnvEntry(ctx, "cdrQueueSize", 16384, tracer),
+					CDRWriter.OverflowPolicy.valueOf(((String) loadEnvEntry(ctx, "cdrOverflowPolicy", "SPILL", tracer)).trim().toUpperCase()), tracer);
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[--] Writing " + format + " CDRs to " + directory + ".");
 			}
+			return writer;
 		}
+		catch (Exception e) {
+			tracer.severe("[xx] Unable to write CDRs to " + directory + ". CDRs will be logged.", e);
+			return null;
+		}
+	}
 
+	public void unsetSbbContext() {
+		this.sbbContextExt = null;
+		this.tracer = null;
+	}
+
+	public void writeCDR(UserSessionInfo sessionInfo) {
+		// The totals are kept by the session as reservations are added, so there is nothing to sum up here.
+		CDR cdr = new CDR();
+		for (int unitType = 0; unitType < UserSessionInfo.UNIT_TYPES; unitType++) {
+			cdr.usedUnits[CDR.BY_CC_UNIT_TYPE[unitType]] = sessionInfo.getUsedUnits(unitType);
+			cdr.usedAmounts[CDR.BY_CC_UNIT_TYPE[unitType]] = sessionInfo.getUsedAmount(unitType);
+		}
+		cdr.balanceBefore = sessionInfo.getBalanceBefore();
+		cdr.balanceAfter = sessionInfo.getBalanceAfter();
 
 		/**
 		 * Date Time of record (Format: yyyy-MM-dd'T'HH:mm:ss.SSSZ)
@@ -145,57 +157,43 @@ public abstract class CDRGeneratorSbb extends BaseSbb implements Sbb, CDRGenerat
 		 * Total Time Amount Charged
 		 * Total Total Octets Units Used
 		 * Total Total Octets Amount Charged
-		 * Event Type - Create/Interim/Terminate/Event (CDR's are only generated at Terminate for now)
+		 * Event Type - CC-Request-Type of the request: Interim (2), Terminate (3) or Event (4)
 		 * Number of events in this session
 		 * Termination Cause
 		 **/
-		StringBuffer cdr = new StringBuffer();
-		String DELIMITER = ";";
-
-		SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
-		long elapsed = System.currentTimeMillis()-sessionInfo.getSessionStartTime();
-
 		try {
-			cdr.append(df.format(new Date())).append(DELIMITER);
-			cdr.append(sessionInfo.getCcr().getOriginHost()).append(DELIMITER);
-			cdr.append(sessionInfo.getCcr().getOriginRealm()).append(DELIMITER);
-			cdr.append(sessionInfo.getCcr().getDestinationHost()).append(DELIMITER);
-			cdr.append(sessionInfo.getCcr().getDestinationRealm()).append(DELIMITER);
-			cdr.append(Arrays.toString(sessionInfo.getServiceIds())).append(DELIMITER);
-			cdr.append(sessionInfo.getSessionStartTime()).append(DELIMITER);
-			cdr.append(System.currentTimeMillis()).append(DELIMITER);
-			cdr.append(elapsed).append(DELIMITER);
-			cdr.append(sessionInfo.getCcr().getSessionId()).append(DELIMITER);
-			cdr.append(sessionInfo.getEndUserType().getValue()).append(DELIMITER);
-			cdr.append(sessionInfo.getEndUserId()).append(DELIMITER);
+			long now = System.currentTimeMillis();
+			cdr.recordTime = now;
+			cdr.originHost = sessionInfo.getRequest().getOriginHost();
+			cdr.originRealm = sessionInfo.getRequest().getOriginRealm();
+			cdr.destinationHost = sessionInfo.getRequest().getDestinationHost();
+			cdr.destinationRealm = sessionInfo.getRequest().getDestinationRealm();
+			cdr.serviceIds = sessionInfo.getServiceIds() != null ? sessionInfo.getServiceIds().clone() : null;
+			cdr.sessionStartTime = sessionInfo.getSessionStartTime();
+			cdr.currentTime = now;
+			cdr.sessionDuration = now - sessionInfo.getSessionStartTime();
+			cdr.sessionId = sessionInfo.getSessionId();
+			cdr.callingPartyType = sessionInfo.getEndUserType().getValue();
+			cdr.callingPartyInfo = sessionInfo.getEndUserId();
 			// TODO: Get Destination Subscription ID Type and Value if available
-			cdr.append(sessionInfo.getEndUserType().getValue()).append(DELIMITER);
-			cdr.append(sessionInfo.getEndUserId()).append(DELIMITER);
-			cdr.append(balanceBefore).append(DELIMITER);
-			cdr.append(balanceAfter).append(DELIMITER);
-			cdr.append(totalUsedUnitsInput).append(DELIMITER);
-			cdr.append(totalUsedAmountInput).append(DELIMITER);
-			cdr.append(totalUsedUnitsMoney).append(DELIMITER);
-			cdr.append(totalUsedAmountMoney).append(DELIMITER);
-			cdr.append(totalUsedUnitsOutput).append(DELIMITER);
-			cdr.append(totalUsedAmountOutput).append(DELIMITER);
-			cdr.append(totalUsedUnitsServiceSpecific).append(DELIMITER);
-			cdr.append(totalUsedAmountServiceSpecific).append(DELIMITER);
-			cdr.append(totalUsedUnitsTime).append(DELIMITER);
-			cdr.append(totalUsedAmountTime).append(DELIMITER);
-			cdr.append(totalUsedUnitsTotal).append(DELIMITER);
-			cdr.append(totalUsedAmountTotal).append(DELIMITER);
-			// FIXME? cdr.append(storedCCR.getCcRequestType().getValue()).append(DELIMITER);
-			cdr.append(sessionInfo.getReservations().size()).append(DELIMITER);
-			// FIXME? cdr.append(storedCCR.getTerminationCause()).append(DELIMITER);
+			cdr.calledPartyType = sessionInfo.getEndUserType().getValue();
+			cdr.calledPartyInfo = sessionInfo.getEndUserId();
+			cdr.recordType = sessionInfo.getRequest().getRequestType().getValue();
+			cdr.events = sessionInfo.getReservationCount();
+			// FIXME? Termination Cause: not kept in the session request info
 		}
 		catch (Exception e) {
 			tracer.warning("Failure while trying to generate CDR");
 		}
 
-		// TODO: Use a different logger.
-		if (tracer.isInfoEnabled()) {
-			tracer.info(cdr.toString());
+		CDRWriter cdrWriter = getCDRWriter();
+		if (cdrWriter == null || !cdrWriter.write(cdr)) {
+			if (cdrWriter != null) {
+				tracer.warning("[!!] CDR writer is falling behind, logging CDR instead. " + cdrWriter);
+			}
+			if (tracer.isInfoEnabled()) {
+				tracer.info(CDRFormat.toText(cdr, CDRFormat.newDateFormat()));
+			}
 		}
 	}
 
@@ -0,0 +1,114 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2013, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.cdr;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded ring buffer of CDRs, with many producers (the SLEE event threads) and a single consumer (the CDR writer
+ * thread). There are no locks.
+ *
+ * A producer claims a sequence number with a CAS on the tail, stores the CDR in its slot and then publishes it by
+ * setting the slot sequence. The consumer takes published slots in order, and frees them by moving the head, which
+ * producers check to know there is room.
+ *
+ * @author ammendonca
+ */
+class CDRRingBuffer {
+
+	private final CDR[] slots;
+	// sequence + 1 of the CDR published in each slot
+	private final AtomicLongArray published;
+	private final int mask;
+
+	private final AtomicLong tail = new AtomicLong();
+	private volatile long head;
+
+	/**
+	 * @param capacity the minimum capacity, rounded up to a power of two
+	 */
+	CDRRingBuffer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		slots = new CDR[size];
+		published = new AtomicLongArray(size);
+		mask = size - 1;
+	}
+
+	/**
+	 * Adds a CDR, without blocking. May be called by any thread.
+	 *
+	 * @return false if the ring buffer is full
+	 */
+	boolean offer(CDR cdr) {
+		long sequence;
+		do {
+			sequence = tail.get();
+			if (sequence - head >= slots.length) {
+				return false;
+			}
+		}
+		while (!tail.compareAndSet(sequence, sequence + 1));
+
+		int index = (int) sequence & mask;
+		slots[index] = cdr;
+		published.lazySet(index, sequence + 1);
+		return true;
+	}
+
+	/**
+	 * Takes all the CDRs published so far, in order. Must only be called by the consumer thread.
+	 *
+	 * @return the number of CDRs taken
+	 */
+	int drainTo(List<CDR> batch) {
+		long sequence = head;
+		int count = 0;
+		while (true) {
+			int index = (int) sequence & mask;
+			if (published.get(index) != sequence + 1) {
+				break;
+			}
+			batch.add(slots[index]);
+			slots[index] = null;
+			sequence++;
+			count++;
+		}
+		// frees the slots for the producers
+		head = sequence;
+		return count;
+	}
+
+	/**
+	 * @return the number of CDRs claimed and not yet taken
+	 */
+	int size() {
+		return (int) (tail.get() - head);
+	}
+
+	int capacity() {
+		return slots.length;
+	}
+
+}
@@ -0,0 +1,492 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2013, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.cdr;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.slee.facilities.Tracer;
+
+/**
+ * Writes CDRs to files, from a dedicated thread.
+ *
+ * CDRs are handed over by the SLEE event threads through a {@link CDRRingBuffer}. The writer thread takes all the
+ * published CDRs at once, encodes them into a direct buffer, writes it to the file channel and forces it to disk, so a
+ * burst of CDRs costs a single write and a single force. What happens when the ring buffer is full depends on the
+ * {@link OverflowPolicy}.
+ *
+ * The current file is named 'cdr-yyyyMMdd-HHmmss-SSS-n.ext.part', and the '.part' suffix is removed when it is rotated,
+ * once it reaches the maximum size or has been open for the rotate interval. Only complete files have the final name.
+ *
+ * If a batch fails to be written (eg, disk full) its CDRs are spilled, or logged if that fails too, and a new file is
+ * started. Some of them may then be found both in the failed file and in the spill file. On {@link #stop()} the CDRs
+ * already handed over are written and the current file is completed.
+ *
+ * The queue depth and the write latency (from hand over until forced to disk) are measured, see {@link #toString()}.
+ *
+ * @author ammendonca
+ */
+public class CDRWriter implements Runnable {
+
+	/**
+	 * What to do with a CDR when the ring buffer is full.
+	 */
+	public enum OverflowPolicy {
+		/** wait for room in the ring buffer, holding the event thread */
+		BLOCK,
+		/** discard the CDR, counting it */
+		DROP,
+		/** append the CDR to a spill file, from the event thread */
+		SPILL,
+		/** leave the CDR to the caller, which logs it */
+		LOG
+	}
+
+	private static final int BUFFER_SIZE = 256 * 1024;
+	// a buffer with less room than this is written before encoding more CDRs
+	private static final int MAX_CDR_SIZE = 16 * 1024;
+	private static final long POLL_INTERVAL = TimeUnit.MILLISECONDS.toNanos(1000);
+	private static final long BLOCK_INTERVAL = TimeUnit.MICROSECONDS.toNanos(100);
+	private static final long STOP_TIMEOUT = 10000;
+
+	private static CDRWriter instance;
+
+	private final File directory;
+	private final CDRFormat format;
+	private final CDRFormat.Encoder encoder;
+	private final long maxFileSize;
+	private final long rotateInterval;
+	private final OverflowPolicy overflowPolicy;
+	private final Tracer tracer;
+
+	private final CDRRingBuffer ring;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final SimpleDateFormat fileNameFormat = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS");
+
+	private Thread thread;
+	private volatile boolean waiting;
+	private volatile boolean stopping;
+
+	private File file;
+	private FileChannel channel;
+	private long fileSize;
+	private long fileOpened;
+
+	// spill file, written by the event threads holding the spill lock
+	private final Object spillLock = new Object();
+	private CDRFormat.Encoder spillEncoder;
+	private ByteBuffer spillBuffer;
+	private File spillFile;
+	private FileChannel spillChannel;
+
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong spilled = new AtomicLong();
+	private final AtomicLong blocked = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong files = new AtomicLong();
+
+	// only updated by the writer thread
+	private volatile int maxQueueDepth;
+	private volatile long totalLatency;
+	private volatile long maxLatency;
+
+	/**
+	 * Gets the CDR writer, creating and starting it on first use. Later calls get the same writer, regardless of the
+	 * settings passed.
+	 *
+	 * @param directory where to write the CDR files
+	 * @param format the CDR encoding
+	 * @param maxFileSize size (in bytes) after which a CDR file is rotated
+	 * @param rotateInterval time (in ms) after which a CDR file is rotated
+	 * @param queueSize maximum number of CDRs waiting to be written, rounded up to a power of two
+	 * @param overflowPolicy what to do with CDRs when there are already queueSize waiting
+	 * @param tracer where to log failures
+	 */
+	public static synchronized CDRWriter getInstance(File directory, CDRFormat format, long maxFileSize, long rotateInterval, int queueSize, OverflowPolicy overflowPolicy, Tracer tracer) throws IOException {
+		if (instance == null) {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Unable to create CDR directory " + directory);
+			}
+			instance = new CDRWriter(directory, format, maxFileSize, rotateInterval, queueSize, overflowPolicy, tracer);
+			instance.thread = new Thread(instance, "CS-CDRWriter");
+			instance.thread.setDaemon(true);
+			instance.thread.start();
+		}
+		return instance;
+	}
+
+	/**
+	 * Stops the CDR writer, if started, once the CDRs already handed over are written, and completes the current file.
+	 * Waits for it up to a timeout. A later {@link #getInstance} starts a new writer.
+	 */
+	public static synchronized void stop() {
+		if (instance == null) {
+			return;
+		}
+		CDRWriter writer = instance;
+		instance = null;
+		writer.stopping = true;
+		LockSupport.unpark(writer.thread);
+		try {
+			writer.thread.join(STOP_TIMEOUT);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (writer.thread.isAlive()) {
+			writer.tracer.warning("[!!] CDR writer did not stop in " + STOP_TIMEOUT + "ms. " + writer);
+		}
+		else if (writer.tracer.isInfoEnabled()) {
+			writer.tracer.info("[--] CDR writer stopped. " + writer);
+		}
+	}
+
+	private CDRWriter(File directory, CDRFormat format, long maxFileSize, long rotateInterval, int queueSize, OverflowPolicy overflowPolicy, Tracer tracer) {
+		this.directory = directory;
+		this.format = format;
+		this.encoder = format.newEncoder();
+		this.maxFileSize = maxFileSize;
+		this.rotateInterval = rotateInterval;
+		this.overflowPolicy = overflowPolicy;
+		this.tracer = tracer;
+		this.ring = new CDRRingBuffer(queueSize);
+	}
+
+	/**
+	 * Hands a CDR over to be written. Only blocks with {@link OverflowPolicy#BLOCK}, while the ring buffer is full.
+	 *
+	 * @return false if the CDR was not taken, with {@link OverflowPolicy#LOG} or if spilling failed
+	 */
+	boolean write(CDR cdr) {
+		cdr.queuedAt = System.nanoTime();
+		if (!ring.offer(cdr)) {
+			switch (overflowPolicy) {
+			case BLOCK:
+				blocked.incrementAndGet();
+				do {
+					LockSupport.parkNanos(BLOCK_INTERVAL);
+				}
+				while (!ring.offer(cdr));
+				break;
+			case DROP:
+				dropped.incrementAndGet();
+				return true;
+			case SPILL:
+				return spill(cdr);
+			default:
+				rejected.incrementAndGet();
+				return false;
+			}
+		}
+		if (waiting) {
+			LockSupport.unpark(thread);
+		}
+		return true;
+	}
+
+	public void run() {
+		ArrayList<CDR> batch = new ArrayList<CDR>(ring.capacity());
+		while (true) {
+			try {
+				// read before draining, so that nothing handed over before stopping is left behind
+				boolean stop = stopping;
+				int depth = ring.size();
+				if (depth > maxQueueDepth) {
+					maxQueueDepth = depth;
+				}
+				if (ring.drainTo(batch) > 0) {
+					writeBatch(batch);
+					batch.clear();
+				}
+				else if (stop) {
+					break;
+				}
+				else {
+					// producers unpark the writer if they see it waiting, so check again after saying so
+					waiting = true;
+					if (ring.size() == 0) {
+						LockSupport.parkNanos(POLL_INTERVAL);
+					}
+					waiting = false;
+					if (Thread.interrupted()) {
+						stopping = true;
+					}
+				}
+				if (channel != null && System.currentTimeMillis() - fileOpened >= rotateInterval) {
+					rotate();
+				}
+			}
+			catch (Throwable t) {
+				tracer.severe("[xx] Failed writing " + batch.size() + " CDR(s) to " + file + ". Spilling them and starting a new CDR file.", t);
+				buffer.clear();
+				try {
+					rotate();
+				}
+				catch (Throwable t2) {
+					tracer.severe("[xx] Failed closing CDR file " + file + ".", t2);
+					channel = null;
+				}
+				// not known to be on disk, so none is left out
+				recover(batch);
+				batch.clear();
+			}
+		}
+
+		try {
+			rotate();
+		}
+		catch (Throwable t) {
+			tracer.severe("[xx] Failed completing CDR file " + file + " on stop.", t);
+		}
+	}
+
+	/**
+	 * Spills the CDRs of a failed batch, or logs them if spilling fails too.
+	 */
+	private void recover(ArrayList<CDR> batch) {
+		DateFormat df = null;
+		for (CDR cdr : batch) {
+			failed.incrementAndGet();
+			if (!spill(cdr)) {
+				if (df == null) {
+					df = CDRFormat.newDateFormat();
+				}
+				tracer.severe("[xx] Unwritten CDR: " + CDRFormat.toText(cdr, df));
+			}
+		}
+	}
+
+	private void writeBatch(ArrayList<CDR> batch) throws IOException {
+		if (channel == null) {
+			open();
+		}
+		int count = 0;
+		for (CDR cdr : batch) {
+			if (buffer.remaining() < MAX_CDR_SIZE) {
+				flush();
+			}
+			int position = buffer.position();
+			try {
+				encoder.encode(cdr, buffer);
+			}
+			catch (BufferOverflowException e) {
+				buffer.position(position);
+				tracer.severe("[xx] CDR for session " + cdr.sessionId + " is too large to be written. Dropping it.");
+				dropped.incrementAndGet();
+				continue;
+			}
+			count++;
+			if (fileSize + buffer.position() >= maxFileSize) {
+				flush();
+				rotate();
+				open();
+			}
+		}
+		flush();
+		// group flush, a single force for the whole batch
+		channel.force(false);
+
+		long now = System.nanoTime();
+		long latency = 0;
+		for (CDR cdr : batch) {
+			latency += now - cdr.queuedAt;
+		}
+		totalLatency += latency;
+		// the first CDR waited the longest
+		if (now - batch.get(0).queuedAt > maxLatency) {
+			maxLatency = now - batch.get(0).queuedAt;
+		}
+		written.addAndGet(count);
+	}
+
+	private void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			fileSize += channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	private File newFile(String prefix, long time) {
+		// the sequence keeps names unique when rotating more than once in the same millisecond
+		synchronized (fileNameFormat) {
+			return new File(directory, prefix + fileNameFormat.format(new Date(time)) + "-" + files.getAndIncrement() + format.getExtension() + ".part");
+		}
+	}
+
+	private void open() throws IOException {
+		fileOpened = System.currentTimeMillis();
+		file = newFile("cdr-", fileOpened);
+		channel = new FileOutputStream(file, true).getChannel();
+		fileSize = channel.size();
+	}
+
+	private void rotate() throws IOException {
+		// the spill file, if any, is completed along with the current file
+		synchronized (spillLock) {
+			if (spillChannel != null) {
+				FileChannel closing = spillChannel;
+				spillChannel = null;
+				close(closing, spillFile);
+			}
+		}
+		if (channel == null) {
+			return;
+		}
+		FileChannel closing = channel;
+		channel = null;
+		File complete = close(closing, file);
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[--] Completed CDR file " + complete.getName() + ". " + this);
+		}
+	}
+
+	private File close(FileChannel closing, File part) throws IOException {
+		closing.force(false);
+		closing.close();
+		String name = part.getName();
+		File complete = new File(directory, name.substring(0, name.length() - ".part".length()));
+		if (!part.renameTo(complete)) {
+			tracer.warning("[!!] Unable to rename CDR file " + part + " to " + complete + ".");
+			return part;
+		}
+		return complete;
+	}
+
+	/**
+	 * Appends a CDR to the spill file, from the calling thread. The spill file is only written to the OS, and is
+	 * forced when completed.
+	 */
+	private boolean spill(CDR cdr) {
+		synchronized (spillLock) {
+			try {
+				if (spillChannel == null) {
+					spillEncoder = format.newEncoder();
+					spillBuffer = ByteBuffer.allocate(MAX_CDR_SIZE);
+					spillFile = newFile("cdr-spill-", System.currentTimeMillis());
+					spillChannel = new FileOutputStream(spillFile, true).getChannel();
+				}
+				spillBuffer.clear();
+				spillEncoder.encode(cdr, spillBuffer);
+				spillBuffer.flip();
+				while (spillBuffer.hasRemaining()) {
+					spillChannel.write(spillBuffer);
+				}
+				spilled.incrementAndGet();
+				return true;
+			}
+			catch (Exception e) {
+				tracer.severe("[xx] Failed spilling CDR for session " + cdr.sessionId + " to " + spillFile + ".", e);
+				rejected.incrementAndGet();
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of CDRs waiting to be written
+	 */
+	public int getQueueDepth() {
+		return ring.size();
+	}
+
+	/**
+	 * @return the highest number of CDRs seen waiting to be written
+	 */
+	public int getMaxQueueDepth() {
+		return maxQueueDepth;
+	}
+
+	/**
+	 * @return the average time (in microseconds) from hand over until forced to disk
+	 */
+	public long getAverageLatency() {
+		long count = written.get();
+		return count > 0 ? TimeUnit.NANOSECONDS.toMicros(totalLatency / count) : 0;
+	}
+
+	/**
+	 * @return the highest time (in microseconds) from hand over until forced to disk
+	 */
+	public long getMaxLatency() {
+		return TimeUnit.NANOSECONDS.toMicros(maxLatency);
+	}
+
+	public long getWritten() {
+		return written.get();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public long getSpilled() {
+		return spilled.get();
+	}
+
+	/**
+	 * @return the number of times an event thread had to wait for room in the ring buffer
+	 */
+	public long getBlocked() {
+		return blocked.get();
+	}
+
+	/**
+	 * @return the number of CDRs left to the caller
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * @return the number of CDRs in batches that failed to be written, which were spilled or logged instead
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	public long getFiles() {
+		return files.get();
+	}
+
+	@Override
+	public String toString() {
+		return "CDRWriter[directory=" + directory + "; format=" + format + "; overflow=" + overflowPolicy + "; queued=" + getQueueDepth() + "/" + ring.capacity() + "; maxQueued=" + maxQueueDepth
+				+ "; written=" + written.get() + "; avgLatency=" + getAverageLatency() + "us; maxLatency=" + getMaxLatency() + "us; dropped=" + dropped.get() + "; spilled=" + spilled.get()
+				+ "; blocked=" + blocked.get() + "; rejected=" + rejected.get() + "; failed=" + failed.get() + "; files=" + files.get() + "]";
+	}
+
+}
@@ -0,0 +1,162 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2013, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.data;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Date;
+
+import net.java.slee.resource.diameter.cca.events.avp.CcRequestType;
+import net.java.slee.resource.diameter.cca.events.avp.MultipleServicesCreditControlAvp;
+import net.java.slee.resource.diameter.ro.events.RoCreditControlRequest;
+
+/**
+ * The few fields of a Credit-Control-Request needed after it has been received, to answer it, rate it and write its
+ * CDR, so that the request itself (with all its AVPs) is not kept in the session.
+ *
+ * @author ammendonca
+ */
+public class CreditControlRequestInfo implements Serializable {
+
+	private static final long serialVersionUID = 4630919265043727166L;
+
+	private CcRequestType requestType;
+	private long requestNumber;
+	private long eventTimestamp;
+
+	private String originHost;
+	private String originRealm;
+	private String destinationHost;
+	private String destinationRealm;
+
+	// number of Multiple-Services-Credit-Control AVPs in the request, one answer MSCC is sent for each
+	private int msccCount;
+
+	private CreditControlRequestInfo() {
+	}
+
+	public CreditControlRequestInfo(RoCreditControlRequest ccr) {
+		this.requestType = ccr.getCcRequestType();
+		this.requestNumber = ccr.getCcRequestNumber();
+		Date eventTimestamp = ccr.getEventTimestamp();
+		this.eventTimestamp = eventTimestamp != null ? eventTimestamp.getTime() : System.currentTimeMillis();
+		this.originHost = toString(ccr.getOriginHost());
+		this.originRealm = toString(ccr.getOriginRealm());
+		this.destinationHost = toString(ccr.getDestinationHost());
+		this.destinationRealm = toString(ccr.getDestinationRealm());
+		MultipleServicesCreditControlAvp[] msccs = ccr.getMultipleServicesCreditControls();
+		this.msccCount = msccs != null ? msccs.length : 0;
+	}
+
+	public CcRequestType getRequestType() {
+		return requestType;
+	}
+
+	public long getRequestNumber() {
+		return requestNumber;
+	}
+
+	/**
+	 * @return the Event-Timestamp of the request, or when it was received if absent
+	 */
+	public long getEventTimestamp() {
+		return eventTimestamp;
+	}
+
+	public String getOriginHost() {
+		return originHost;
+	}
+
+	public String getOriginRealm() {
+		return originRealm;
+	}
+
+	public String getDestinationHost() {
+		return destinationHost;
+	}
+
+	public String getDestinationRealm() {
+		return destinationRealm;
+	}
+
+	public int getMsccCount() {
+		return msccCount;
+	}
+
+	/**
+	 * Writes the request fields in a compact binary form, see {@link #readFrom(DataInput)}.
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeByte(requestType.getValue());
+		out.writeLong(requestNumber);
+		out.writeLong(eventTimestamp);
+		writeString(out, originHost);
+		writeString(out, originRealm);
+		writeString(out, destinationHost);
+		writeString(out, destinationRealm);
+		out.writeInt(msccCount);
+	}
+
+	public static CreditControlRequestInfo readFrom(DataInput in) throws IOException {
+		CreditControlRequestInfo request = new CreditControlRequestInfo();
+		request.requestType = CcRequestType.fromInt(in.readByte());
+		request.requestNumber = in.readLong();
+		request.eventTimestamp = in.readLong();
+		request.originHost = readString(in);
+		request.originRealm = readString(in);
+		request.destinationHost = readString(in);
+		request.destinationRealm = readString(in);
+		request.msccCount = in.readInt();
+		return request;
+	}
+
+	private static void writeString(DataOutput out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static String toString(Object value) {
+		return value != null ? value.toString() : null;
+	}
+
+	@Override
+	public String toString() {
+		return "CreditControlRequestInfo[Request-Type=" + requestType +
+			"; Request-Number=" + requestNumber +
+			"; Event-Timestamp=" + eventTimestamp +
+			"; Origin-Host=" + originHost +
+			"; Origin-Realm=" + originRealm +
+			"; Destination-Host=" + destinationHost +
+			"; Destination-Realm=" + destinationRealm +
+			"; MSCCs=" + msccCount + "]";
+	}
+
+}
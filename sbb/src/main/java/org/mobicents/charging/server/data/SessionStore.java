@@ -0,0 +1,67 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2013, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.data;
+
+/**
+ * Store of the user session information, keyed by Diameter Session-Id. Shared by all the Root SBB entities, so that
+ * the session is kept as plain objects instead of being encoded into CMP on every change. Opt-in: unlike CMP, stores
+ * are not transactional, and only as available as the backend makes them.
+ *
+ * Backends need a public constructor taking the number of shards (int), so they can be picked by configuration.
+ * {@link org.mobicents.charging.server.data.session.LocalSessionStore} keeps the sessions on this node only. A backend
+ * replicating them to other nodes (eg, so a node taking over after a failover has the last reservations and running
+ * totals) can wrap it: serve reads from the local copy, and send every put and remove to the other nodes, encoding the
+ * session with {@link UserSessionInfo#toBytes()} and decoding it there with {@link UserSessionInfo#fromBytes(byte[])}.
+ *
+ * @author ammendonca
+ */
+public interface SessionStore {
+
+	/**
+	 * @param sessionId the Diameter Session-Id
+	 * @return the session, or null if not present
+	 */
+	public UserSessionInfo get(String sessionId);
+
+	/**
+	 * Stores the session, replacing any previous one. Must be called after the session is changed, as backends may
+	 * keep a copy of it.
+	 *
+	 * @param sessionId the Diameter Session-Id
+	 * @param sessionInfo the session
+	 */
+	public void put(String sessionId, UserSessionInfo sessionInfo);
+
+	/**
+	 * Removes the session, once it has ended.
+	 *
+	 * @param sessionId the Diameter Session-Id
+	 */
+	public void remove(String sessionId);
+
+	/**
+	 * @return the number of sessions in the store
+	 */
+	public int size();
+
+}
@@ -22,17 +22,26 @@
 
 package org.mobicents.charging.server.data;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 
 import net.java.slee.resource.diameter.cca.events.avp.SubscriptionIdType;
-import net.java.slee.resource.diameter.ro.events.RoCreditControlRequest;
 
 import org.mobicents.charging.server.account.CreditControlInfo;
+import org.mobicents.charging.server.account.CreditControlUnit;
 
 /**
- * POJO for keeping track of current user's session information
+ * POJO for keeping track of current user's session information. Kept in a {@link SessionStore}, by Session-Id.
+ *
+ * The session can be written in a compact binary form with {@link #toBytes()}, for stores that keep it elsewhere
+ * (eg, in CMP or replicated). Everything is written: the last request fields, the last reservations, the running totals
+ * and the reservations and rating in progress, which span the transactions of a request.
  * 
  * @author rsaranathan
  */
@@ -40,6 +49,8 @@ public class UserSessionInfo implements Serializable {
 
 	private static final long serialVersionUID = -6258170300724976637L;
 
+	private static final int ENCODING_VERSION = 3;
+
 	private long sessionStartTime;
 	
 	private String sessionId;
@@ -49,15 +60,52 @@ public class UserSessionInfo implements Serializable {
 	private String endUserId;
 	
 	
-	private RoCreditControlRequest ccr;
+	// the fields of the last request that are needed after it was received, not the request itself
+	private CreditControlRequestInfo request;
 	
 	private long[] serviceIds;
 		
 	/**
-	 * List of Credit Controls for the session.
+	 * Credit Controls of the last answered request (one per Multiple-Services-Credit-Control AVP), and how many requests
+	 * were answered. Earlier ones are only kept in the running totals below (and in the interim CDRs, if enabled), so
+	 * the session state does not grow with the number of updates.
 	 */
-	private ArrayList<CreditControlInfo> reservations = new ArrayList<CreditControlInfo>();
-	
+	private CreditControlInfo[] lastReservations;
+
+	private int reservationCount;
+
+	/**
+	 * Credit Controls of the request being handled, one per Multiple-Services-Credit-Control AVP, replaced by the ABMF
+	 * answers as they arrive. The first requestedCounts[i] units of each are the requested ones, which are rated.
+	 */
+	private CreditControlInfo[] pendingReservations;
+
+	private int[] requestedCounts;
+
+	private int pendingCount;
+
+	/**
+	 * Running totals of the Credit Controls, kept as they are added, by unit type (the CC-Unit-Type value).
+	 */
+	public static final int UNIT_TYPES = 6;
+
+	private long[] usedUnits = new long[UNIT_TYPES];
+
+	private long[] usedAmounts = new long[UNIT_TYPES];
+
+	private long balanceBefore;
+
+	private long balanceAfter;
+
+	/**
+	 * Credit Control waiting for an asynchronous rating response, and the index of the unit being rated.
+	 */
+	private CreditControlInfo pendingRating;
+
+	private int ratingIndex;
+
+	private int ratingCount;
+
 
 	public long getSessionStartTime() {
 		return sessionStartTime;
@@ -92,12 +140,12 @@ public class UserSessionInfo implements Serializable {
 		this.endUserId = endUserId;
 	}
 
-	public RoCreditControlRequest getCcr() {
-		return ccr;
+	public CreditControlRequestInfo getRequest() {
+		return request;
 	}
 
-	public void setCcr(RoCreditControlRequest ccr) {
-		this.ccr = ccr;
+	public void setRequest(CreditControlRequestInfo request) {
+		this.request = request;
 	}
 
 	public long[] getServiceIds() {
@@ -108,31 +156,282 @@ public class UserSessionInfo implements Serializable {
 		this.serviceIds = serviceIds;
 	}
 
-	public ArrayList<CreditControlInfo> getReservations() {
-		return reservations;
+	/**
+	 * @return the Credit Controls of the last answered request, or null if none
+	 */
+	public CreditControlInfo[] getLastReservations() {
+		return lastReservations;
+	}
+
+	/**
+	 * @return the last answered Credit Control for the given Rating-Group and Service-Identifiers, or null if none
+	 */
+	public CreditControlInfo getLastReservation(long ratingGroup, long[] serviceIds) {
+		if (lastReservations != null) {
+			for (CreditControlInfo ccInfo : lastReservations) {
+				if (ccInfo.getRatingGroup() == ratingGroup && Arrays.equals(ccInfo.getServiceIds(), serviceIds)) {
+					return ccInfo;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the number of requests answered in the session
+	 */
+	public int getReservationCount() {
+		return reservationCount;
+	}
+
+	/**
+	 * Starts handling a request, with a Credit Control per Multiple-Services-Credit-Control AVP.
+	 *
+	 * @param ccInfos the Credit Controls, each with its index set
+	 * @param requestedCounts the number of requested units of each, which come before the used ones
+	 */
+	public void startReservations(CreditControlInfo[] ccInfos, int[] requestedCounts) {
+		this.pendingReservations = ccInfos;
+		this.requestedCounts = requestedCounts;
+		this.pendingCount = ccInfos.length;
+	}
+
+	/**
+	 * @return the Credit Controls of the request being handled, or null if none
+	 */
+	public CreditControlInfo[] getPendingReservations() {
+		return pendingReservations;
+	}
+
+	/**
+	 * @return the number of requested units of a Credit Control of the request being handled
+	 */
+	public int getRequestedCount(int msccIndex) {
+		return requestedCounts[msccIndex];
+	}
+
+	/**
+	 * Replaces a Credit Control of the request being handled (eg, once rated).
+	 */
+	public void setPendingReservation(CreditControlInfo ccInfo) {
+		pendingReservations[ccInfo.getMsccIndex()] = ccInfo;
+	}
+
+	/**
+	 * @return the number of Credit Controls of the request being handled still waiting for ABMF
+	 */
+	public int getPendingCount() {
+		return pendingCount;
+	}
+
+	/**
+	 * Adds the ABMF answer for a Credit Control of the request being handled, and its used units and amounts to the
+	 * running totals. Once all have been answered they become the last reservations.
+	 *
+	 * @return true if this was the last answer the request was waiting for
+	 */
+	public boolean addReservation(CreditControlInfo ccInfo) {
+		if (pendingReservations == null) {
+			return false;
+		}
+		ArrayList<CreditControlUnit> ccUnits = ccInfo.getCcUnits();
+		for (int i = 0; i < ccUnits.size(); i++) {
+			CreditControlUnit ccUnit = ccUnits.get(i);
+			int unitType = ccUnit.getUnitType() != null ? ccUnit.getUnitType().getValue() : -1;
+			if (unitType >= 0 && unitType < UNIT_TYPES) {
+				usedUnits[unitType] += ccUnit.getUsedUnits();
+				usedAmounts[unitType] += ccUnit.getUsedAmount();
+			}
+		}
+		if (reservationCount == 0 && pendingCount == pendingReservations.length) {
+			balanceBefore = ccInfo.getBalanceBefore();
+		}
+		balanceAfter = ccInfo.getBalanceAfter();
+		pendingReservations[ccInfo.getMsccIndex()] = ccInfo;
+		if (--pendingCount > 0) {
+			return false;
+		}
+		lastReservations = pendingReservations;
+		pendingReservations = null;
+		requestedCounts = null;
+		reservationCount++;
+		return true;
+	}
+
+	/**
+	 * @param unitType the CC-Unit-Type value
+	 * @return the units used so far in the session
+	 */
+	public long getUsedUnits(int unitType) {
+		return usedUnits[unitType];
+	}
+
+	/**
+	 * @param unitType the CC-Unit-Type value
+	 * @return the amount charged so far in the session
+	 */
+	public long getUsedAmount(int unitType) {
+		return usedAmounts[unitType];
+	}
+
+	/**
+	 * @return the balance before the first reservation of the session
+	 */
+	public long getBalanceBefore() {
+		return balanceBefore;
+	}
+
+	/**
+	 * @return the balance after the last reservation of the session
+	 */
+	public long getBalanceAfter() {
+		return balanceAfter;
+	}
+
+	public CreditControlInfo getPendingRating() {
+		return pendingRating;
+	}
+
+	public void setPendingRating(CreditControlInfo pendingRating) {
+		this.pendingRating = pendingRating;
+	}
+
+	public int getRatingIndex() {
+		return ratingIndex;
 	}
 
-	public void setStoredReservations(ArrayList<CreditControlInfo> reservations) {
-		this.reservations = reservations;
+	public void setRatingIndex(int ratingIndex) {
+		this.ratingIndex = ratingIndex;
+	}
+
+	public int getRatingCount() {
+		return ratingCount;
+	}
+
+	public void setRatingCount(int ratingCount) {
+		this.ratingCount = ratingCount;
+	}
+
+	/**
+	 * @return the session in a compact binary form, see {@link #fromBytes(byte[])}
+	 */
+	public byte[] toBytes() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(ENCODING_VERSION);
+		out.writeLong(sessionStartTime);
+		out.writeUTF(sessionId);
+		out.writeInt(endUserType != null ? endUserType.getValue() : -1);
+		out.writeBoolean(endUserId != null);
+		if (endUserId != null) {
+			out.writeUTF(endUserId);
+		}
+		out.writeBoolean(request != null);
+		if (request != null) {
+			request.writeTo(out);
+		}
+		out.writeInt(serviceIds != null ? serviceIds.length : -1);
+		if (serviceIds != null) {
+			for (long serviceId : serviceIds) {
+				out.writeLong(serviceId);
+			}
+		}
+		out.writeInt(lastReservations != null ? lastReservations.length : -1);
+		if (lastReservations != null) {
+			for (CreditControlInfo ccInfo : lastReservations) {
+				ccInfo.writeTo(out);
+			}
+		}
+		out.writeInt(reservationCount);
+		for (int i = 0; i < UNIT_TYPES; i++) {
+			out.writeLong(usedUnits[i]);
+			out.writeLong(usedAmounts[i]);
+		}
+		out.writeLong(balanceBefore);
+		out.writeLong(balanceAfter);
+		out.writeInt(pendingReservations != null ? pendingReservations.length : -1);
+		if (pendingReservations != null) {
+			for (int i = 0; i < pendingReservations.length; i++) {
+				pendingReservations[i].writeTo(out);
+				out.writeInt(requestedCounts[i]);
+			}
+			out.writeInt(pendingCount);
+		}
+		out.writeBoolean(pendingRating != null);
+		if (pendingRating != null) {
+			pendingRating.writeTo(out);
+		}
+		out.writeInt(ratingIndex);
+		out.writeInt(ratingCount);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	public static UserSessionInfo fromBytes(byte[] record) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+		int version = in.readByte();
+		if (version != ENCODING_VERSION) {
+			throw new IOException("Unsupported session encoding version " + version + ".");
+		}
+		UserSessionInfo sessionInfo = new UserSessionInfo();
+		sessionInfo.sessionStartTime = in.readLong();
+		sessionInfo.sessionId = in.readUTF();
+		int endUserType = in.readInt();
+		sessionInfo.endUserType = endUserType >= 0 ? SubscriptionIdType.fromInt(endUserType) : null;
+		sessionInfo.endUserId = in.readBoolean() ? in.readUTF() : null;
+		sessionInfo.request = in.readBoolean() ? CreditControlRequestInfo.readFrom(in) : null;
+		int serviceIdCount = in.readInt();
+		if (serviceIdCount >= 0) {
+			sessionInfo.serviceIds = new long[serviceIdCount];
+			for (int i = 0; i < serviceIdCount; i++) {
+				sessionInfo.serviceIds[i] = in.readLong();
+			}
+		}
+		int reservations = in.readInt();
+		if (reservations >= 0) {
+			sessionInfo.lastReservations = new CreditControlInfo[reservations];
+			for (int i = 0; i < reservations; i++) {
+				sessionInfo.lastReservations[i] = CreditControlInfo.readFrom(in);
+			}
+		}
+		sessionInfo.reservationCount = in.readInt();
+		for (int i = 0; i < UNIT_TYPES; i++) {
+			sessionInfo.usedUnits[i] = in.readLong();
+			sessionInfo.usedAmounts[i] = in.readLong();
+		}
+		sessionInfo.balanceBefore = in.readLong();
+		sessionInfo.balanceAfter = in.readLong();
+		int pending = in.readInt();
+		if (pending >= 0) {
+			sessionInfo.pendingReservations = new CreditControlInfo[pending];
+			sessionInfo.requestedCounts = new int[pending];
+			for (int i = 0; i < pending; i++) {
+				sessionInfo.pendingReservations[i] = CreditControlInfo.readFrom(in);
+				sessionInfo.requestedCounts[i] = in.readInt();
+			}
+			sessionInfo.pendingCount = in.readInt();
+		}
+		sessionInfo.pendingRating = in.readBoolean() ? CreditControlInfo.readFrom(in) : null;
+		sessionInfo.ratingIndex = in.readInt();
+		sessionInfo.ratingCount = in.readInt();
+		return sessionInfo;
 	}
 
 	@Override
 	public String toString() {
-		String ret = "UserSessionInfo[" +
+		return "UserSessionInfo[" +
 			"SessionStartTime=" + sessionStartTime + "; " +
 			"SessionId=" + sessionId + "; " +
 			"EndUserID=" + endUserId + "; " +
 			"EndUserType=" + endUserType + "; " +
-			"ServiceIDs=" + Arrays.toString(serviceIds) + ";";
-		
-		// This contains everything about the user's session. For debugging purposes only, need to format it better. 
-		for (int i = 0; i < reservations.size(); i++) {
-			CreditControlInfo ccInfo = reservations.get(i);
-			ret += "\nSession " + (i+1) + ":" + ccInfo;
-		}
-		ret += "]";
-		
-		return ret;
+			"ServiceIDs=" + Arrays.toString(serviceIds) + "; " +
+			"Request=" + request + "; " +
+			"Reservations=" + reservationCount + "; " +
+			"UsedUnits=" + Arrays.toString(usedUnits) + "; " +
+			"UsedAmounts=" + Arrays.toString(usedAmounts) + "; " +
+			"BalanceBefore=" + balanceBefore + "; " +
+			"BalanceAfter=" + balanceAfter + ";" +
+			"\nLast Reservations:" + Arrays.toString(lastReservations) + "]";
 	}
-	
+
 }
@@ -0,0 +1,282 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2013, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.data.jdbc;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+
+/**
+ * Online migration of the users table from the legacy FLOAT balance columns to BIGINT minor units.
+ * 
+ * The migration runs while the charging server keeps updating balances:
+ * <ol>
+ * <li>BIGINT shadow columns are added to the table;</li>
+ * <li>balances are copied to the shadow columns in chunks of users, each in its own short transaction;</li>
+ * <li>rows changed by traffic meanwhile are copied again, in further passes, until only a few are left;</li>
+ * <li>in a final short transaction the remaining rows are copied, the FLOAT columns dropped and the shadow columns
+ * renamed in their place.</li>
+ * </ol>
+ * It can be stopped and run again at any point before the final step. Note that on databases without transactional
+ * DDL (eg, MySQL) balance updates may fail during the final step, which only takes a few statements.
+ * 
+ * Casts and column renames are written for the database found, see {@link DataSourceSchemaInfo.Dialect}. Other
+ * databases get the standard SQL forms.
+ * 
+ * Usage: BalanceSchemaMigration &lt;jdbc-url&gt; [user] [password] [chunk-size]
+ * 
+ * @author ammendonca
+ */
+public class BalanceSchemaMigration {
+
+	public static final String _COL_BALANCE_MINOR = "BALANCE_MINOR";
+	public static final String _COL_RESERVED_MINOR = "RESERVED_MINOR";
+
+	private static final String _QUERY_NEXT_CHUNK = "SELECT " + DataSourceSchemaInfo._COL_MSISDN + " FROM " + DataSourceSchemaInfo._TBL_USERS
+			+ " WHERE " + DataSourceSchemaInfo._COL_MSISDN + " > ? ORDER BY " + DataSourceSchemaInfo._COL_MSISDN;
+
+	// queries in the syntax of the database being migrated
+	private final String[] queryAddColumns;
+	private final String queryCopyChunk;
+	private final String queryCountStale;
+	private final String queryCopyStale;
+	private final String[] querySwapColumns;
+
+	// passes over the changed rows before giving up on converging
+	private static final int MAX_CATCH_UP_PASSES = 10;
+
+	private final Connection connection;
+	private final int chunkSize;
+
+	public BalanceSchemaMigration(Connection connection, int chunkSize) throws SQLException {
+		this.connection = connection;
+		this.chunkSize = chunkSize;
+
+		DataSourceSchemaInfo.Dialect dialect = DataSourceSchemaInfo.Dialect.fromProductName(connection.getMetaData().getDatabaseProductName());
+		String users = DataSourceSchemaInfo._TBL_USERS;
+
+		// MySQL only casts to SIGNED, and only has RENAME COLUMN since 8.0, so it's given the whole column again
+		boolean mysql = dialect == DataSourceSchemaInfo.Dialect.MYSQL;
+		String integerType = mysql ? "SIGNED" : "BIGINT";
+		String toMinorBalance = "CAST(ROUND(" + DataSourceSchemaInfo._COL_BALANCE + ") AS " + integerType + ")";
+		String toMinorReserved = "CAST(ROUND(COALESCE(" + DataSourceSchemaInfo._COL_RESERVED + ", 0)) AS " + integerType + ")";
+		String whereStale = "(" + _COL_BALANCE_MINOR + " <> " + toMinorBalance + " OR " + _COL_RESERVED_MINOR + " <> " + toMinorReserved + ")";
+		String setMinor = " SET " + _COL_BALANCE_MINOR + " = " + toMinorBalance + ", " + _COL_RESERVED_MINOR + " = " + toMinorReserved;
+
+		this.queryAddColumns = new String[] {
+				"ALTER TABLE " + users + " ADD COLUMN " + _COL_BALANCE_MINOR + " BIGINT DEFAULT 0 NOT NULL",
+				"ALTER TABLE " + users + " ADD COLUMN " + _COL_RESERVED_MINOR + " BIGINT DEFAULT 0 NOT NULL"};
+		this.queryCopyChunk = "UPDATE " + users + setMinor
+				+ " WHERE " + DataSourceSchemaInfo._COL_MSISDN + " > ? AND " + DataSourceSchemaInfo._COL_MSISDN + " <= ? AND " + whereStale;
+		this.queryCountStale = "SELECT COUNT(*) FROM " + users + " WHERE " + whereStale;
+		this.queryCopyStale = "UPDATE " + users + setMinor + " WHERE " + whereStale;
+		this.querySwapColumns = new String[] {
+				"ALTER TABLE " + users + " DROP COLUMN " + DataSourceSchemaInfo._COL_BALANCE,
+				"ALTER TABLE " + users + " DROP COLUMN " + DataSourceSchemaInfo._COL_RESERVED,
+				renameColumn(mysql, _COL_BALANCE_MINOR, DataSourceSchemaInfo._COL_BALANCE),
+				renameColumn(mysql, _COL_RESERVED_MINOR, DataSourceSchemaInfo._COL_RESERVED)};
+	}
+
+	private static String renameColumn(boolean mysql, String from, String to) {
+		if (mysql) {
+			return "ALTER TABLE " + DataSourceSchemaInfo._TBL_USERS + " CHANGE COLUMN " + from + " " + to + " BIGINT DEFAULT 0 NOT NULL";
+		}
+		return "ALTER TABLE " + DataSourceSchemaInfo._TBL_USERS + " RENAME COLUMN " + from + " TO " + to;
+	}
+
+	/**
+	 * Checks if the balance column of the users table still has a floating point type.
+	 * 
+	 * @param connection the JDBC connection
+	 * @return true if the table needs to be migrated
+	 * @throws SQLException
+	 */
+	public static boolean isLegacySchema(Connection connection) throws SQLException {
+		int type = getColumnType(connection.getMetaData(), DataSourceSchemaInfo._COL_BALANCE);
+		return type == Types.FLOAT || type == Types.REAL || type == Types.DOUBLE;
+	}
+
+	/**
+	 * Runs the migration, if needed.
+	 * 
+	 * @return true if the table was migrated, false if it was already using BIGINT
+	 * @throws SQLException
+	 */
+	public boolean migrate() throws SQLException {
+		if (!isLegacySchema(connection)) {
+			log("Table " + DataSourceSchemaInfo._TBL_USERS + " is already using BIGINT balances. Nothing to do.");
+			return false;
+		}
+
+		boolean autoCommit = connection.getAutoCommit();
+		connection.setAutoCommit(true);
+		try {
+			if (getColumnType(connection.getMetaData(), _COL_BALANCE_MINOR) == Types.NULL) {
+				execute(queryAddColumns);
+				log("Added columns " + _COL_BALANCE_MINOR + " and " + _COL_RESERVED_MINOR + ".");
+			}
+			else {
+				log("Columns " + _COL_BALANCE_MINOR + " and " + _COL_RESERVED_MINOR + " found. Resuming migration.");
+			}
+
+			log("Copied " + copyChunks() + " user balance(s).");
+
+			long stale = 0;
+			for (int pass = 1; pass <= MAX_CATCH_UP_PASSES && (stale = countStale()) > chunkSize; pass++) {
+				log("Pass " + pass + ": " + stale + " user balance(s) changed meanwhile. Copying again.");
+				copyChunks();
+			}
+
+			connection.setAutoCommit(false);
+			try {
+				int copied = executeUpdate(queryCopyStale);
+				execute(querySwapColumns);
+				connection.commit();
+				log("Copied last " + copied + " user balance(s) and swapped columns. Migration complete.");
+			}
+			catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			}
+			return true;
+		}
+		finally {
+			connection.setAutoCommit(autoCommit);
+		}
+	}
+
+	private long copyChunks() throws SQLException {
+		long copied = 0;
+		String lastMsisdn = "";
+		PreparedStatement nextChunk = connection.prepareStatement(_QUERY_NEXT_CHUNK);
+		PreparedStatement copyChunk = connection.prepareStatement(queryCopyChunk);
+		try {
+			nextChunk.setMaxRows(chunkSize);
+			while (true) {
+				nextChunk.setString(1, lastMsisdn);
+				String chunkEnd = null;
+				ResultSet resultSet = nextChunk.executeQuery();
+				try {
+					while (resultSet.next()) {
+						chunkEnd = resultSet.getString(1);
+					}
+				}
+				finally {
+					resultSet.close();
+				}
+				if (chunkEnd == null) {
+					return copied;
+				}
+
+				// auto-commit, so each chunk is its own transaction
+				copyChunk.setString(1, lastMsisdn);
+				copyChunk.setString(2, chunkEnd);
+				copied += copyChunk.executeUpdate();
+				lastMsisdn = chunkEnd;
+			}
+		}
+		finally {
+			nextChunk.close();
+			copyChunk.close();
+		}
+	}
+
+	private long countStale() throws SQLException {
+		Statement statement = connection.createStatement();
+		try {
+			ResultSet resultSet = statement.executeQuery(queryCountStale);
+			resultSet.next();
+			return resultSet.getLong(1);
+		}
+		finally {
+			statement.close();
+		}
+	}
+
+	private int executeUpdate(String query) throws SQLException {
+		Statement statement = connection.createStatement();
+		try {
+			return statement.executeUpdate(query);
+		}
+		finally {
+			statement.close();
+		}
+	}
+
+	private void execute(String[] queries) throws SQLException {
+		Statement statement = connection.createStatement();
+		try {
+			for (String query : queries) {
+				statement.execute(query);
+			}
+		}
+		finally {
+			statement.close();
+		}
+	}
+
+	private static int getColumnType(DatabaseMetaData metaData, String column) throws SQLException {
+		// unquoted identifiers are stored in upper case by some databases and in lower case by others
+		String[][] names = {{DataSourceSchemaInfo._TBL_USERS, column}, {DataSourceSchemaInfo._TBL_USERS.toLowerCase(), column.toLowerCase()}};
+		for (String[] name : names) {
+			ResultSet resultSet = metaData.getColumns(null, null, name[0], name[1]);
+			try {
+				if (resultSet.next()) {
+					return resultSet.getInt("DATA_TYPE");
+				}
+			}
+			finally {
+				resultSet.close();
+			}
+		}
+		return Types.NULL;
+	}
+
+	protected void log(String message) {
+		System.out.println(message);
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("Usage: BalanceSchemaMigration <jdbc-url> [user] [password] [chunk-size]");
+			return;
+		}
+		String user = args.length > 1 ? args[1] : null;
+		String password = args.length > 2 ? args[2] : null;
+		int chunkSize = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+
+		Connection connection = DriverManager.getConnection(args[0], user, password);
+		try {
+			new BalanceSchemaMigration(connection, chunkSize).migrate();
+		}
+		finally {
+			connection.close();
+		}
+	}
+
+}
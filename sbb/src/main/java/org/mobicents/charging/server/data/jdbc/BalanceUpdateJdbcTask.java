@@ -0,0 +1,117 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2013, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.data.jdbc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import javax.slee.facilities.Tracer;
+import javax.slee.transaction.SleeTransaction;
+
+import org.mobicents.slee.resource.jdbc.task.JdbcTaskContext;
+
+/**
+ * Abstract class for tasks changing a user balance. The change is split in applying the statements, which may be done
+ * in a transaction shared with other tasks (see {@link GroupCommitter}), and completing the task with the results once
+ * the transaction is over.
+ * 
+ * @author ammendonca
+ */
+public abstract class BalanceUpdateJdbcTask extends DataSourceJdbcTask {
+
+	protected final Tracer tracer;
+
+	private GroupCommitter groupCommitter;
+
+	protected BalanceUpdateJdbcTask(Tracer tracer) {
+		this.tracer = tracer;
+	}
+
+	/**
+	 * Sets the group committer to apply this task with. If not set, the task is applied in its own transaction.
+	 * 
+	 * @param groupCommitter
+	 */
+	public void setGroupCommitter(GroupCommitter groupCommitter) {
+		this.groupCommitter = groupCommitter;
+	}
+
+	/**
+	 * Executes the statements for this task, without committing.
+	 * 
+	 * @param connection the JDBC connection, in a transaction
+	 * @param dialect the SQL dialect of the database
+	 * @throws SQLException
+	 */
+	protected abstract void apply(Connection connection, DataSourceSchemaInfo.Dialect dialect) throws SQLException;
+
+	/**
+	 * Completes the task after the transaction where it was applied is over.
+	 * 
+	 * @param committed true if the transaction was committed, false if it failed
+	 */
+	protected abstract void complete(boolean committed);
+
+	@Override
+	public Object executeSimple(JdbcTaskContext taskContext) {
+		if (groupCommitter != null) {
+			groupCommitter.execute(this, taskContext);
+		}
+		else {
+			complete(executeAlone(taskContext));
+		}
+		return this;
+	}
+
+	/**
+	 * Applies this task in its own transaction.
+	 * 
+	 * @param taskContext
+	 * @return true if the transaction was committed, false otherwise
+	 */
+	boolean executeAlone(JdbcTaskContext taskContext) {
+		SleeTransaction tx = null;
+		try {
+			tx = taskContext.getSleeTransactionManager().beginSleeTransaction();
+			apply(taskContext.getConnection(), DataSourceSchemaInfo.getDialect());
+			tx.commit();
+			tx = null;
+			return true;
+		}
+		catch (Exception e) {
+			tracer.severe("[xx] Failed to execute task " + this, e);
+			return false;
+		}
+		finally {
+			if (tx != null) {
+				try {
+					tx.rollback();
+				}
+				catch (Exception f) {
+					tracer.severe("[xx] Failed to rollback tx", f);
+				}
+			}
+		}
+	}
+
+}
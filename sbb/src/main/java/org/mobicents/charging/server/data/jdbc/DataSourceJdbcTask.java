@@ -22,6 +22,11 @@
 
 package org.mobicents.charging.server.data.jdbc;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
 import javax.slee.SbbLocalObject;
 
 import org.mobicents.slee.resource.jdbc.task.simple.SimpleJdbcTask;
@@ -37,4 +42,45 @@ public abstract class DataSourceJdbcTask extends SimpleJdbcTask {
 
 	public abstract void callBackParentOnException(SbbLocalObject parent);
 
+	/**
+	 * Executes a reserve or debit statement, prepared from one of the {@link DataSourceSchemaInfo.Dialect} queries,
+	 * and reads back the updated row. Statements are prepared on every execution and closed by their owners, caching
+	 * them is left to the connection pool (eg, prepared-statement-cache-size in the datasource definition).
+	 * 
+	 * @param connection the JDBC connection the statement was prepared on
+	 * @param dialect the dialect the statement was taken from
+	 * @param preparedStatement the statement, with all parameters set
+	 * @param msisdn the MSISDN of the updated user
+	 * @return the new balance and reserved amount, or null if no row was updated
+	 * @throws SQLException
+	 */
+	protected static long[] executeBalanceUpdate(Connection connection, DataSourceSchemaInfo.Dialect dialect, PreparedStatement preparedStatement, String msisdn) throws SQLException {
+		if (dialect.isReturning()) {
+			return readBalance(preparedStatement.executeQuery());
+		}
+		else if (preparedStatement.executeUpdate() != 1) {
+			return null;
+		}
+
+		PreparedStatement resultStatement = connection.prepareStatement(dialect.getResultQuery());
+		try {
+			if (dialect == DataSourceSchemaInfo.Dialect.GENERIC) {
+				resultStatement.setString(1, msisdn);
+			}
+			return readBalance(resultStatement.executeQuery());
+		}
+		finally {
+			resultStatement.close();
+		}
+	}
+
+	private static long[] readBalance(ResultSet resultSet) throws SQLException {
+		try {
+			return resultSet.next() ? new long[] {resultSet.getLong(1), resultSet.getLong(2)} : null;
+		}
+		finally {
+			resultSet.close();
+		}
+	}
+
 }
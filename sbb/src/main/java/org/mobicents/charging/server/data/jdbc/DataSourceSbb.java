@@ -27,6 +27,8 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 
+import javax.naming.Context;
+import javax.naming.InitialContext;
 import javax.slee.ActivityContextInterface;
 import javax.slee.Sbb;
 import javax.slee.SbbContext;
@@ -71,6 +73,11 @@ public abstract class DataSourceSbb extends BaseSbb implements Sbb, DataSource {
 	private JdbcResourceAdaptorSbbInterface jdbcRA;
 	private JdbcActivityContextInterfaceFactory jdbcACIF;
 
+	// ------------------------------ Group Commit ----------------------------
+	// shared by all the SBB entities, null if disabled
+	private static GroupCommitter groupCommitter;
+	private static boolean configured = false;
+
 	// --------------------------- Local Interface ----------------------------
 
 	@Override
@@ -83,6 +90,11 @@ public abstract class DataSourceSbb extends BaseSbb implements Sbb, DataSource {
 			if (tracer.isFineEnabled()) {
 				tracer.fine("[><] Got JDBC Connection");
 			}
+			DataSourceSchemaInfo.Dialect dialect = DataSourceSchemaInfo.Dialect.fromProductName(connection.getMetaData().getDatabaseProductName());
+			DataSourceSchemaInfo.setDialect(dialect);
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[><] Using " + dialect + " SQL dialect for " + connection.getMetaData().getDatabaseProductName() + ".");
+			}
 			try { 
 				PreparedStatement preparedStatement = connection.prepareStatement(DataSourceSchemaInfo._QUERY_EXISTS);
 				preparedStatement.execute();
@@ -93,6 +105,11 @@ public abstract class DataSourceSbb extends BaseSbb implements Sbb, DataSource {
 					}
 					tableAlreadyExists = true;
 				}
+				preparedStatement.close();
+
+				if (tableAlreadyExists && BalanceSchemaMigration.isLegacySchema(connection)) {
+					tracer.warning("[!!] Table " + DataSourceSchemaInfo._TBL_USERS + " is using FLOAT balances, which lose precision. Run " + BalanceSchemaMigration.class.getName() + " to migrate it to BIGINT.");
+				}
 			}
 			catch (SQLException e) {
 				// it's ok, maybe table does not exist. no need to do anything here. 
@@ -149,7 +166,7 @@ public abstract class DataSourceSbb extends BaseSbb implements Sbb, DataSource {
 		if (tracer.isInfoEnabled()) {
 			tracer.info("[><] Requesting Units: " + ccInfo);
 		}
-		executeTask(new ReserveUnitsJdbcTask(ccInfo, tracer));
+		executeBalanceUpdateTask(new ReserveUnitsJdbcTask(ccInfo, tracer));
 	}
 
 	@Override
@@ -157,7 +174,7 @@ public abstract class DataSourceSbb extends BaseSbb implements Sbb, DataSource {
 		if (tracer.isInfoEnabled()) {
 			tracer.info("[><] Debiting Units: " + ccInfo);
 		}
-		executeTask(new DirectDebitUnitsJdbcTask(ccInfo, tracer));
+		executeBalanceUpdateTask(new DirectDebitUnitsJdbcTask(ccInfo, tracer));
 	}
 
 	@Override
@@ -170,18 +187,38 @@ public abstract class DataSourceSbb extends BaseSbb implements Sbb, DataSource {
 
 	// ---------------------------- Event Handlers ----------------------------
 
+	/**
+	 * Executes a balance update task, grouping it with others in a single transaction if group commit is enabled.
+	 * 
+	 * @param jdbcTask
+	 */
+	protected void executeBalanceUpdateTask(BalanceUpdateJdbcTask jdbcTask) {
+		jdbcTask.setGroupCommitter(groupCommitter);
+		executeTask(jdbcTask);
+	}
+
 	/**
 	 * Simple method to create JDBC activity and execute given task.
 	 * 
 	 * @param jdbcTask
 	 */
-	private void executeTask(SimpleJdbcTask jdbcTask) {
+	protected void executeTask(SimpleJdbcTask jdbcTask) {
 		JdbcActivity jdbcActivity = jdbcRA.createActivity();
 		ActivityContextInterface jdbcACI = jdbcACIF.getActivityContextInterface(jdbcActivity);
 		jdbcACI.attach(sbbContextExt.getSbbLocalObject());
 		jdbcActivity.execute(jdbcTask);
 	}
 
+	/**
+	 * Gets a connection directly from the JDBC RA, for work that must complete before returning (eg, on init).
+	 * 
+	 * @return a new JDBC connection, to be closed by the caller
+	 * @throws SQLException
+	 */
+	protected Connection getJdbcConnection() throws SQLException {
+		return jdbcRA.getConnection();
+	}
+
 	/**
 	 * Event handler for {@link JdbcTaskExecutionThrowableEvent}.
 	 * 
@@ -223,6 +260,31 @@ public abstract class DataSourceSbb extends BaseSbb implements Sbb, DataSource {
 		}
 		jdbcRA = (JdbcResourceAdaptorSbbInterface) this.sbbContextExt.getResourceAdaptorInterface(jdbcRATypeID, jdbcRALink);
 		jdbcACIF = (JdbcActivityContextInterfaceFactory) this.sbbContextExt.getActivityContextInterfaceFactory(jdbcRATypeID);
+		configure();
+	}
+
+	private static synchronized void configure() {
+		if (configured) {
+			return;
+		}
+		configured = true;
+
+		Context ctx = null;
+		try {
+			ctx = (Context) new InitialContext().lookup("java:comp/env");
+		}
+		catch (Exception e) {
+			tracer.warning("[!!] Unable to read env entries. Using defaults.");
+		}
+
+		long window = (Long) loadEnvEntry(ctx, "groupCommitWindow", 0L, tracer);
+		int maxTasks = (Integer) loadEnvEntry(ctx, "groupCommitMaxTasks", 64, tracer);
+		if (window > 0 && maxTasks > 1) {
+			groupCommitter = new GroupCommitter(window, maxTasks, tracer);
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[><] Group commit enabled, with window = " + window + "ms and max tasks = " + maxTasks + ". Statistics are logged every minute.");
+			}
+		}
 	}
 
 	@Override
@@ -35,6 +35,7 @@ public class DataSourceSchemaInfo {
 	public static final String _TBL_USERS = "CONCHA_USERS";
 
 	public static final String _COL_MSISDN = "MSISDN";
+	// Balances are stored as BIGINT, in minor units (eg, cents). See BalanceSchemaMigration for tables created with FLOAT.
 	public static final String _COL_BALANCE = "BALANCE";
 	public static final String _COL_RESERVED = "RESERVED";
 	public static final String _COL_BALANCE_EXPIRY_DATE = "BAL_EXPIRY_DATE";
@@ -49,8 +50,8 @@ public class DataSourceSchemaInfo {
 	public static final String _QUERY_CREATE = "CREATE TABLE " + _TBL_USERS
 			+ " (" 
 			+ _COL_MSISDN 				+ " VARCHAR(255) NOT NULL, "
-			+ _COL_BALANCE 				+ " FLOAT NOT NULL, "
-			+ _COL_RESERVED 			+ " FLOAT, "
+			+ _COL_BALANCE 				+ " BIGINT NOT NULL, "
+			+ _COL_RESERVED 			+ " BIGINT DEFAULT 0 NOT NULL, "
 			+ _COL_BALANCE_EXPIRY_DATE 	+ " DATE NULL, "
 			+ _COL_BAL_LAST_ADJUSTED 	+ " TIMESTAMP NULL, "
 			+ _COL_USER_STATUS 			+ " VARCHAR(50) NOT NULL, "
@@ -59,7 +60,19 @@ public class DataSourceSchemaInfo {
 	public static final String _QUERY_INSERT = "INSERT INTO " + _TBL_USERS
 			+ " (" + _COL_MSISDN + ", " + _COL_BALANCE + ", " + _COL_BALANCE_EXPIRY_DATE + ", " + _COL_BAL_LAST_ADJUSTED + ", " + _COL_USER_STATUS + ")  VALUES (?, ?, ?, ?, ?)";
 
-	public static final String _QUERY_SELECT = "SELECT * FROM " + _TBL_USERS + " WHERE " + _COL_MSISDN + " LIKE ?;";
+	// point lookup by primary key, for a single user
+	public static final String _QUERY_SELECT = "SELECT " + _COL_MSISDN + ", " + _COL_BALANCE + " FROM " + _TBL_USERS + " WHERE " + _COL_MSISDN + " = ?;";
+
+	// pattern scan, only for listing users (eg, dump)
+	public static final String _QUERY_SELECT_LIKE = "SELECT " + _COL_MSISDN + ", " + _COL_BALANCE + " FROM " + _TBL_USERS + " WHERE " + _COL_MSISDN + " LIKE ?;";
+
+	public static final String _QUERY_SELECT_ALL = "SELECT " + _COL_MSISDN + ", " + _COL_BALANCE + ", " + _COL_RESERVED + " FROM " + _TBL_USERS + ";";
+
+	public static final String _QUERY_UPDATE_BALANCE =
+			"UPDATE " + _TBL_USERS +
+			" SET " + _COL_BALANCE + " = ?, " +
+			_COL_RESERVED + " = ? " +
+			"WHERE " + _COL_MSISDN + " = ?";
 
 	/*
 	public static final String _QUERY_RESERVE = 
@@ -81,12 +94,25 @@ public class DataSourceSchemaInfo {
 			"WHERE " + _COL_MSISDN + " = ? AND " + _COL_BALANCE + " >= ?";
 	*/
 	
+	/*
+	 * RESERVED is the total reserved for the user, over all sessions and MSCCs. Each request returns its previous
+	 * reservation and makes a new one. Each assignment only reads the column it sets, so the result is the same whether
+	 * the database evaluates assignments with old values (standard) or left-to-right (MySQL). Keep it that way: on
+	 * MySQL, an assignment reading a column set before it in the SET list sees the new value, not the old one.
+	 *
+	 *   B = B + (G - U) - R
+	 *   RESERVED = RESERVED - G + R
+	 *
+	 * Parameters: (G - U), R, G, R, MSISDN
+	 */
+	private static final String _SET_RESERVE =
+			" SET " + _COL_BALANCE + " = " + _COL_BALANCE + " + ? - ?, " +
+			_COL_RESERVED + " = " + _COL_RESERVED + " - ? + ?";
+
 	public static final String _QUERY_RESERVE = 
 			"UPDATE " + _TBL_USERS +
-			//                                          B = B + (G - U) - R
-			" SET " + _COL_BALANCE + " = " + _COL_BALANCE + " + ? - ?, " +
-			_COL_RESERVED + " = " + " ? "+
-			"WHERE " + _COL_MSISDN + " = ?";
+			_SET_RESERVE +
+			" WHERE " + _COL_MSISDN + " = ?";
 
 	public static final String _QUERY_DEBIT =
 			"UPDATE " + _TBL_USERS +
@@ -94,10 +120,176 @@ public class DataSourceSchemaInfo {
 					" SET " + _COL_BALANCE + " = " + _COL_BALANCE + " - ? " +
 					" WHERE " + _COL_MSISDN + " = ?";
 
+	/*
+	 * Capped reserve, for rated units. Reserves all that is requested, only if available, as the same update as
+	 * _QUERY_RESERVE. When it touches no row, what is available is read with the row locked (see
+	 * _QUERY_SELECT_BALANCE_FOR_UPDATE) and reserved with _QUERY_RESERVE.
+	 *
+	 *   B + (G - U) >= R
+	 *
+	 * Parameters: (G - U), R, G, R, MSISDN, (G - U), R
+	 */
+	public static final String _QUERY_RESERVE_CAPPED =
+			"UPDATE " + _TBL_USERS +
+			_SET_RESERVE +
+			" WHERE " + _COL_MSISDN + " = ? AND " + _COL_BALANCE + " + ? >= ?";
+
+	public static final String _QUERY_SELECT_BALANCE_FOR_UPDATE =
+			"SELECT " + _COL_BALANCE + " FROM " + _TBL_USERS + " WHERE " + _COL_MSISDN + " = ? FOR UPDATE";
+
+	public static final String _QUERY_DEBIT_CONDITIONAL =
+			"UPDATE " + _TBL_USERS +
+					//                                          B = B - R, if B >= R
+					" SET " + _COL_BALANCE + " = " + _COL_BALANCE + " - ? " +
+					" WHERE " + _COL_MSISDN + " = ? AND " + _COL_BALANCE + " >= ?";
+
+	public static final String _QUERY_SELECT_RESERVATION =
+			"SELECT " + _COL_BALANCE + ", " + _COL_RESERVED + " FROM " + _TBL_USERS + " WHERE " + _COL_MSISDN + " = ?";
+
+	// --- SQL Dialects -------------------------------------------------------
+
+	/**
+	 * Database specific forms of the queries in the reservation and debit paths. All of them return the new BALANCE
+	 * and RESERVED values of the row, either from the update statement itself or from the follow-up query.
+	 */
+	public enum Dialect {
+
+		/**
+		 * Any SQL database. The conditional UPDATE is followed by a SELECT of the row.
+		 */
+		GENERIC(
+				_QUERY_RESERVE,
+				_QUERY_RESERVE_CAPPED,
+				_QUERY_DEBIT_CONDITIONAL,
+				_QUERY_SELECT_RESERVATION),
+
+		/**
+		 * H2 reads the updated row back from the UPDATE with a data change delta table.
+		 */
+		H2(
+				"SELECT " + _COL_BALANCE + ", " + _COL_RESERVED + " FROM FINAL TABLE (" + _QUERY_RESERVE + ")",
+				"SELECT " + _COL_BALANCE + ", " + _COL_RESERVED + " FROM FINAL TABLE (" + _QUERY_RESERVE_CAPPED + ")",
+				"SELECT " + _COL_BALANCE + ", " + _COL_RESERVED + " FROM FINAL TABLE (" + _QUERY_DEBIT_CONDITIONAL + ")",
+				null),
+
+		/**
+		 * PostgreSQL returns the updated row from the UPDATE itself.
+		 */
+		POSTGRESQL(
+				_QUERY_RESERVE + " RETURNING " + _COL_BALANCE + ", " + _COL_RESERVED,
+				_QUERY_RESERVE_CAPPED + " RETURNING " + _COL_BALANCE + ", " + _COL_RESERVED,
+				_QUERY_DEBIT_CONDITIONAL + " RETURNING " + _COL_BALANCE + ", " + _COL_RESERVED,
+				null),
+
+		/**
+		 * MySQL has no RETURNING, the UPDATE stores the new values in session variables which are then read without
+		 * going back to the table.
+		 */
+		MYSQL(
+				"UPDATE " + _TBL_USERS +
+				" SET " + _COL_BALANCE + " = (@cs_balance := " + _COL_BALANCE + " + ? - ?), " +
+				_COL_RESERVED + " = (@cs_reserved := " + _COL_RESERVED + " - ? + ?) " +
+				"WHERE " + _COL_MSISDN + " = ?",
+				"UPDATE " + _TBL_USERS +
+				" SET " + _COL_BALANCE + " = (@cs_balance := " + _COL_BALANCE + " + ? - ?), " +
+				_COL_RESERVED + " = (@cs_reserved := " + _COL_RESERVED + " - ? + ?) " +
+				"WHERE " + _COL_MSISDN + " = ? AND " + _COL_BALANCE + " + ? >= ?",
+				"UPDATE " + _TBL_USERS +
+				" SET " + _COL_BALANCE + " = (@cs_balance := " + _COL_BALANCE + " - ?), " +
+				_COL_RESERVED + " = (@cs_reserved := " + _COL_RESERVED + ") " +
+				"WHERE " + _COL_MSISDN + " = ? AND " + _COL_BALANCE + " >= ?",
+				"SELECT @cs_balance, @cs_reserved");
+
+		private final String reserveQuery;
+		private final String reserveCappedQuery;
+		private final String debitQuery;
+		private final String resultQuery;
+
+		private Dialect(String reserveQuery, String reserveCappedQuery, String debitQuery, String resultQuery) {
+			this.reserveQuery = reserveQuery;
+			this.reserveCappedQuery = reserveCappedQuery;
+			this.debitQuery = debitQuery;
+			this.resultQuery = resultQuery;
+		}
+
+		/**
+		 * @param capped true for the capped reserve (rated units), false for the unconditional one
+		 * @return the reserve query for this dialect
+		 */
+		public String getReserveQuery(boolean capped) {
+			return capped ? reserveCappedQuery : reserveQuery;
+		}
+
+		/**
+		 * @return the conditional debit query for this dialect
+		 */
+		public String getDebitQuery() {
+			return debitQuery;
+		}
+
+		/**
+		 * @return true if the reserve and debit queries are executed as queries, returning the updated row
+		 */
+		public boolean isReturning() {
+			return resultQuery == null;
+		}
+
+		/**
+		 * @return the query to read the updated row after the reserve or debit update, or null if it's not needed
+		 */
+		public String getResultQuery() {
+			return resultQuery;
+		}
+
+		/**
+		 * @param productName the database product name, as in {@link java.sql.DatabaseMetaData#getDatabaseProductName()}
+		 * @return the matching dialect, or GENERIC if none
+		 */
+		public static Dialect fromProductName(String productName) {
+			if (productName != null) {
+				String name = productName.toLowerCase();
+				if (name.startsWith("h2")) {
+					return H2;
+				}
+				if (name.startsWith("postgresql")) {
+					return POSTGRESQL;
+				}
+				if (name.startsWith("mysql") || name.startsWith("mariadb")) {
+					return MYSQL;
+				}
+			}
+			return GENERIC;
+		}
+	}
+
+	private static volatile Dialect dialect = Dialect.GENERIC;
+
+	public static Dialect getDialect() {
+		return dialect;
+	}
+
+	public static void setDialect(Dialect dialect) {
+		DataSourceSchemaInfo.dialect = dialect;
+	}
+
+	/**
+	 * Checks if an MSISDN given for lookup is a SQL LIKE pattern, rather than a single MSISDN.
+	 * 
+	 * @param msisdn the MSISDN or pattern
+	 * @return true if it contains any LIKE wildcard
+	 */
+	public static boolean isPattern(String msisdn) {
+		return msisdn.indexOf('%') >= 0 || msisdn.indexOf('_') >= 0;
+	}
+
 	public static void main(String[] args) {
 		System.out.println("Create Query: "+_QUERY_CREATE);
 		System.out.println("Reserve Query: "+_QUERY_RESERVE);
+		for (Dialect dialect : Dialect.values()) {
+			System.out.println("Reserve Capped Query (" + dialect + "): " + dialect.getReserveQuery(true));
+		}
 		System.out.println("Insert Query: "+_QUERY_INSERT);
 		System.out.println("Select Query: "+_QUERY_SELECT);
+		System.out.println("Select Like Query: "+_QUERY_SELECT_LIKE);
 	}
 }
@@ -26,18 +26,18 @@ import org.mobicents.charging.server.account.AccountBalanceManagement;
 import org.mobicents.charging.server.account.CreditControlInfo;
 import org.mobicents.charging.server.account.CreditControlUnit;
 import org.mobicents.charging.server.data.UserAccountData;
-import org.mobicents.slee.resource.jdbc.task.JdbcTaskContext;
 
 import javax.slee.SbbLocalObject;
 import javax.slee.facilities.Tracer;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
 
 /**
  * @author ammendonca
  */
-public class DirectDebitUnitsJdbcTask extends DataSourceJdbcTask {
+public class DirectDebitUnitsJdbcTask extends BalanceUpdateJdbcTask {
 
 	private CreditControlInfo ccInfo = null;
 	private UserAccountData accountData = null;
@@ -45,96 +45,87 @@ public class DirectDebitUnitsJdbcTask extends DataSourceJdbcTask {
 	private String msisdn;
 	private ArrayList<CreditControlUnit> ccUnits;
 
-	private Tracer tracer;
+	// All units are debited at once, or none is
+	private long requestedAmount;
+
+	private long[] result;
 
 	public DirectDebitUnitsJdbcTask(CreditControlInfo ccInfo, Tracer tracer) {
+		super(tracer);
 		this.ccInfo = ccInfo;
 		this.msisdn = ccInfo.getSubscriptionId();
 		this.ccUnits = ccInfo.getCcUnits();
-		this.tracer = tracer;
+
+		for (CreditControlUnit ccUnit : ccUnits) {
+			requestedAmount += ccUnit.getRequestedAmount();
+		}
 	}
 
 	@Override
-	public Object executeSimple(JdbcTaskContext taskContext) {
+	protected void apply(Connection connection, DataSourceSchemaInfo.Dialect dialect) throws SQLException {
+		if (tracer.isFineEnabled()) {
+			tracer.fine("[//] Executing DB Statement '" + dialect.getDebitQuery() + "' for MSISDN '" + msisdn + "' with R=" + requestedAmount);
+		}
+
+		PreparedStatement preparedStatement = connection.prepareStatement(dialect.getDebitQuery());
 		try {
-			long balance = 0;
-			// get Balance Before (can this be made more efficient?)
-			PreparedStatement preparedStatement = taskContext.getConnection().prepareStatement(DataSourceSchemaInfo._QUERY_SELECT);
-			preparedStatement.setString(1, msisdn);
-			preparedStatement.execute();
-			ResultSet resultSet = preparedStatement.getResultSet();
-			while (resultSet.next()) {
-				balance = resultSet.getLong(DataSourceSchemaInfo._COL_BALANCE);
-				ccInfo.setBalanceBefore(balance);
+			int n = 1;
+			preparedStatement.setLong(n++, requestedAmount);
+			preparedStatement.setString(n++, msisdn);
+			preparedStatement.setLong(n++, requestedAmount);
+
+			result = executeBalanceUpdate(connection, dialect, preparedStatement, msisdn);
+		}
+		finally {
+			preparedStatement.close();
+		}
+	}
+
+	@Override
+	protected void complete(boolean committed) {
+		if (!committed) {
+			// unknown outcome, let ABMF handle it as an error
+			accountData = null;
+			return;
+		}
+
+		accountData = new UserAccountData();
+		accountData.setMsisdn(msisdn);
+
+		if (result == null) {
+			// no such user, or not enough balance
+			accountData.setBalance(0);
+			accountData.setFailure(true);
+			for (CreditControlUnit ccUnit : ccUnits) {
+				ccUnit.setReservedUnits(0);
+				ccUnit.setReservedAmount(0);
 			}
-			
-			for(CreditControlUnit ccUnit : ccUnits) {
-				long reservedAmount = ccUnit.getReservedAmount();
-				long usedAmount = ccUnit.getUsedAmount();
-				long requestedAmount = ccUnit.getRequestedAmount();
-				long requestedUnits = ccUnit.getRequestedUnits();
-
-				if (balance < requestedAmount){
-					accountData = new UserAccountData();
-					accountData.setMsisdn(msisdn);
-					accountData.setBalance(0);
-					accountData.setFailure(true);
-					ccUnit.setReservedUnits(0);
-					ccUnit.setReservedAmount(0);
-					if(tracer.isInfoEnabled()){
-						tracer.info("[//] User does not have sufficient balance for reservation. Balance available: " + balance + ".");
-					}
-					break;
-				}
-				else if (balance > requestedAmount) {
-					int n = 1;
-					tracer.info(("[//] Executing DB Statement '" + DataSourceSchemaInfo._QUERY_DEBIT).
-							replaceFirst("\\?", String.valueOf(requestedAmount)).
-							replaceFirst("\\?", msisdn)
-							);
-					preparedStatement = taskContext.getConnection().prepareStatement(DataSourceSchemaInfo._QUERY_DEBIT);
-					preparedStatement.setLong(n++, requestedAmount);
-					preparedStatement.setString(n++, msisdn);
-		
-					accountData = new UserAccountData();
-					accountData.setMsisdn(msisdn);
-		
-					if (preparedStatement.executeUpdate() == 1) {
-						// ok great, we have successfully reserved the units
-						preparedStatement = taskContext.getConnection().prepareStatement(DataSourceSchemaInfo._QUERY_SELECT);
-						preparedStatement.setString(1, msisdn);
-						//tracer.info(("[//] Executing DB Statement '" + DataSourceSchemaInfo._QUERY_SELECT).replaceFirst("\\?", msisdn));
-						preparedStatement.execute();
-						resultSet = preparedStatement.getResultSet();
-						while (resultSet.next()) {
-							balance = resultSet.getLong(DataSourceSchemaInfo._COL_BALANCE);
-							accountData.setBalance(balance);
-							accountData.setFailure(false);
-							ccUnit.setReservedUnits(requestedUnits);
-							ccUnit.setReservedAmount(requestedAmount);
-							ccInfo.setBalanceAfter(balance);
-						}
-					}
-					else {
-						// check what kind of error happened
-						accountData.setBalance(0);
-						accountData.setFailure(true);
-						ccUnit.setReservedUnits(0);
-						ccUnit.setReservedAmount(0);
-					}
-				}
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[//] User does not have sufficient balance for debiting " + requestedAmount + ".");
 			}
+			return;
 		}
-		catch (Exception e) {
-			tracer.severe("[xx] Failed to execute task to Reserve Units for MSISDN '" + msisdn + "'", e);
+
+		long balance = result[0];
+		ccInfo.setBalanceBefore(balance + requestedAmount);
+		for (CreditControlUnit ccUnit : ccUnits) {
+			ccUnit.setReservedUnits(ccUnit.getRequestedUnits());
+			ccUnit.setReservedAmount(ccUnit.getRequestedAmount());
 		}
-		return this;
+		accountData.setBalance(balance);
+		accountData.setFailure(false);
+		ccInfo.setBalanceAfter(balance);
 	}
 
 	public UserAccountData getAccountData() {
 		return accountData;
 	}
 
+	@Override
+	public String toString() {
+		return "DirectDebitUnitsJdbcTask[MSISDN=" + msisdn + "; R=" + requestedAmount + "]";
+	}
+
 	@Override
 	public void callBackParentOnException(SbbLocalObject parent) {
 		((AccountBalanceManagement) parent).reserveUnitsResult(ccInfo, accountData);
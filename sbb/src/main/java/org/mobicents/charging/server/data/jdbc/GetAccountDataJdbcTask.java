@@ -55,17 +55,28 @@ public class GetAccountDataJdbcTask extends DataSourceJdbcTask {
 	@Override
 	public Object executeSimple(JdbcTaskContext taskContext) {
 		try {
-			PreparedStatement preparedStatement = taskContext.getConnection().prepareStatement(DataSourceSchemaInfo._QUERY_SELECT);
-			preparedStatement.setString(1, msisdn);
-			tracer.info(("[//] Executing DB Statement '" + DataSourceSchemaInfo._QUERY_SELECT).replaceFirst("\\?", msisdn));
-			preparedStatement.execute();
-			ResultSet resultSet = preparedStatement.getResultSet();
-			accountDataList = new ArrayList<UserAccountData>();
-			while (resultSet.next()) {
-				UserAccountData accountData = new UserAccountData();
-				accountData.setMsisdn(resultSet.getString(DataSourceSchemaInfo._COL_MSISDN));
-				accountData.setBalance(resultSet.getLong(DataSourceSchemaInfo._COL_BALANCE));
-				accountDataList.add(accountData);
+			// only scan the table for patterns, single users are looked up by primary key
+			String query = DataSourceSchemaInfo.isPattern(msisdn) ? DataSourceSchemaInfo._QUERY_SELECT_LIKE : DataSourceSchemaInfo._QUERY_SELECT;
+			PreparedStatement preparedStatement = taskContext.getConnection().prepareStatement(query);
+			try {
+				preparedStatement.setString(1, msisdn);
+				tracer.info(("[//] Executing DB Statement '" + query).replaceFirst("\\?", msisdn));
+				ResultSet resultSet = preparedStatement.executeQuery();
+				try {
+					accountDataList = new ArrayList<UserAccountData>();
+					while (resultSet.next()) {
+						UserAccountData accountData = new UserAccountData();
+						accountData.setMsisdn(resultSet.getString(DataSourceSchemaInfo._COL_MSISDN));
+						accountData.setBalance(resultSet.getLong(DataSourceSchemaInfo._COL_BALANCE));
+						accountDataList.add(accountData);
+					}
+				}
+				finally {
+					resultSet.close();
+				}
+			}
+			finally {
+				preparedStatement.close();
 			}
 		}
 		catch (Exception e) {
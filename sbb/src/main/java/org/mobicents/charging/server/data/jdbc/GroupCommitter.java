@@ -0,0 +1,238 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2013, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.data.jdbc;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+
+import javax.slee.facilities.Tracer;
+import javax.slee.transaction.SleeTransaction;
+
+import org.mobicents.slee.resource.jdbc.task.JdbcTaskContext;
+
+/**
+ * Group commit for {@link BalanceUpdateJdbcTask}s, so that balance changes from many sessions share a single
+ * transaction (and a single disk sync) in the database.
+ * 
+ * Tasks still run in the JDBC RA threads, each in its own JDBC activity. The first task to arrive opens a batch and
+ * becomes its leader, waiting for the batch window to pass or the batch to fill. Tasks arriving meanwhile join the
+ * batch and wait for it to be done. The leader then applies all the tasks in one transaction, on its own connection,
+ * and commits. If that fails, each task is retried in its own transaction, so a single bad task does not fail the
+ * whole batch. Each task is then completed in its own thread, and the JDBC RA fires the result event on the task
+ * activity as usual.
+ * 
+ * @author ammendonca
+ */
+public class GroupCommitter {
+
+	private final Tracer tracer;
+
+	private final long windowNanos;
+	private final int maxTasks;
+
+	private Batch openBatch;
+
+	// statistics
+	private long batchCount;
+	private long taskCount;
+	private long fallbackCount;
+
+	private static final long STATISTICS_INTERVAL_NANOS = 60000L * 1000000L;
+	private long lastStatistics = System.nanoTime();
+
+	/**
+	 * @param windowMillis how long the leader waits for more tasks to join the batch
+	 * @param maxTasks the number of tasks which closes a batch before the window has passed
+	 * @param tracer
+	 */
+	public GroupCommitter(long windowMillis, int maxTasks, Tracer tracer) {
+		this.windowNanos = windowMillis * 1000000L;
+		this.maxTasks = maxTasks;
+		this.tracer = tracer;
+	}
+
+	/**
+	 * Executes the task in a group transaction, returning when the task is completed.
+	 * 
+	 * @param task the task to execute
+	 * @param taskContext the context of the task, whose connection is used if the task ends up leading the batch
+	 */
+	public void execute(BalanceUpdateJdbcTask task, JdbcTaskContext taskContext) {
+		Batch batch;
+		int index;
+		boolean leader;
+		synchronized (this) {
+			leader = openBatch == null;
+			if (leader) {
+				openBatch = new Batch();
+			}
+			batch = openBatch;
+			index = batch.tasks.size();
+			batch.tasks.add(task);
+			if (batch.tasks.size() >= maxTasks) {
+				// full, close it and wake up the leader
+				openBatch = null;
+				notifyAll();
+			}
+		}
+
+		if (leader) {
+			awaitClose(batch);
+			boolean[] committed = null;
+			try {
+				committed = commit(batch, taskContext);
+			}
+			finally {
+				synchronized (this) {
+					// never leave the other tasks waiting, failed if the commit did not even get an outcome
+					batch.committed = committed != null ? committed : new boolean[batch.tasks.size()];
+					batchCount++;
+					taskCount += batch.committed.length;
+					notifyAll();
+					logStatistics();
+				}
+			}
+		}
+		else {
+			awaitCommit(batch);
+		}
+
+		task.complete(batch.committed[index]);
+	}
+
+	private synchronized void awaitClose(Batch batch) {
+		boolean interrupted = false;
+		long deadline = System.nanoTime() + windowNanos;
+		long remaining;
+		while (openBatch == batch && (remaining = deadline - System.nanoTime()) > 0) {
+			try {
+				wait(remaining / 1000000L, (int) (remaining % 1000000L));
+			}
+			catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (openBatch == batch) {
+			openBatch = null;
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private synchronized void awaitCommit(Batch batch) {
+		// can't leave before the batch is done, as the task is part of it
+		boolean interrupted = false;
+		while (batch.committed == null) {
+			try {
+				wait();
+			}
+			catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private boolean[] commit(Batch batch, JdbcTaskContext taskContext) {
+		int size = batch.tasks.size();
+		boolean[] committed = new boolean[size];
+
+		SleeTransaction tx = null;
+		try {
+			tx = taskContext.getSleeTransactionManager().beginSleeTransaction();
+			Connection connection = taskContext.getConnection();
+			DataSourceSchemaInfo.Dialect dialect = DataSourceSchemaInfo.getDialect();
+			for (int i = 0; i < size; i++) {
+				batch.tasks.get(i).apply(connection, dialect);
+			}
+			tx.commit();
+			tx = null;
+			for (int i = 0; i < size; i++) {
+				committed[i] = true;
+			}
+			if (tracer.isFineEnabled()) {
+				tracer.fine("[//] Group committed " + size + " task(s).");
+			}
+			return committed;
+		}
+		catch (Exception e) {
+			tracer.warning("[!!] Failed to group commit " + size + " task(s). Retrying each in its own transaction.", e);
+		}
+		finally {
+			if (tx != null) {
+				try {
+					tx.rollback();
+				}
+				catch (Exception f) {
+					tracer.severe("[xx] Failed to rollback tx", f);
+				}
+			}
+		}
+
+		synchronized (this) {
+			fallbackCount++;
+		}
+		for (int i = 0; i < size; i++) {
+			committed[i] = batch.tasks.get(i).executeAlone(taskContext);
+		}
+		return committed;
+	}
+
+	// called with the lock held
+	private void logStatistics() {
+		long now = System.nanoTime();
+		if (now - lastStatistics >= STATISTICS_INTERVAL_NANOS) {
+			lastStatistics = now;
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[//] " + this);
+			}
+		}
+	}
+
+	public synchronized long getBatchCount() {
+		return batchCount;
+	}
+
+	public synchronized long getTaskCount() {
+		return taskCount;
+	}
+
+	public synchronized long getFallbackCount() {
+		return fallbackCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "GroupCommitter[Window=" + (windowNanos / 1000000L) + "ms; MaxTasks=" + maxTasks + "; Batches=" + batchCount + "; Tasks=" + taskCount + "; Fallbacks=" + fallbackCount + "]";
+	}
+
+	private static class Batch {
+		final ArrayList<BalanceUpdateJdbcTask> tasks = new ArrayList<BalanceUpdateJdbcTask>();
+		// set when the batch is done, with the outcome for each task
+		boolean[] committed;
+	}
+
+}
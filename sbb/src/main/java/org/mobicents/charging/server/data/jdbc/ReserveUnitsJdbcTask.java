@@ -22,8 +22,10 @@
 
 package org.mobicents.charging.server.data.jdbc;
 
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
 
 import javax.slee.SbbLocalObject;
@@ -33,13 +35,12 @@ import org.mobicents.charging.server.account.AccountBalanceManagement;
 import org.mobicents.charging.server.account.CreditControlInfo;
 import org.mobicents.charging.server.account.CreditControlUnit;
 import org.mobicents.charging.server.data.UserAccountData;
-import org.mobicents.slee.resource.jdbc.task.JdbcTaskContext;
 
 /**
  * @author ammendonca
  * @author rsaranathan
  */
-public class ReserveUnitsJdbcTask extends DataSourceJdbcTask {
+public class ReserveUnitsJdbcTask extends BalanceUpdateJdbcTask {
 
 	private CreditControlInfo ccInfo = null;
 	private UserAccountData accountData = null;
@@ -47,109 +48,148 @@ public class ReserveUnitsJdbcTask extends DataSourceJdbcTask {
 	private String msisdn;
 	private ArrayList<CreditControlUnit> ccUnits;
 
-	private Tracer tracer;
+	// All units are applied at once: previous reservations are returned and the new ones made in one statement
+	private long releasedAmount;
+	private long refundAmount;
+	private long requestedAmount;
+	private boolean capped;
+
+	private long[] result;
+	private long grantedAmount;
 
 	public ReserveUnitsJdbcTask(CreditControlInfo ccInfo, Tracer tracer) {
+		super(tracer);
 		this.ccInfo = ccInfo;
 		this.msisdn = ccInfo.getSubscriptionId();
 		this.ccUnits = ccInfo.getCcUnits();
-		this.tracer = tracer;
+
+		for (int i = 0; i < ccUnits.size(); i++) {
+			CreditControlUnit ccUnit = ccUnits.get(i);
+			releasedAmount += ccUnit.getReservedAmount();
+			refundAmount += ccUnit.getReservedAmount() - ccUnit.getUsedAmount();
+			requestedAmount += ccUnit.getRequestedAmount();
+			// Rated units are capped to the available balance, in the same statement as the reservation
+			capped |= ccUnit.getRateForService() > 0;
+		}
+		// If nothing is requested it's only returning units, which must always be applied
+		capped &= requestedAmount > 0;
 	}
 
+	/**
+	 * Reserves units with a single conditional statement, in the form given by the dialect. If a capped reserve can't
+	 * be granted in full, what is available is read with the row locked and reserved instead.
+	 */
 	@Override
-	public Object executeSimple(JdbcTaskContext taskContext) {
+	protected void apply(Connection connection, DataSourceSchemaInfo.Dialect dialect) throws SQLException {
+		result = reserve(connection, dialect, capped, requestedAmount);
+		grantedAmount = requestedAmount;
+		if (result != null || !capped) {
+			return;
+		}
+
+		// the balance may have changed since the capped reserve, it's locked from here on
+		long availableAmount = Math.min(selectBalanceForUpdate(connection) + refundAmount, requestedAmount);
+		if (availableAmount > 0) {
+			result = reserve(connection, dialect, false, availableAmount);
+			grantedAmount = availableAmount;
+		}
+	}
+
+	private long[] reserve(Connection connection, DataSourceSchemaInfo.Dialect dialect, boolean capped, long amount) throws SQLException {
+		String query = dialect.getReserveQuery(capped);
+		if (tracer.isFineEnabled()) {
+			tracer.fine("[//] Executing DB Statement '" + query + "' for MSISDN '" + msisdn + "' with G=" + releasedAmount + ", (G-U)=" + refundAmount + " and R=" + amount);
+		}
+
+		PreparedStatement preparedStatement = connection.prepareStatement(query);
+		try {
+			int n = 1;
+			preparedStatement.setLong(n++, refundAmount);
+			preparedStatement.setLong(n++, amount);
+			preparedStatement.setLong(n++, releasedAmount);
+			preparedStatement.setLong(n++, amount);
+			preparedStatement.setString(n++, msisdn);
+			if (capped) {
+				preparedStatement.setLong(n++, refundAmount);
+				preparedStatement.setLong(n++, amount);
+			}
+
+			return executeBalanceUpdate(connection, dialect, preparedStatement, msisdn);
+		}
+		finally {
+			preparedStatement.close();
+		}
+	}
+
+	private long selectBalanceForUpdate(Connection connection) throws SQLException {
+		PreparedStatement preparedStatement = connection.prepareStatement(DataSourceSchemaInfo._QUERY_SELECT_BALANCE_FOR_UPDATE);
 		try {
-			long balance = 0;
-			// get Balance Before (can this be made more efficient?)
-			PreparedStatement preparedStatement = taskContext.getConnection().prepareStatement(DataSourceSchemaInfo._QUERY_SELECT);
 			preparedStatement.setString(1, msisdn);
-			preparedStatement.execute();
-			ResultSet resultSet = preparedStatement.getResultSet();
-			while (resultSet.next()) {
-				balance = resultSet.getLong(DataSourceSchemaInfo._COL_BALANCE);
-				ccInfo.setBalanceBefore(balance);
+			ResultSet resultSet = preparedStatement.executeQuery();
+			try {
+				// no such user, the reserve then touches no row
+				return resultSet.next() ? resultSet.getLong(1) : 0;
 			}
-			
-			for(int i=0; i<ccUnits.size();i++){
-				CreditControlUnit ccUnit = ccUnits.get(i);
-				if(balance<=0 && ccUnit.getRateForService()>0){
-					accountData = new UserAccountData();
-					accountData.setMsisdn(msisdn);
-					accountData.setBalance(0);
-					accountData.setFailure(true);
-					ccUnit.setReservedUnits(0);
-					ccUnit.setReservedAmount(0);
-					if(tracer.isInfoEnabled()){
-						tracer.info("[//] User does not have sufficient balance for reservation. Balance available: "+balance+".");
-					}
-					break;
-				}else{
-					long reservedAmount = ccUnit.getReservedAmount();
-					long usedAmount = ccUnit.getUsedAmount();
-					long requestedAmount = ccUnit.getRequestedAmount();
-					long requestedUnits = ccUnit.getRequestedUnits();
-					if(ccUnit.getRateForService()>0){
-						//If RSU < balance, reserve and set GSU=balance	
-						if((reservedAmount-usedAmount+requestedAmount)>balance){
-							long newRequestedAmount = balance;
-							long newRequestedUnits = (long) Math.floor(newRequestedAmount/ccUnit.getRateForService()); 
-							if(tracer.isInfoEnabled()){
-								tracer.info("[//] User does not have sufficient balance for the entire reservation request ("+requestedUnits+" " + ccUnit.getUnitType() + " units @rate="+ccUnit.getRateForService()+"). Balance available: "+balance+". Reserving "+newRequestedUnits+" units instead ...");
-							}
-							requestedAmount = newRequestedAmount;
-							requestedUnits = newRequestedUnits;
-							//TODO: Need to set Final Unit Indication for this case.
-							// See http://www.ietf.org/rfc/rfc4006.txt, 8.34.  Final-Unit-Indication AVP
-							
-						}
-					}
-	
-					int n = 1;
-					tracer.info(("[//] Executing DB Statement '" + DataSourceSchemaInfo._QUERY_RESERVE).
-							replaceFirst("\\?", String.valueOf(reservedAmount-usedAmount)).
-							replaceFirst("\\?", String.valueOf(requestedAmount)).
-							replaceFirst("\\?", String.valueOf(requestedAmount)).
-							replaceFirst("\\?", msisdn)
-							);
-					preparedStatement = taskContext.getConnection().prepareStatement(DataSourceSchemaInfo._QUERY_RESERVE);
-					preparedStatement.setLong(n++, (reservedAmount-usedAmount));
-					preparedStatement.setLong(n++, requestedAmount);
-					preparedStatement.setLong(n++, requestedAmount);
-					preparedStatement.setString(n++, msisdn);
-		
-					accountData = new UserAccountData();
-					accountData.setMsisdn(msisdn);
-		
-					if (preparedStatement.executeUpdate() == 1) {
-						// ok great, we have successfully reserved the units
-						preparedStatement = taskContext.getConnection().prepareStatement(DataSourceSchemaInfo._QUERY_SELECT);
-						preparedStatement.setString(1, msisdn);
-						//tracer.info(("[//] Executing DB Statement '" + DataSourceSchemaInfo._QUERY_SELECT).replaceFirst("\\?", msisdn));
-						preparedStatement.execute();
-						resultSet = preparedStatement.getResultSet();
-						while (resultSet.next()) {
-							balance = resultSet.getLong(DataSourceSchemaInfo._COL_BALANCE);
-							accountData.setBalance(balance);
-							accountData.setFailure(false);
-							ccUnit.setReservedUnits(requestedUnits);
-							ccUnit.setReservedAmount(requestedAmount);
-							ccInfo.setBalanceAfter(balance);
-						}
-					}
-					else {
-						// check what kind of error happened
-						accountData.setBalance(0);
-						accountData.setFailure(true);
-						ccUnit.setReservedUnits(0);
-						ccUnit.setReservedAmount(0);
-					}
-				}
+			finally {
+				resultSet.close();
 			}
 		}
-		catch (Exception e) {
-			tracer.severe("[xx] Failed to execute task to Reserve Units for MSISDN '" + msisdn + "'", e);
+		finally {
+			preparedStatement.close();
 		}
-		return this;
+	}
+
+	@Override
+	protected void complete(boolean committed) {
+		if (!committed) {
+			// unknown outcome, let ABMF handle it as an error
+			accountData = null;
+			return;
+		}
+
+		accountData = new UserAccountData();
+		accountData.setMsisdn(msisdn);
+
+		if (result == null) {
+			// no such user, or no balance available
+			accountData.setBalance(0);
+			accountData.setFailure(true);
+			for (int i = 0; i < ccUnits.size(); i++) {
+				ccUnits.get(i).setReservedUnits(0);
+				ccUnits.get(i).setReservedAmount(0);
+			}
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[//] User does not have sufficient balance for reservation.");
+			}
+			return;
+		}
+
+		long balance = result[0];
+		long grantedAmount = this.grantedAmount;
+		ccInfo.setBalanceBefore(balance + grantedAmount - refundAmount);
+
+		// Distribute the granted amount over the units, in order
+		for (int i = 0; i < ccUnits.size(); i++) {
+			CreditControlUnit ccUnit = ccUnits.get(i);
+			long unitRequestedAmount = ccUnit.getRequestedAmount();
+			long unitGrantedAmount = Math.min(unitRequestedAmount, grantedAmount);
+			long unitGrantedUnits = ccUnit.getRequestedUnits();
+			grantedAmount -= unitGrantedAmount;
+			if (unitGrantedAmount < unitRequestedAmount) {
+				unitGrantedUnits = (long) Math.floor(unitGrantedAmount / ccUnit.getRateForService());
+				if (tracer.isInfoEnabled()) {
+					tracer.info("[//] User does not have sufficient balance for the entire reservation request (" + ccUnit.getRequestedUnits() + " " + ccUnit.getUnitType() + " units @rate=" + ccUnit.getRateForService() + "). Reserved " + unitGrantedUnits + " units instead ...");
+				}
+				//TODO: Need to set Final Unit Indication for this case.
+				// See http://www.ietf.org/rfc/rfc4006.txt, 8.34.  Final-Unit-Indication AVP
+			}
+			ccUnit.setReservedUnits(unitGrantedUnits);
+			ccUnit.setReservedAmount(unitGrantedAmount);
+		}
+
+		accountData.setBalance(balance);
+		accountData.setFailure(false);
+		ccInfo.setBalanceAfter(balance);
 	}
 
 	public UserAccountData getAccountData() {
@@ -161,6 +201,11 @@ public class ReserveUnitsJdbcTask extends DataSourceJdbcTask {
 		((AccountBalanceManagement) parent).reserveUnitsResult(ccInfo, accountData);
 	}
 
+	@Override
+	public String toString() {
+		return "ReserveUnitsJdbcTask[MSISDN=" + msisdn + "; G=" + releasedAmount + "; (G-U)=" + refundAmount + "; R=" + requestedAmount + "; Capped=" + capped + "]";
+	}
+
 	@Override
 	public void callBackParentOnResult(SbbLocalObject parent) {
 		((AccountBalanceManagement) parent).reserveUnitsResult(ccInfo, accountData);
@@ -43,6 +43,8 @@ public class UpdateUserJdbcTask extends DataSourceJdbcTask {
 	private String msisdn;
 	private final Tracer tracer;
 
+	private boolean inserted;
+
 	public UpdateUserJdbcTask(String msisdn, Tracer tracer) {
 		this.msisdn = msisdn;
 		this.tracer = tracer;
@@ -62,16 +64,23 @@ public class UpdateUserJdbcTask extends DataSourceJdbcTask {
 			Connection connection = taskContext.getConnection();
 			// static value of query string, since its widely used :)
 			PreparedStatement preparedStatement = connection.prepareStatement(DataSourceSchemaInfo._QUERY_INSERT);
-			preparedStatement.setString(1, msisdn);
-			preparedStatement.setFloat(2, balance);
-			preparedStatement.setDate(3, null);
-			preparedStatement.setTimestamp(4, null);
-			preparedStatement.setString(5, "Active");
-			int inserts = preparedStatement.executeUpdate();
+			int inserts;
+			try {
+				preparedStatement.setString(1, msisdn);
+				preparedStatement.setLong(2, balance);
+				preparedStatement.setDate(3, null);
+				preparedStatement.setTimestamp(4, null);
+				preparedStatement.setString(5, "Active");
+				inserts = preparedStatement.executeUpdate();
+			}
+			finally {
+				preparedStatement.close();
+			}
 
 			tx.commit();
 			tx = null;
 
+			inserted = inserts == 1;
 			return inserts;
 		}
 		catch (Exception e) {
@@ -94,9 +103,16 @@ public class UpdateUserJdbcTask extends DataSourceJdbcTask {
 		((DiameterChargingServer) parent).updateAccountDataResult(false);
 	}
 
+	/**
+	 * @return true if the user was inserted and committed
+	 */
+	protected boolean isInserted() {
+		return inserted;
+	}
+
 	@Override
 	public void callBackParentOnResult(SbbLocalObject parent) {
-		((DiameterChargingServer) parent).updateAccountDataResult(true);
+		((DiameterChargingServer) parent).updateAccountDataResult(inserted);
 	}
 
 }
@@ -0,0 +1,276 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2013, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.data.memory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Local write-ahead journal of the balance changes made in the {@link UserBalanceStore}, so that they survive a
+ * restart before being written back to the database.
+ *
+ * Each record holds the state of a user row after the change (key, balance and reserved amount), so replaying keeps
+ * the last record of each user and is idempotent. Records are appended to a memory-mapped segment file, and
+ * {@link #sync()} forces them to disk. Concurrent callers of {@link #sync()} share a single force.
+ *
+ * There are two segments. When a write-behind flush starts the journal is rotated, and the segment written until then
+ * is released once the flush has committed all the rows. If the flush fails the segment is kept, and no rotation is
+ * done, until a later flush succeeds. A segment is reused with a higher generation, which is part of the record
+ * checksum, so stale records from its previous use are not replayed.
+ *
+ * Appends are done by the store, under its monitor, before changing the row.
+ *
+ * @author ammendonca
+ */
+public class BalanceJournal {
+
+	public static final int OP_PUT = 1;
+	public static final int OP_RESERVE = 2;
+	public static final int OP_DEBIT = 3;
+	public static final int OP_REVERT = 4;
+
+	private static final int MAGIC = 0x434A4E4C; // "CJNL"
+
+	// magic (int), pad (int), generation (long)
+	private static final int HEADER_SIZE = 16;
+	// key (long), balance (long), reserved (long), op (int), checksum (int)
+	private static final int RECORD_SIZE = 32;
+
+	private final Segment[] segments = new Segment[2];
+
+	private int active;
+	private boolean pending;
+	private long generation;
+
+	private volatile long appended;
+	private long forced;
+	private final Object forceLock = new Object();
+
+	/**
+	 * Opens (or creates) the journal in the given directory. Records already in it can be read with
+	 * {@link #replay(Replayer)}, and must be discarded with {@link #reset()} before appending.
+	 *
+	 * @param directory the journal directory
+	 * @param segmentSize the initial size of each segment, in bytes. Segments grow if needed.
+	 * @throws IOException
+	 */
+	public BalanceJournal(File directory, int segmentSize) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create journal directory " + directory);
+		}
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = new Segment(new File(directory, "balances-" + i + ".journal"), segmentSize);
+			generation = Math.max(generation, segments[i].readGeneration());
+		}
+	}
+
+	/**
+	 * Callback for {@link BalanceJournal#replay(Replayer)}.
+	 */
+	public interface Replayer {
+
+		void replay(long key, long balance, long reserved);
+
+	}
+
+	/**
+	 * Reads the records of both segments, oldest first, until the first missing or torn record of each.
+	 *
+	 * @return the number of records read
+	 */
+	public synchronized int replay(Replayer replayer) {
+		int first = segments[0].readGeneration() <= segments[1].readGeneration() ? 0 : 1;
+		return segments[first].replay(replayer) + segments[1 - first].replay(replayer);
+	}
+
+	/**
+	 * Discards all records and starts appending to a new segment.
+	 */
+	public synchronized void reset() throws IOException {
+		for (Segment segment : segments) {
+			segment.clear();
+		}
+		pending = false;
+		segments[active].start(++generation);
+		for (Segment segment : segments) {
+			segment.buffer.force();
+		}
+	}
+
+	/**
+	 * Appends the state of a user row after a change, before it is made.
+	 *
+	 * @throws IOException if the segment could not be grown, in which case nothing is appended
+	 */
+	public synchronized void append(int op, long key, long balance, long reserved) throws IOException {
+		segments[active].append(op, key, balance, reserved, generation);
+		appended++;
+	}
+
+	/**
+	 * Starts a new segment for the changes made from now on. The previous segment must be kept until everything
+	 * written to it is in the database, see {@link #release()}.
+	 *
+	 * @return false if the previous rotation was not released yet, in which case nothing is done
+	 */
+	public synchronized boolean rotate() {
+		if (pending) {
+			return false;
+		}
+		active = 1 - active;
+		segments[active].start(++generation);
+		pending = true;
+		return true;
+	}
+
+	/**
+	 * Discards the segment left behind by the last {@link #rotate()}. This is forced to disk, otherwise its records
+	 * could be replayed over newer balances after a crash.
+	 */
+	public void release() throws IOException {
+		MappedByteBuffer buffer;
+		synchronized (this) {
+			if (!pending) {
+				return;
+			}
+			buffer = segments[1 - active].clear();
+			pending = false;
+		}
+		buffer.force();
+	}
+
+	/**
+	 * Forces all records appended so far to disk. Returns without forcing if they were already forced by another
+	 * caller meanwhile.
+	 */
+	public void sync() throws IOException {
+		long target = appended;
+		synchronized (forceLock) {
+			if (forced >= target) {
+				return;
+			}
+			long upTo = appended;
+			MappedByteBuffer[] buffers;
+			synchronized (this) {
+				buffers = new MappedByteBuffer[] {segments[0].buffer, segments[1].buffer};
+			}
+			for (MappedByteBuffer buffer : buffers) {
+				buffer.force();
+			}
+			forced = upTo;
+		}
+	}
+
+	public synchronized void close() throws IOException {
+		for (Segment segment : segments) {
+			segment.close();
+		}
+	}
+
+	private static int checksum(long generation, int op, long key, long balance, long reserved) {
+		long h = generation * 0x9E3779B97F4A7C15L;
+		h = (h ^ op) * 0x9E3779B97F4A7C15L;
+		h = (h ^ key) * 0x9E3779B97F4A7C15L;
+		h = (h ^ balance) * 0x9E3779B97F4A7C15L;
+		h = (h ^ reserved) * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) | 1;
+	}
+
+	/**
+	 * A journal file, memory-mapped as a whole.
+	 */
+	private static class Segment {
+
+		private final RandomAccessFile file;
+		private MappedByteBuffer buffer;
+		private int position;
+
+		Segment(File path, int size) throws IOException {
+			file = new RandomAccessFile(path, "rw");
+			map(Math.max(size, (int) Math.min(file.length(), Integer.MAX_VALUE)));
+			position = HEADER_SIZE;
+		}
+
+		long readGeneration() {
+			return buffer.getInt(0) == MAGIC ? buffer.getLong(8) : 0;
+		}
+
+		void start(long generation) {
+			buffer.putInt(0, MAGIC);
+			buffer.putLong(8, generation);
+			position = HEADER_SIZE;
+		}
+
+		MappedByteBuffer clear() {
+			buffer.putInt(0, 0);
+			buffer.putLong(8, 0);
+			position = HEADER_SIZE;
+			return buffer;
+		}
+
+		void append(int op, long key, long balance, long reserved, long generation) throws IOException {
+			if (position + RECORD_SIZE > buffer.capacity()) {
+				map(buffer.capacity() << 1);
+			}
+			buffer.putLong(position, key);
+			buffer.putLong(position + 8, balance);
+			buffer.putLong(position + 16, reserved);
+			buffer.putInt(position + 24, op);
+			buffer.putInt(position + 28, checksum(generation, op, key, balance, reserved));
+			position += RECORD_SIZE;
+		}
+
+		int replay(Replayer replayer) {
+			long generation = readGeneration();
+			if (generation == 0) {
+				return 0;
+			}
+			int count = 0;
+			for (int p = HEADER_SIZE; p + RECORD_SIZE <= buffer.capacity(); p += RECORD_SIZE) {
+				long key = buffer.getLong(p);
+				long balance = buffer.getLong(p + 8);
+				long reserved = buffer.getLong(p + 16);
+				int op = buffer.getInt(p + 24);
+				if (buffer.getInt(p + 28) != checksum(generation, op, key, balance, reserved)) {
+					break;
+				}
+				replayer.replay(key, balance, reserved);
+				count++;
+			}
+			return count;
+		}
+
+		private void map(int size) throws IOException {
+			buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+
+		void close() throws IOException {
+			buffer.force();
+			file.close();
+		}
+	}
+
+}
@@ -0,0 +1,569 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2013, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.data.memory;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.slee.SbbContext;
+import javax.slee.SbbLocalObject;
+import javax.slee.facilities.Tracer;
+
+import org.mobicents.charging.server.DiameterChargingServer;
+import org.mobicents.charging.server.account.AccountBalanceManagement;
+import org.mobicents.charging.server.account.CreditControlInfo;
+import org.mobicents.charging.server.account.CreditControlUnit;
+import org.mobicents.charging.server.data.UserAccountData;
+import org.mobicents.charging.server.data.jdbc.DataSourceSbb;
+import org.mobicents.charging.server.data.jdbc.DataSourceSchemaInfo;
+import org.mobicents.slee.SbbContextExt;
+
+/**
+ * In-Memory Datasource Child SBB
+ * 
+ * This SBB keeps all the users balances in memory, in a {@link UserBalanceStore} shared by all SBB entities, which is
+ * authoritative once loaded from the database on init. Reservations and debits are answered synchronously from
+ * memory, and the changed balances are written back to the database asynchronously through the JDBC Resource Adaptor.
+ * 
+ * Changes are appended to a local {@link BalanceJournal} and forced to disk before answering, so those not yet written
+ * back survive a restart. The journal is replayed into the database on init, before loading the users.
+ * 
+ * @author ammendonca
+ */
+public abstract class DataSourceInMemorySbb extends DataSourceSbb {
+
+	/**
+	 * the SBB object context
+	 */
+	private SbbContextExt sbbContextExt;
+
+	/**
+	 * the SBB logger
+	 */
+	private static Tracer tracer;
+
+	private static final int EXPECTED_USERS = 1 << 16;
+
+	private static final UserBalanceStore store = new UserBalanceStore(EXPECTED_USERS);
+
+	private static boolean loaded = false;
+
+	private static final int JOURNAL_SEGMENT_SIZE = 1 << 20;
+
+	// --------------------------- Local Interface ----------------------------
+
+	@Override
+	public void init() {
+		// create db schema if needed
+		super.init();
+
+		synchronized (store) {
+			if (loaded) {
+				return;
+			}
+			Connection connection = null;
+			try {
+				connection = getJdbcConnection();
+				BalanceJournal journal = openJournal();
+				if (journal != null) {
+					replayJournal(connection, journal);
+				}
+
+				PreparedStatement preparedStatement = connection.prepareStatement(DataSourceSchemaInfo._QUERY_SELECT_ALL);
+				ResultSet resultSet = preparedStatement.executeQuery();
+				while (resultSet.next()) {
+					String msisdn = resultSet.getString(DataSourceSchemaInfo._COL_MSISDN);
+					long key = UserBalanceStore.toKey(msisdn);
+					if (key == UserBalanceStore.NO_ENTRY) {
+						tracer.warning("[!!] Skipping user with non-numeric MSISDN '" + msisdn + "'. It will not be able to use the service.");
+						continue;
+					}
+					store.load(key, resultSet.getLong(DataSourceSchemaInfo._COL_BALANCE), resultSet.getLong(DataSourceSchemaInfo._COL_RESERVED));
+				}
+				preparedStatement.close();
+
+				if (journal != null) {
+					try {
+						journal.reset();
+						store.setJournal(journal);
+					}
+					catch (IOException e) {
+						tracer.severe("[xx] Unable to reset the balance journal. Balance changes will not be journaled.", e);
+					}
+				}
+				loaded = true;
+				if (tracer.isInfoEnabled()) {
+					tracer.info("[><] Loaded " + store.size() + " user(s) into memory.");
+				}
+			}
+			catch (SQLException e) {
+				tracer.severe("[xx] Unable to load users from the database into memory.", e);
+			}
+			finally {
+				try {
+					if (connection != null) {
+						connection.close();
+					}
+				}
+				catch (SQLException e) {
+					tracer.severe("[xx] Failed to close JDBC Connection", e);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void getUserAccountData(String msisdn) {
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[><] Calling getUserAccountData(" + msisdn + ")");
+		}
+		if (!DataSourceSchemaInfo.isPattern(msisdn)) {
+			// single user, direct lookup
+			List<UserAccountData> accountDataList = new ArrayList<UserAccountData>();
+			long balance = store.getBalance(UserBalanceStore.toKey(msisdn));
+			if (balance != UserBalanceStore.NO_ENTRY) {
+				UserAccountData accountData = new UserAccountData();
+				accountData.setMsisdn(msisdn);
+				accountData.setBalance(balance);
+				accountDataList.add(accountData);
+			}
+			((AccountBalanceManagement) getParent()).getAccountDataResult(accountDataList);
+			return;
+		}
+
+		// msisdn is a SQL LIKE pattern, convert it to regex
+		StringBuilder regex = new StringBuilder();
+		for (char c : msisdn.toCharArray()) {
+			if (c == '%') {
+				regex.append(".*");
+			}
+			else if (c == '_') {
+				regex.append('.');
+			}
+			else {
+				regex.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+		Pattern pattern = Pattern.compile(regex.toString());
+
+		long[] keys;
+		long[] balances;
+		int n;
+		synchronized (store) {
+			keys = new long[store.size()];
+			balances = new long[keys.length];
+			n = store.snapshot(keys, balances);
+		}
+
+		List<UserAccountData> accountDataList = new ArrayList<UserAccountData>();
+		for (int i = 0; i < n; i++) {
+			String userMsisdn = UserBalanceStore.toMsisdn(keys[i]);
+			if (pattern.matcher(userMsisdn).matches()) {
+				UserAccountData accountData = new UserAccountData();
+				accountData.setMsisdn(userMsisdn);
+				accountData.setBalance(balances[i]);
+				accountDataList.add(accountData);
+			}
+		}
+
+		((AccountBalanceManagement) getParent()).getAccountDataResult(accountDataList);
+	}
+
+	@Override
+	public void requestUnits(CreditControlInfo ccInfo) {
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[><] Requesting Units: " + ccInfo);
+		}
+
+		String msisdn = ccInfo.getSubscriptionId();
+		long key = UserBalanceStore.toKey(msisdn);
+		ArrayList<CreditControlUnit> ccUnits = ccInfo.getCcUnits();
+		UserAccountData accountData = new UserAccountData();
+
+		// all the units are reserved at once, as by ReserveUnitsJdbcTask: B = B + (G - U) - R, RESERVED = RESERVED - G + R
+		long releasedAmount = 0;
+		long refundAmount = 0;
+		long requestedAmount = 0;
+		boolean capped = false;
+		for (int i = 0; i < ccUnits.size(); i++) {
+			CreditControlUnit ccUnit = ccUnits.get(i);
+			releasedAmount += ccUnit.getReservedAmount();
+			refundAmount += ccUnit.getReservedAmount() - ccUnit.getUsedAmount();
+			requestedAmount += ccUnit.getRequestedAmount();
+			// Rated units are capped to the available balance
+			capped |= ccUnit.getRateForService() > 0;
+		}
+		// If nothing is requested it's only returning units, which must always be applied
+		capped &= requestedAmount > 0;
+
+		// what was applied, to revert it if it cannot be made durable
+		boolean changed = false;
+		long applied = 0;
+		long reservedApplied = 0;
+		try {
+			synchronized (store) {
+				long balance = store.getBalance(key);
+				if (balance == UserBalanceStore.NO_ENTRY) {
+					// unknown user, leave msisdn unset
+					accountData.setFailure(true);
+				}
+				else if (capped && balance + refundAmount <= 0) {
+					accountData.setMsisdn(msisdn);
+					accountData.setBalance(0);
+					accountData.setFailure(true);
+					for (int i = 0; i < ccUnits.size(); i++) {
+						ccUnits.get(i).setReservedUnits(0);
+						ccUnits.get(i).setReservedAmount(0);
+					}
+					if (tracer.isInfoEnabled()) {
+						tracer.info("[//] User does not have sufficient balance for reservation. Balance available: " + balance + ".");
+					}
+				}
+				else {
+					accountData.setMsisdn(msisdn);
+					ccInfo.setBalanceBefore(balance);
+
+					long grantedAmount = capped ? Math.min(requestedAmount, balance + refundAmount) : requestedAmount;
+					long reservedBalance = store.reserve(key, releasedAmount, refundAmount, grantedAmount);
+					changed = true;
+					applied = reservedBalance - balance;
+					reservedApplied = grantedAmount - releasedAmount;
+
+					// Distribute the granted amount over the units, in order
+					for (int i = 0; i < ccUnits.size(); i++) {
+						CreditControlUnit ccUnit = ccUnits.get(i);
+						long unitRequestedAmount = ccUnit.getRequestedAmount();
+						long unitGrantedAmount = Math.min(unitRequestedAmount, grantedAmount);
+						long unitGrantedUnits = ccUnit.getRequestedUnits();
+						grantedAmount -= unitGrantedAmount;
+						if (unitGrantedAmount < unitRequestedAmount) {
+							unitGrantedUnits = (long) Math.floor(unitGrantedAmount / ccUnit.getRateForService());
+							if (tracer.isInfoEnabled()) {
+								tracer.info("[//] User does not have sufficient balance for the entire reservation request (" + ccUnit.getRequestedUnits() + " " + ccUnit.getUnitType() + " units @rate=" + ccUnit.getRateForService() + "). Balance available: " + balance + ". Reserving " + unitGrantedUnits + " units instead ...");
+							}
+						}
+						ccUnit.setReservedUnits(unitGrantedUnits);
+						ccUnit.setReservedAmount(unitGrantedAmount);
+					}
+
+					accountData.setBalance(reservedBalance);
+					accountData.setFailure(false);
+					ccInfo.setBalanceAfter(reservedBalance);
+				}
+			}
+
+			syncJournal();
+		}
+		catch (IOException e) {
+			tracer.severe("[xx] Unable to journal reservation for MSISDN '" + msisdn + "'. Reverting it.", e);
+			accountData = revert(key, changed, applied, reservedApplied, ccUnits);
+		}
+
+		writeBehind();
+		((AccountBalanceManagement) getParent()).reserveUnitsResult(ccInfo, accountData);
+	}
+
+	@Override
+	public void directDebitUnits(CreditControlInfo ccInfo) {
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[><] Debiting Units: " + ccInfo);
+		}
+
+		String msisdn = ccInfo.getSubscriptionId();
+		long key = UserBalanceStore.toKey(msisdn);
+		ArrayList<CreditControlUnit> ccUnits = ccInfo.getCcUnits();
+		UserAccountData accountData = new UserAccountData();
+
+		// all the units are debited at once or none is, as by DirectDebitUnitsJdbcTask: B = B - R, if B >= R
+		long requestedAmount = 0;
+		for (CreditControlUnit ccUnit : ccUnits) {
+			requestedAmount += ccUnit.getRequestedAmount();
+		}
+
+		// what was applied, to revert it if it cannot be made durable
+		boolean changed = false;
+		long applied = 0;
+		try {
+			synchronized (store) {
+				long balance = store.getBalance(key);
+				if (balance == UserBalanceStore.NO_ENTRY) {
+					// unknown user, leave msisdn unset
+					accountData.setFailure(true);
+				}
+				else if (balance < requestedAmount) {
+					accountData.setMsisdn(msisdn);
+					accountData.setBalance(0);
+					accountData.setFailure(true);
+					for (CreditControlUnit ccUnit : ccUnits) {
+						ccUnit.setReservedUnits(0);
+						ccUnit.setReservedAmount(0);
+					}
+					if (tracer.isInfoEnabled()) {
+						tracer.info("[//] User does not have sufficient balance for debiting " + requestedAmount + ". Balance available: " + balance + ".");
+					}
+				}
+				else {
+					accountData.setMsisdn(msisdn);
+					ccInfo.setBalanceBefore(balance);
+
+					long debitedBalance = store.debit(key, requestedAmount);
+					changed = true;
+					applied = debitedBalance - balance;
+
+					for (CreditControlUnit ccUnit : ccUnits) {
+						ccUnit.setReservedUnits(ccUnit.getRequestedUnits());
+						ccUnit.setReservedAmount(ccUnit.getRequestedAmount());
+					}
+
+					accountData.setBalance(debitedBalance);
+					accountData.setFailure(false);
+					ccInfo.setBalanceAfter(debitedBalance);
+				}
+			}
+
+			syncJournal();
+		}
+		catch (IOException e) {
+			tracer.severe("[xx] Unable to journal debit for MSISDN '" + msisdn + "'. Reverting it.", e);
+			accountData = revert(key, changed, applied, 0, ccUnits);
+		}
+
+		writeBehind();
+		((AccountBalanceManagement) getParent()).reserveUnitsResult(ccInfo, accountData);
+	}
+
+	@Override
+	public void updateUser(String msisdn, long balance) {
+		long key = UserBalanceStore.toKey(msisdn);
+		if (key == UserBalanceStore.NO_ENTRY) {
+			tracer.warning("[!!] Unable to update User with non-numeric MSISDN '" + msisdn + "'.");
+			((DiameterChargingServer) getParent()).updateAccountDataResult(false);
+			return;
+		}
+
+		boolean exists;
+		boolean changed = false;
+		long balanceBefore = 0;
+		try {
+			synchronized (store) {
+				exists = store.contains(key);
+				if (exists) {
+					// row is already in the database, overwrite it on next flush
+					balanceBefore = store.getBalance(key);
+					store.put(key, balance);
+					changed = true;
+				}
+			}
+			if (exists) {
+				syncJournal();
+			}
+		}
+		catch (IOException e) {
+			tracer.severe("[xx] Unable to journal update of User with MSISDN '" + msisdn + "'. Reverting it.", e);
+			if (changed) {
+				// the reserved amount is kept by the update
+				store.revert(key, balance - balanceBefore, 0);
+				writeBehind();
+			}
+			((DiameterChargingServer) getParent()).updateAccountDataResult(false);
+			return;
+		}
+
+		if (exists) {
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[><] Updating User with MSISDN '" + msisdn + "'. Balance = " + balance);
+			}
+			writeBehind();
+			((DiameterChargingServer) getParent()).updateAccountDataResult(true);
+		}
+		else {
+			// new user, loaded into memory only once inserted in the database
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[><] Inserting User with MSISDN '" + msisdn + "'. Balance = " + balance);
+			}
+			executeTask(new InsertUserJdbcTask(store, key, msisdn, balance, tracer));
+		}
+	}
+
+	// ---------------------------- Helper Methods ----------------------------
+
+	/**
+	 * Opens the balance journal in the directory set by the 'balanceJournalDir' env entry, relative to the server data
+	 * directory.
+	 *
+	 * @return the journal, or null if it is disabled or could not be opened
+	 */
+	private BalanceJournal openJournal() {
+		Context ctx = null;
+		try {
+			ctx = (Context) new InitialContext().lookup("java:comp/env");
+		}
+		catch (Exception e) {
+			tracer.warning("[!!] Unable to read env entries. Using defaults.");
+		}
+		String dir = (String) loadEnvEntry(ctx, "balanceJournalDir", "charging-server", tracer);
+		if (dir == null || dir.trim().length() == 0) {
+			tracer.warning("[!!] Balance journal is disabled. Balance changes not yet written to the database will be lost on restart.");
+			return null;
+		}
+
+		File directory = new File(dir.trim());
+		if (!directory.isAbsolute()) {
+			directory = new File(System.getProperty("jboss.server.data.dir", System.getProperty("java.io.tmpdir")), dir.trim());
+		}
+		try {
+			BalanceJournal journal = new BalanceJournal(directory, JOURNAL_SEGMENT_SIZE);
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[><] Using balance journal at " + directory + ".");
+			}
+			return journal;
+		}
+		catch (IOException e) {
+			tracer.severe("[xx] Unable to open balance journal at " + directory + ". Balance changes will not be journaled.", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the balances found in the journal to the database, in a single transaction. These are the changes that
+	 * were not yet written back when the server stopped.
+	 */
+	private void replayJournal(final Connection connection, BalanceJournal journal) throws SQLException {
+		boolean autoCommit = connection.getAutoCommit();
+		connection.setAutoCommit(false);
+		final PreparedStatement preparedStatement = connection.prepareStatement(DataSourceSchemaInfo._QUERY_UPDATE_BALANCE);
+		try {
+			final SQLException[] failure = new SQLException[1];
+			int replayed = journal.replay(new BalanceJournal.Replayer() {
+				public void replay(long key, long balance, long reserved) {
+					if (failure[0] != null) {
+						return;
+					}
+					try {
+						preparedStatement.setLong(1, balance);
+						preparedStatement.setLong(2, reserved);
+						preparedStatement.setString(3, UserBalanceStore.toMsisdn(key));
+						preparedStatement.addBatch();
+					}
+					catch (SQLException e) {
+						failure[0] = e;
+					}
+				}
+			});
+			if (failure[0] != null) {
+				throw failure[0];
+			}
+			if (replayed > 0) {
+				preparedStatement.executeBatch();
+				connection.commit();
+				if (tracer.isInfoEnabled()) {
+					tracer.info("[><] Replayed " + replayed + " balance change(s) from the journal into the database.");
+				}
+			}
+		}
+		catch (SQLException e) {
+			connection.rollback();
+			throw e;
+		}
+		finally {
+			preparedStatement.close();
+			connection.setAutoCommit(autoCommit);
+		}
+	}
+
+	/**
+	 * Waits until the balance changes made so far are durable in the journal, so the answer can be sent before they
+	 * are written to the database.
+	 *
+	 * @throws IOException if they could not be forced to disk, in which case the change must not be granted
+	 */
+	private void syncJournal() throws IOException {
+		BalanceJournal journal = store.getJournal();
+		if (journal != null) {
+			journal.sync();
+		}
+	}
+
+	/**
+	 * Reverts what was applied to a balance for a request that could not be made durable, and clears what was
+	 * granted. The balance is written to the database by the next write-behind.
+	 *
+	 * @return null, so ABMF answers with an error, as for a failed database update
+	 */
+	private UserAccountData revert(long key, boolean changed, long applied, long reservedApplied, ArrayList<CreditControlUnit> ccUnits) {
+		if (changed) {
+			store.revert(key, applied, reservedApplied);
+		}
+		for (int i = 0; i < ccUnits.size(); i++) {
+			ccUnits.get(i).setReservedUnits(0);
+			ccUnits.get(i).setReservedAmount(0);
+		}
+		return null;
+	}
+
+	/**
+	 * Starts writing the changed balances to the database, unless a write is already in progress. In that case the
+	 * changes will be picked up by it, or by the write following the next change.
+	 */
+	private void writeBehind() {
+		if (store.tryBeginFlush()) {
+			try {
+				executeTask(new WriteBehindJdbcTask(store, tracer));
+			}
+			catch (RuntimeException e) {
+				store.endFlush();
+				tracer.severe("[xx] Unable to start write-behind of user balances.", e);
+			}
+		}
+	}
+
+	private SbbLocalObject getParent() {
+		return sbbContextExt.getSbbLocalObject().getParent();
+	}
+
+	// ---------------------------- SLEE Callbacks ----------------------------
+
+	@Override
+	public void setSbbContext(SbbContext context) {
+		super.setSbbContext(context);
+		sbbContextExt = (SbbContextExt) context;
+		if (tracer == null) {
+			tracer = sbbContextExt.getTracer("CS-MEM");
+		}
+	}
+
+	@Override
+	public void unsetSbbContext() {
+		super.unsetSbbContext();
+		sbbContextExt = null;
+	}
+}
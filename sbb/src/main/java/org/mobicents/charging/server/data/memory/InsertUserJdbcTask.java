@@ -0,0 +1,63 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2013, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.data.memory;
+
+import javax.slee.facilities.Tracer;
+
+import org.mobicents.charging.server.data.jdbc.UpdateUserJdbcTask;
+import org.mobicents.slee.resource.jdbc.task.JdbcTaskContext;
+
+/**
+ * Inserts a new user in the database and, once committed, loads it into the {@link UserBalanceStore}. Loading it
+ * before would let it be charged in memory, and written back, even if the insert fails.
+ * 
+ * @author ammendonca
+ */
+public class InsertUserJdbcTask extends UpdateUserJdbcTask {
+
+	private final UserBalanceStore store;
+	private final long key;
+	private final long balance;
+
+	public InsertUserJdbcTask(UserBalanceStore store, long key, String msisdn, long balance, Tracer tracer) {
+		super(msisdn, balance, tracer);
+		this.store = store;
+		this.key = key;
+		this.balance = balance;
+	}
+
+	@Override
+	public Object executeSimple(JdbcTaskContext taskContext) {
+		Object result = super.executeSimple(taskContext);
+		if (isInserted()) {
+			synchronized (store) {
+				// unless loaded meanwhile, by a concurrent insert
+				if (!store.contains(key)) {
+					store.load(key, balance, 0);
+				}
+			}
+		}
+		return result;
+	}
+
+}
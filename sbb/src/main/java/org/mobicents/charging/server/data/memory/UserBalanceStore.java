@@ -0,0 +1,459 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2013, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.data.memory;
+
+import java.io.IOException;
+
+/**
+ * In-memory table of user balances, keyed by numeric MSISDN.
+ *
+ * Rows are kept in parallel primitive arrays with open addressing (linear probing), so no objects are allocated per
+ * user or per operation. Every mutation marks the row as dirty, and dirty rows are drained in batches by the
+ * write-behind flush, see {@link #drainDirty(long[], long[], long[])}.
+ *
+ * Only canonical numeric MSISDNs (digits only, no leading zero, up to 18 digits) can be stored, as the key must
+ * convert back to the same string when written to the database. See {@link #toKey(String)}.
+ *
+ * If a {@link BalanceJournal} is set, every mutation is appended to it before being applied. If it cannot be appended
+ * the mutation is not applied, and an {@link IOException} is thrown. See {@link #revert(long, long, long)} for when a
+ * revert cannot be appended.
+ *
+ * All operations are synchronized on the store. Callers needing to check and update a balance atomically (such as a
+ * reservation spanning multiple units) should hold the store monitor for the whole sequence.
+ *
+ * @author ammendonca
+ */
+public class UserBalanceStore {
+
+	/**
+	 * Value returned by lookups when the user is not present in the store.
+	 */
+	public static final long NO_ENTRY = Long.MIN_VALUE;
+
+	/**
+	 * Key value reserved for empty slots. Valid MSISDN keys are always positive.
+	 */
+	private static final long FREE = 0;
+
+	private static final float LOAD_FACTOR = 0.5f;
+
+	private long[] keys;
+	private long[] balances;
+	private long[] reserved;
+	private boolean[] dirty;
+
+	private int size;
+	private int threshold;
+
+	private long[] dirtyQueue;
+	private int dirtyCount;
+
+	private boolean flushing;
+
+	// reverts that could not be journaled, refusing changes until written to the database
+	private int unjournaledReverts;
+	private int flushedUnjournaledReverts;
+
+	private BalanceJournal journal;
+
+	public UserBalanceStore(int expectedUsers) {
+		int capacity = 16;
+		while (capacity * LOAD_FACTOR < expectedUsers) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+		dirtyQueue = new long[64];
+	}
+
+	/**
+	 * Converts an MSISDN to the primitive key used by this store.
+	 *
+	 * @param msisdn the MSISDN
+	 * @return the key, or {@link #NO_ENTRY} if the MSISDN is not in canonical numeric form
+	 */
+	public static long toKey(String msisdn) {
+		if (msisdn == null) {
+			return NO_ENTRY;
+		}
+		int length = msisdn.length();
+		if (length == 0 || length > 18 || msisdn.charAt(0) == '0') {
+			return NO_ENTRY;
+		}
+		long key = 0;
+		for (int i = 0; i < length; i++) {
+			char c = msisdn.charAt(i);
+			if (c < '0' || c > '9') {
+				return NO_ENTRY;
+			}
+			key = key * 10 + (c - '0');
+		}
+		return key;
+	}
+
+	/**
+	 * Converts a key back to the MSISDN it was created from.
+	 *
+	 * @param key the store key
+	 * @return the MSISDN
+	 */
+	public static String toMsisdn(long key) {
+		return Long.toString(key);
+	}
+
+	/**
+	 * Sets the journal to append mutations to, or null for none.
+	 */
+	public synchronized void setJournal(BalanceJournal journal) {
+		this.journal = journal;
+	}
+
+	public synchronized BalanceJournal getJournal() {
+		return journal;
+	}
+
+	// --------------------------------- Reads --------------------------------
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized boolean contains(long key) {
+		return indexOf(key) >= 0;
+	}
+
+	/**
+	 * @param key the user key
+	 * @return the current balance, or {@link #NO_ENTRY} if the user is unknown
+	 */
+	public synchronized long getBalance(long key) {
+		int index = indexOf(key);
+		return index < 0 ? NO_ENTRY : balances[index];
+	}
+
+	/**
+	 * @param key the user key
+	 * @return the currently reserved amount, or {@link #NO_ENTRY} if the user is unknown
+	 */
+	public synchronized long getReserved(long key) {
+		int index = indexOf(key);
+		return index < 0 ? NO_ENTRY : reserved[index];
+	}
+
+	/**
+	 * Copies all keys and balances into the given arrays, which must hold at least {@link #size()} elements.
+	 *
+	 * @return the number of rows copied
+	 */
+	public synchronized int snapshot(long[] outKeys, long[] outBalances) {
+		int n = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != FREE) {
+				outKeys[n] = keys[i];
+				outBalances[n] = balances[i];
+				n++;
+			}
+		}
+		return n;
+	}
+
+	// -------------------------------- Writes --------------------------------
+
+	/**
+	 * Loads a row as read from the database. The row is not marked dirty.
+	 */
+	public synchronized void load(long key, long balance, long reservedAmount) {
+		int index = insertionIndex(key);
+		balances[index] = balance;
+		reserved[index] = reservedAmount;
+	}
+
+	/**
+	 * Sets the balance of a user, creating it if needed. The reserved amount of an existing user is kept, as it is
+	 * still held by its sessions. The row is marked dirty.
+	 */
+	public synchronized void put(long key, long balance) throws IOException {
+		int index = indexOf(key);
+		long reservedAmount = index < 0 ? 0 : reserved[index];
+		journal(BalanceJournal.OP_PUT, key, balance, reservedAmount);
+		index = insertionIndex(key);
+		balances[index] = balance;
+		reserved[index] = reservedAmount;
+		markDirty(index);
+	}
+
+	/**
+	 * Returns the previous reservation to the balance and reserves a new amount from it, as in
+	 * B = B + (G - U) - R, RESERVED = RESERVED - G + R. The reserved amount is the total for the user, over all its
+	 * sessions and MSCCs.
+	 *
+	 * @param key the user key
+	 * @param released the previous reservation (G)
+	 * @param refund the unused part of the previous reservation (G - U)
+	 * @param amount the amount to reserve (R)
+	 * @return the balance after the operation, or {@link #NO_ENTRY} if the user is unknown
+	 */
+	public synchronized long reserve(long key, long released, long refund, long amount) throws IOException {
+		int index = indexOf(key);
+		if (index < 0) {
+			return NO_ENTRY;
+		}
+		long balance = balances[index] + refund - amount;
+		long reservedAmount = reserved[index] - released + amount;
+		journal(BalanceJournal.OP_RESERVE, key, balance, reservedAmount);
+		balances[index] = balance;
+		reserved[index] = reservedAmount;
+		markDirty(index);
+		return balance;
+	}
+
+	/**
+	 * Debits an amount from the balance of a user, as in B = B - R.
+	 *
+	 * @param key the user key
+	 * @param amount the amount to debit
+	 * @return the balance after the operation, or {@link #NO_ENTRY} if the user is unknown
+	 */
+	public synchronized long debit(long key, long amount) throws IOException {
+		int index = indexOf(key);
+		if (index < 0) {
+			return NO_ENTRY;
+		}
+		long balance = balances[index] - amount;
+		journal(BalanceJournal.OP_DEBIT, key, balance, reserved[index]);
+		balances[index] = balance;
+		markDirty(index);
+		return balance;
+	}
+
+	/**
+	 * Undoes a change that could not be made durable (eg, the journal failed to be forced), as in B = B - delta and
+	 * RESERVED = RESERVED - delta, so changes made meanwhile by other requests are kept.
+	 *
+	 * If the revert cannot be journaled, the journal still holds the change, and would apply it again if replayed. The
+	 * revert is applied and marked dirty anyway, and the store is failed: all changes are refused until a write-behind
+	 * started after it has written the row to the database and released the journal records up to then.
+	 *
+	 * @param key the user key
+	 * @param balanceDelta the change made to the balance
+	 * @param reservedDelta the change made to the reserved amount
+	 */
+	public synchronized void revert(long key, long balanceDelta, long reservedDelta) {
+		int index = indexOf(key);
+		if (index < 0) {
+			return;
+		}
+		long balance = balances[index] - balanceDelta;
+		long reservedAmount = reserved[index] - reservedDelta;
+		try {
+			journal(BalanceJournal.OP_REVERT, key, balance, reservedAmount);
+		}
+		catch (IOException e) {
+			unjournaledReverts++;
+		}
+		balances[index] = balance;
+		reserved[index] = reservedAmount;
+		markDirty(index);
+	}
+
+	// ------------------------------ Write-Behind ----------------------------
+
+	/**
+	 * @return the number of rows changed since they were last drained
+	 */
+	public synchronized int getDirtyCount() {
+		return dirtyCount;
+	}
+
+	/**
+	 * Claims the write-behind flush, if there are dirty rows and no flush is already running. While a flush is running
+	 * changes keep accumulating, so they are written together by the next one. The journal is rotated, so that what was
+	 * appended until now can be released once the flush succeeds, see {@link #releaseJournal()}.
+	 *
+	 * @return true if the caller should start a flush, and later call {@link #endFlush()}
+	 */
+	public synchronized boolean tryBeginFlush() {
+		if (flushing || dirtyCount == 0) {
+			return false;
+		}
+		flushing = true;
+		flushedUnjournaledReverts = unjournaledReverts;
+		if (journal != null) {
+			journal.rotate();
+		}
+		return true;
+	}
+
+	/**
+	 * Releases the write-behind flush claimed with {@link #tryBeginFlush()}.
+	 */
+	public synchronized void endFlush() {
+		flushing = false;
+	}
+
+	/**
+	 * Releases the journal records written before the last flush started, for when that flush has written all the rows
+	 * to the database. Reverts which could not be journaled before then are now in the database, so the store accepts
+	 * changes again unless others failed meanwhile. Not synchronized on the store, as it forces the journal to disk.
+	 */
+	public void releaseJournal() throws IOException {
+		BalanceJournal journal = getJournal();
+		if (journal != null) {
+			journal.release();
+		}
+		synchronized (this) {
+			unjournaledReverts -= flushedUnjournaledReverts;
+			flushedUnjournaledReverts = 0;
+		}
+	}
+
+	/**
+	 * Moves up to outKeys.length dirty rows into the given arrays and clears their dirty mark. Rows changed again
+	 * after being drained are marked dirty once more.
+	 *
+	 * @return the number of rows drained
+	 */
+	public synchronized int drainDirty(long[] outKeys, long[] outBalances, long[] outReserved) {
+		int n = Math.min(dirtyCount, outKeys.length);
+		for (int i = 0; i < n; i++) {
+			long key = dirtyQueue[dirtyCount - 1 - i];
+			int index = indexOf(key);
+			outKeys[i] = key;
+			outBalances[i] = balances[index];
+			outReserved[i] = reserved[index];
+			dirty[index] = false;
+		}
+		dirtyCount -= n;
+		return n;
+	}
+
+	/**
+	 * Marks rows dirty again, for when writing them to the database has failed.
+	 */
+	public synchronized void redirty(long[] rowKeys, int count) {
+		for (int i = 0; i < count; i++) {
+			int index = indexOf(rowKeys[i]);
+			if (index >= 0 && !dirty[index]) {
+				dirty[index] = true;
+				enqueueDirty(index);
+			}
+		}
+	}
+
+	// ------------------------------- Internals ------------------------------
+
+	private void journal(int op, long key, long balance, long reservedAmount) throws IOException {
+		if (unjournaledReverts > 0) {
+			throw new IOException("Journal is missing " + unjournaledReverts + " revert(s) not yet written to the database");
+		}
+		if (journal != null) {
+			journal.append(op, key, balance, reservedAmount);
+		}
+	}
+
+	private void markDirty(int index) {
+		if (!dirty[index]) {
+			dirty[index] = true;
+			enqueueDirty(index);
+		}
+	}
+
+	private void enqueueDirty(int index) {
+		if (dirtyCount == dirtyQueue.length) {
+			long[] grown = new long[dirtyQueue.length << 1];
+			System.arraycopy(dirtyQueue, 0, grown, 0, dirtyCount);
+			dirtyQueue = grown;
+		}
+		dirtyQueue[dirtyCount++] = keys[index];
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private int indexOf(long key) {
+		if (key <= FREE) {
+			return -1;
+		}
+		int mask = keys.length - 1;
+		int index = hash(key) & mask;
+		while (keys[index] != FREE) {
+			if (keys[index] == key) {
+				return index;
+			}
+			index = (index + 1) & mask;
+		}
+		return -1;
+	}
+
+	private int insertionIndex(long key) {
+		if (key <= FREE) {
+			throw new IllegalArgumentException("Invalid key " + key);
+		}
+		int mask = keys.length - 1;
+		int index = hash(key) & mask;
+		while (keys[index] != FREE) {
+			if (keys[index] == key) {
+				return index;
+			}
+			index = (index + 1) & mask;
+		}
+		if (size >= threshold) {
+			rehash(keys.length << 1);
+			return insertionIndex(key);
+		}
+		keys[index] = key;
+		size++;
+		return index;
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		balances = new long[capacity];
+		reserved = new long[capacity];
+		dirty = new boolean[capacity];
+		threshold = (int) (capacity * LOAD_FACTOR);
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		long[] oldBalances = balances;
+		long[] oldReserved = reserved;
+		boolean[] oldDirty = dirty;
+		allocate(capacity);
+		int mask = capacity - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != FREE) {
+				int index = hash(oldKeys[i]) & mask;
+				while (keys[index] != FREE) {
+					index = (index + 1) & mask;
+				}
+				keys[index] = oldKeys[i];
+				balances[index] = oldBalances[i];
+				reserved[index] = oldReserved[i];
+				dirty[index] = oldDirty[i];
+			}
+		}
+	}
+
+}
@@ -0,0 +1,151 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2013, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.data.memory;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+
+import javax.slee.SbbLocalObject;
+import javax.slee.facilities.Tracer;
+import javax.slee.transaction.SleeTransaction;
+
+import org.mobicents.charging.server.data.jdbc.DataSourceJdbcTask;
+import org.mobicents.charging.server.data.jdbc.DataSourceSchemaInfo;
+import org.mobicents.slee.resource.jdbc.task.JdbcTaskContext;
+
+/**
+ * Writes the rows changed in the {@link UserBalanceStore} back to the database, in JDBC batches each in its own SLEE
+ * transaction. Rows are drained from the store until there are no more dirty rows. If writing fails, the rows in the
+ * failed batch are marked dirty again so they are retried by the next flush. Once all the rows are written, the
+ * journal records appended before the flush started are released.
+ *
+ * Rows changed after the last drain but before the flush is released were not flushed, and their writers did not
+ * start a flush as this one was running, so once released a new flush is started for them, until none is left.
+ * 
+ * @author ammendonca
+ */
+public class WriteBehindJdbcTask extends DataSourceJdbcTask {
+
+	private static final int BATCH_SIZE = 512;
+
+	private final UserBalanceStore store;
+	private final Tracer tracer;
+
+	private int written;
+
+	public WriteBehindJdbcTask(UserBalanceStore store, Tracer tracer) {
+		this.store = store;
+		this.tracer = tracer;
+	}
+
+	@Override
+	public Object executeSimple(JdbcTaskContext taskContext) {
+		while (flush(taskContext) && store.tryBeginFlush()) {
+			if (tracer.isFineEnabled()) {
+				tracer.fine("[//] Write-behind flushing " + store.getDirtyCount() + " user balance(s) changed meanwhile.");
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Writes the dirty rows, a batch per transaction, and releases the flush claimed by the caller.
+	 *
+	 * @return true if all the rows were written
+	 */
+	private boolean flush(JdbcTaskContext taskContext) {
+		long[] keys = new long[BATCH_SIZE];
+		long[] balances = new long[BATCH_SIZE];
+		long[] reserved = new long[BATCH_SIZE];
+		int n = 0;
+		SleeTransaction tx = null;
+		boolean flushed = false;
+		try {
+			while ((n = store.drainDirty(keys, balances, reserved)) > 0) {
+				tx = taskContext.getSleeTransactionManager().beginSleeTransaction();
+				Connection connection = taskContext.getConnection();
+				PreparedStatement preparedStatement = connection.prepareStatement(DataSourceSchemaInfo._QUERY_UPDATE_BALANCE);
+				try {
+					for (int i = 0; i < n; i++) {
+						preparedStatement.setLong(1, balances[i]);
+						preparedStatement.setLong(2, reserved[i]);
+						preparedStatement.setString(3, UserBalanceStore.toMsisdn(keys[i]));
+						preparedStatement.addBatch();
+					}
+					preparedStatement.executeBatch();
+				}
+				finally {
+					preparedStatement.close();
+				}
+				tx.commit();
+				tx = null;
+				written += n;
+				n = 0;
+			}
+			flushed = true;
+			if (tracer.isFineEnabled()) {
+				tracer.fine("[//] Write-behind flushed " + written + " user balance(s) to the database.");
+			}
+		}
+		catch (Exception e) {
+			tracer.severe("[xx] Failed to write-behind " + n + " user balance(s). Will retry on next flush.", e);
+			store.redirty(keys, n);
+		}
+		finally {
+			if (tx != null) {
+				try {
+					tx.rollback();
+				}
+				catch (Exception f) {
+					tracer.severe("[xx] Failed to rollback write-behind transaction.", f);
+				}
+			}
+			store.endFlush();
+		}
+		if (flushed) {
+			try {
+				store.releaseJournal();
+			}
+			catch (IOException e) {
+				tracer.warning("[!!] Failed to release balance journal records.", e);
+			}
+		}
+		return flushed;
+	}
+
+	public int getWritten() {
+		return written;
+	}
+
+	@Override
+	public void callBackParentOnException(SbbLocalObject parent) {
+		// nothing to report, the store is authoritative
+	}
+
+	@Override
+	public void callBackParentOnResult(SbbLocalObject parent) {
+		// nothing to report, the store is authoritative
+	}
+
+}
@@ -0,0 +1,95 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2013, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.data.session;
+
+import java.util.HashMap;
+
+import org.mobicents.charging.server.data.SessionStore;
+import org.mobicents.charging.server.data.UserSessionInfo;
+
+/**
+ * Session store local to this node. Sessions are kept as they are, with no copy or encoding, and are lost on restart
+ * or failover.
+ *
+ * Sessions are spread by Session-Id over a number of shards, each with its own lock, so that concurrent requests for
+ * different sessions seldom wait for each other.
+ *
+ * @author ammendonca
+ */
+public class LocalSessionStore implements SessionStore {
+
+	private final HashMap<String, UserSessionInfo>[] shards;
+	private final int mask;
+
+	/**
+	 * @param shards the minimum number of shards, rounded up to a power of two
+	 */
+	@SuppressWarnings("unchecked")
+	public LocalSessionStore(int shards) {
+		int size = Integer.highestOneBit(Math.max(shards, 2) - 1) << 1;
+		this.shards = new HashMap[size];
+		for (int i = 0; i < size; i++) {
+			this.shards[i] = new HashMap<String, UserSessionInfo>();
+		}
+		this.mask = size - 1;
+	}
+
+	public UserSessionInfo get(String sessionId) {
+		HashMap<String, UserSessionInfo> shard = getShard(sessionId);
+		synchronized (shard) {
+			return shard.get(sessionId);
+		}
+	}
+
+	public void put(String sessionId, UserSessionInfo sessionInfo) {
+		HashMap<String, UserSessionInfo> shard = getShard(sessionId);
+		synchronized (shard) {
+			shard.put(sessionId, sessionInfo);
+		}
+	}
+
+	public void remove(String sessionId) {
+		HashMap<String, UserSessionInfo> shard = getShard(sessionId);
+		synchronized (shard) {
+			shard.remove(sessionId);
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (HashMap<String, UserSessionInfo> shard : shards) {
+			synchronized (shard) {
+				size += shard.size();
+			}
+		}
+		return size;
+	}
+
+	private HashMap<String, UserSessionInfo> getShard(String sessionId) {
+		// Session-Ids of the same peer share a long prefix, so spread the hash bits before masking
+		int hash = sessionId.hashCode();
+		hash ^= (hash >>> 16) ^ (hash >>> 8);
+		return shards[hash & mask];
+	}
+
+}
@@ -0,0 +1,255 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2013, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.data.session;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Expires sessions that are not refreshed within their validity, with a hashed timing wheel instead of a timer per
+ * session.
+ *
+ * The wheel is a ring of buckets, one per tick. A session is queued in the bucket of the tick its validity ends on,
+ * and refreshing it with a later deadline only updates the deadline: the entry is moved when its bucket comes up and
+ * it is found not to be due yet. Only a shorter deadline queues it again, in an earlier bucket. Deadlines further
+ * away than a whole turn of the wheel are queued a turn away, and again from there.
+ *
+ * Buckets are swept by whoever calls {@link #expire(long, int)} once per tick, in batches, so a session expires at most
+ * a tick after its deadline, or later if the sweep is behind. Each session has an attachment, handed back when it
+ * expires, to act on it.
+ *
+ * @author ammendonca
+ */
+public class SessionExpiryManager<T> {
+
+	/**
+	 * A session in the wheel.
+	 */
+	public static class Entry<T> {
+
+		private final String sessionId;
+		private volatile T attachment;
+		private volatile long deadline;
+
+		// tick of the bucket it is queued in, guarded by the entry lock
+		private long tick = NOT_QUEUED;
+
+		private Entry(String sessionId) {
+			this.sessionId = sessionId;
+		}
+
+		public String getSessionId() {
+			return sessionId;
+		}
+
+		public T getAttachment() {
+			return attachment;
+		}
+
+		/**
+		 * @return when the session validity ended, in ms
+		 */
+		public long getDeadline() {
+			return deadline;
+		}
+
+	}
+
+	private static final long NOT_QUEUED = -1;
+	private static final long REMOVED = -2;
+
+	private final long tickMillis;
+	private final ArrayList<Entry<T>>[] wheel;
+	private final int mask;
+
+	private final ConcurrentHashMap<String, Entry<T>> entries = new ConcurrentHashMap<String, Entry<T>>();
+
+	// last tick swept, written under the lock of its bucket
+	private volatile long sweptTick;
+
+	// entries taken from swept buckets but not yet handled, when a batch is full. Guarded by this.
+	private final ArrayDeque<Entry<T>> pending = new ArrayDeque<Entry<T>>();
+	private long pendingTick;
+
+	/**
+	 * @param tickMillis the duration of a tick, in ms
+	 * @param wheelSize the minimum number of buckets, rounded up to a power of two
+	 */
+	@SuppressWarnings("unchecked")
+	public SessionExpiryManager(long tickMillis, int wheelSize) {
+		int size = Integer.highestOneBit(Math.max(wheelSize, 2) - 1) << 1;
+		this.tickMillis = tickMillis;
+		this.wheel = new ArrayList[size];
+		for (int i = 0; i < size; i++) {
+			this.wheel[i] = new ArrayList<Entry<T>>();
+		}
+		this.mask = size - 1;
+		this.sweptTick = System.currentTimeMillis() / tickMillis;
+	}
+
+	/**
+	 * @return the duration of a tick, in ms
+	 */
+	public long getTickMillis() {
+		return tickMillis;
+	}
+
+	/**
+	 * Sets, or refreshes, the validity of a session. Refreshing with a later deadline takes no lock but the entry's.
+	 *
+	 * @param sessionId the session
+	 * @param attachment what to hand back when the session expires
+	 * @param validityMillis how long from now the session is valid, in ms
+	 */
+	public void schedule(String sessionId, T attachment, long validityMillis) {
+		long deadline = System.currentTimeMillis() + validityMillis;
+		long deadlineTick = toTick(deadline);
+		while (true) {
+			Entry<T> entry = entries.get(sessionId);
+			if (entry == null) {
+				entry = new Entry<T>(sessionId);
+				Entry<T> existing = entries.putIfAbsent(sessionId, entry);
+				if (existing != null) {
+					entry = existing;
+				}
+			}
+			synchronized (entry) {
+				if (entry.tick == REMOVED) {
+					// expired or cancelled meanwhile, start over with a new entry
+					continue;
+				}
+				entry.attachment = attachment;
+				entry.deadline = deadline;
+				if (entry.tick == NOT_QUEUED || entry.tick > deadlineTick) {
+					queue(entry, deadlineTick);
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Stops expiring a session, as it has ended.
+	 */
+	public void cancel(String sessionId) {
+		Entry<T> entry = entries.remove(sessionId);
+		if (entry != null) {
+			synchronized (entry) {
+				// left in its bucket, it is dropped when swept
+				entry.tick = REMOVED;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of sessions being expired
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Sweeps the buckets of the ticks up to now and takes out the sessions past their deadline. To be called once per
+	 * tick; sessions over the batch size are left for the following calls.
+	 *
+	 * @param now the current time, in ms
+	 * @param batchSize the maximum number of sessions to expire
+	 * @return the expired sessions, no longer in the wheel
+	 */
+	public synchronized List<Entry<T>> expire(long now, int batchSize) {
+		List<Entry<T>> expired = new ArrayList<Entry<T>>();
+		long nowTick = toTick(now);
+		while (true) {
+			while (!pending.isEmpty()) {
+				if (expired.size() >= batchSize) {
+					return expired;
+				}
+				Entry<T> entry = pending.poll();
+				if (isExpired(entry, pendingTick)) {
+					expired.add(entry);
+				}
+			}
+			if (sweptTick >= nowTick) {
+				return expired;
+			}
+			pendingTick = sweptTick + 1;
+			ArrayList<Entry<T>> bucket = wheel[(int) (pendingTick & mask)];
+			synchronized (bucket) {
+				sweptTick = pendingTick;
+				pending.addAll(bucket);
+				bucket.clear();
+			}
+		}
+	}
+
+	private boolean isExpired(Entry<T> entry, long bucketTick) {
+		synchronized (entry) {
+			if (entry.tick != bucketTick) {
+				// removed, or queued again in another bucket
+				return false;
+			}
+			long deadlineTick = toTick(entry.deadline);
+			if (deadlineTick > bucketTick) {
+				// refreshed since it was queued, or due on a later turn of the wheel
+				queue(entry, deadlineTick);
+				return false;
+			}
+			entry.tick = REMOVED;
+			entries.remove(entry.sessionId, entry);
+			return true;
+		}
+	}
+
+	/**
+	 * Queues an entry in the bucket of a tick, or of the next tick to sweep if that one was swept already. Ticks more
+	 * than a turn away are queued a turn away, to be queued again then. Called with the entry lock held.
+	 */
+	private void queue(Entry<T> entry, long tick) {
+		while (true) {
+			long swept = sweptTick;
+			long bucketTick = Math.max(Math.min(tick, swept + wheel.length), swept + 1);
+			ArrayList<Entry<T>> bucket = wheel[(int) (bucketTick & mask)];
+			synchronized (bucket) {
+				// checked again under the bucket lock, which the sweep takes to move on
+				if (bucketTick > sweptTick) {
+					bucket.add(entry);
+					entry.tick = bucketTick;
+					return;
+				}
+			}
+		}
+	}
+
+	private long toTick(long time) {
+		// rounded up, so that nothing expires before its deadline
+		return (time + tickMillis - 1) / tickMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "SessionExpiryManager[Sessions=" + entries.size() + "; Tick=" + tickMillis + "ms; Buckets=" + wheel.length + "]";
+	}
+
+}
@@ -0,0 +1,99 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2013, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.ratingengine;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * {@link RatingEngineClient} answering from a {@link RateCache} when possible, and from the wrapped client otherwise.
+ * 
+ * @author ammendonca
+ */
+public class CachingRatingEngineClient extends RatingEngineClientDecorator {
+
+	private final RateCache cache;
+
+	public CachingRatingEngineClient(RatingEngineClient delegate, RateCache cache) {
+		super(delegate);
+		this.cache = cache;
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public RatingInfo getRateForService(HashMap params) {
+		RatingInfo ratingInfo = cache.get(params);
+		if (ratingInfo == null) {
+			ratingInfo = delegate.getRateForService(params);
+			cache.put(params, ratingInfo);
+		}
+		return ratingInfo;
+	}
+
+	/**
+	 * Answers from the cache only if all items are cached, otherwise the whole batch is sent to the Rating Engine, as
+	 * a single request costs about the same for one item or all of them.
+	 */
+	@SuppressWarnings("rawtypes")
+	@Override
+	public ArrayList<RatingInfo> getRatesForService(ArrayList<HashMap> paramsList) {
+		ArrayList<RatingInfo> ratingInfos = new ArrayList<RatingInfo>(paramsList.size());
+		for (HashMap params : paramsList) {
+			RatingInfo ratingInfo = cache.get(params);
+			if (ratingInfo == null) {
+				ratingInfos = delegate.getRatesForService(paramsList);
+				put(paramsList, ratingInfos);
+				return ratingInfos;
+			}
+			ratingInfos.add(ratingInfo);
+		}
+		return ratingInfos;
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public RatingInfo onRateForServiceResult(HashMap params, RatingInfo ratingInfo) {
+		ratingInfo = super.onRateForServiceResult(params, ratingInfo);
+		cache.put(params, ratingInfo);
+		return ratingInfo;
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public ArrayList<RatingInfo> onRatesForServiceResult(ArrayList<HashMap> paramsList, ArrayList<RatingInfo> ratingInfos) {
+		ratingInfos = super.onRatesForServiceResult(paramsList, ratingInfos);
+		put(paramsList, ratingInfos);
+		return ratingInfos;
+	}
+
+	@SuppressWarnings("rawtypes")
+	private void put(ArrayList<HashMap> paramsList, ArrayList<RatingInfo> ratingInfos) {
+		// null is an asynchronous answer, cached when it arrives
+		if (ratingInfos != null) {
+			for (int i = 0; i < ratingInfos.size(); i++) {
+				cache.put(paramsList.get(i), ratingInfos.get(i));
+			}
+		}
+	}
+
+}
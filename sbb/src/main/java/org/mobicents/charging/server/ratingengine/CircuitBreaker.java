@@ -0,0 +1,103 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2013, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.ratingengine;
+
+/**
+ * Circuit breaker for the Rating Engine, shared by all SBB entities.
+ * 
+ * After a number of consecutive failures the circuit opens, and requests are not sent for a while. Then a single probe
+ * request is let through (half-open): if it succeeds the circuit closes, otherwise it opens again. A probe which gets
+ * no answer within the open time is considered lost, and another one is let through.
+ * 
+ * @author ammendonca
+ */
+public class CircuitBreaker {
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final int failureThreshold;
+	private final long openTime;
+
+	private State state = State.CLOSED;
+	private int failures;
+	private long openedAt;
+	private long probeSentAt;
+
+	/**
+	 * @param failureThreshold the number of consecutive failures opening the circuit
+	 * @param openTime how long (in ms) the circuit stays open before probing
+	 */
+	public CircuitBreaker(int failureThreshold, long openTime) {
+		this.failureThreshold = failureThreshold;
+		this.openTime = openTime;
+	}
+
+	/**
+	 * @return true if a request may be sent to the Rating Engine
+	 */
+	public synchronized boolean allowRequest() {
+		long now = System.currentTimeMillis();
+		switch (state) {
+		case CLOSED:
+			return true;
+		case OPEN:
+			if (now - openedAt < openTime) {
+				return false;
+			}
+			state = State.HALF_OPEN;
+			probeSentAt = now;
+			return true;
+		default:
+			if (now - probeSentAt < openTime) {
+				return false;
+			}
+			probeSentAt = now;
+			return true;
+		}
+	}
+
+	public synchronized void recordSuccess() {
+		state = State.CLOSED;
+		failures = 0;
+	}
+
+	public synchronized void recordFailure() {
+		failures++;
+		if (state == State.HALF_OPEN || failures >= failureThreshold) {
+			state = State.OPEN;
+			openedAt = System.currentTimeMillis();
+		}
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "CircuitBreaker[state=" + state + "; failures=" + failures + "]";
+	}
+
+}
@@ -0,0 +1,148 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2013, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.ratingengine;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * {@link RatingEngineClient} guarding the wrapped client with a {@link CircuitBreaker}.
+ * 
+ * Answers with a negative response code (the Rating Engine could not be reached, or its answer was malformed) count as
+ * failures. While the circuit is open, and when a request fails, the last known rate for the same key is answered
+ * instead, from a table kept with every successful answer. If there is none, a failed rating info is answered.
+ * 
+ * @author ammendonca
+ */
+public class CircuitBreakerRatingEngineClient extends RatingEngineClientDecorator {
+
+	private final CircuitBreaker circuitBreaker;
+	private final RateCache lastKnownRates;
+
+	public CircuitBreakerRatingEngineClient(RatingEngineClient delegate, CircuitBreaker circuitBreaker, RateCache lastKnownRates) {
+		super(delegate);
+		this.circuitBreaker = circuitBreaker;
+		this.lastKnownRates = lastKnownRates;
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public RatingInfo getRateForService(HashMap params) {
+		if (!circuitBreaker.allowRequest()) {
+			return fallback(params, new RatingInfo(-1, (String) params.get("SessionId")));
+		}
+
+		RatingInfo ratingInfo;
+		try {
+			ratingInfo = delegate.getRateForService(params);
+		}
+		catch (RuntimeException e) {
+			circuitBreaker.recordFailure();
+			throw e;
+		}
+
+		// null is an asynchronous answer, recorded when it arrives
+		return ratingInfo == null ? null : record(params, ratingInfo);
+	}
+
+	/**
+	 * A batch is a single request to the Rating Engine, so it counts as a single failure or success.
+	 */
+	@SuppressWarnings("rawtypes")
+	@Override
+	public ArrayList<RatingInfo> getRatesForService(ArrayList<HashMap> paramsList) {
+		if (!circuitBreaker.allowRequest()) {
+			ArrayList<RatingInfo> ratingInfos = new ArrayList<RatingInfo>(paramsList.size());
+			for (HashMap params : paramsList) {
+				ratingInfos.add(fallback(params, new RatingInfo(-1, (String) params.get("SessionId"))));
+			}
+			return ratingInfos;
+		}
+
+		ArrayList<RatingInfo> ratingInfos;
+		try {
+			ratingInfos = delegate.getRatesForService(paramsList);
+		}
+		catch (RuntimeException e) {
+			circuitBreaker.recordFailure();
+			throw e;
+		}
+
+		// null is an asynchronous answer, recorded when it arrives
+		return ratingInfos == null ? null : record(paramsList, ratingInfos);
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public RatingInfo onRateForServiceResult(HashMap params, RatingInfo ratingInfo) {
+		return record(params, super.onRateForServiceResult(params, ratingInfo));
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public ArrayList<RatingInfo> onRatesForServiceResult(ArrayList<HashMap> paramsList, ArrayList<RatingInfo> ratingInfos) {
+		return record(paramsList, super.onRatesForServiceResult(paramsList, ratingInfos));
+	}
+
+	@SuppressWarnings("rawtypes")
+	private ArrayList<RatingInfo> record(ArrayList<HashMap> paramsList, ArrayList<RatingInfo> ratingInfos) {
+		boolean failed = false;
+		ArrayList<RatingInfo> result = new ArrayList<RatingInfo>(ratingInfos.size());
+		for (int i = 0; i < ratingInfos.size(); i++) {
+			RatingInfo ratingInfo = ratingInfos.get(i);
+			if (ratingInfo.getResponseCode() < 0) {
+				failed = true;
+				ratingInfo = fallback(paramsList.get(i), ratingInfo);
+			}
+			else {
+				lastKnownRates.put(paramsList.get(i), ratingInfo);
+			}
+			result.add(ratingInfo);
+		}
+		if (failed) {
+			circuitBreaker.recordFailure();
+		}
+		else {
+			circuitBreaker.recordSuccess();
+		}
+		return result;
+	}
+
+	@SuppressWarnings("rawtypes")
+	private RatingInfo record(HashMap params, RatingInfo ratingInfo) {
+		if (ratingInfo.getResponseCode() < 0) {
+			circuitBreaker.recordFailure();
+			return fallback(params, ratingInfo);
+		}
+		circuitBreaker.recordSuccess();
+		lastKnownRates.put(params, ratingInfo);
+		return ratingInfo;
+	}
+
+	@SuppressWarnings("rawtypes")
+	private RatingInfo fallback(HashMap params, RatingInfo failed) {
+		RatingInfo lastKnown = lastKnownRates.get(params);
+		return lastKnown != null ? lastKnown : failed;
+	}
+
+}
@@ -0,0 +1,171 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2013, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.ratingengine;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of successful Rating Engine answers, shared by all SBB entities.
+ * 
+ * Entries are keyed by the values of a configurable set of rating request parameters (eg, ServiceId, UnitTypeId and
+ * SubscriptionIdType), expire after a fixed TTL and are evicted in least-recently-used order once the cache is full.
+ * The key must cover every parameter the Rating Engine rates on (eg, SubscriptionIdData for per subscriber rates or
+ * promotions, UnitValue for volume dependent rates), as requests with the same key are given the same rate.
+ *
+ * Rates may depend on the time of the event (eg, time-of-day bands), which is not one of the key parameters, so the key
+ * can also hold the time slot of the BeginTime parameter. Requests in the same slot share a rate, so the slot must be no
+ * longer than the shortest band, and bands must start on slot boundaries.
+ * 
+ * @author ammendonca
+ */
+public class RateCache {
+
+	private final String[] keyParams;
+	private final long ttl;
+	private final long timeSlot;
+	private final Map<String, Entry> entries;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param keyParams the names of the rating request parameters making up the cache key
+	 * @param ttl how long (in ms) a rate is kept, or 0 to keep it until evicted
+	 * @param maxSize the maximum number of rates kept
+	 * @param timeSlot the duration (in ms) of the BeginTime slots making up the key, or 0 to keep rates for any time
+	 */
+	public RateCache(String[] keyParams, long ttl, final int maxSize, long timeSlot) {
+		this.keyParams = keyParams;
+		this.ttl = ttl;
+		this.timeSlot = timeSlot;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Looks up the rate for a rating request.
+	 * 
+	 * @param params the rating request parameters
+	 * @return the cached rating info, with the session id of the request, or null if not cached or expired
+	 */
+	@SuppressWarnings("rawtypes")
+	public RatingInfo get(HashMap params) {
+		String key = keyOf(params);
+		Entry entry;
+		synchronized (entries) {
+			entry = entries.get(key);
+			if (entry != null && entry.expires <= System.currentTimeMillis()) {
+				entries.remove(key);
+				entry = null;
+			}
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+
+		RatingInfo ratingInfo = new RatingInfo(entry.responseCode, (String) params.get("SessionId"));
+		ratingInfo.setRate(entry.rate);
+		ratingInfo.setRateDescription(entry.rateDescription);
+		ratingInfo.setRatePromo(entry.ratePromo);
+		ratingInfo.setCurrentTime(System.currentTimeMillis());
+		return ratingInfo;
+	}
+
+	/**
+	 * Stores the answer to a rating request, if it was successful.
+	 * 
+	 * @param params the rating request parameters
+	 * @param ratingInfo the rating info received from the Rating Engine
+	 */
+	@SuppressWarnings("rawtypes")
+	public void put(HashMap params, RatingInfo ratingInfo) {
+		if (ratingInfo == null || ratingInfo.getResponseCode() != 0) {
+			return;
+		}
+		Entry entry = new Entry(ratingInfo, ttl > 0 ? System.currentTimeMillis() + ttl : Long.MAX_VALUE);
+		String key = keyOf(params);
+		synchronized (entries) {
+			entries.put(key, entry);
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@SuppressWarnings("rawtypes")
+	private String keyOf(HashMap params) {
+		StringBuilder key = new StringBuilder();
+		for (String param : keyParams) {
+			key.append(params.get(param)).append('|');
+		}
+		Object beginTime = params.get("BeginTime");
+		if (timeSlot > 0 && beginTime instanceof Number) {
+			key.append(((Number) beginTime).longValue() / timeSlot);
+		}
+		return key.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "RateCache[size=" + size() + "; hits=" + hits.get() + "; misses=" + misses.get() + "]";
+	}
+
+	private static class Entry {
+		private final int responseCode;
+		private final double rate;
+		private final String rateDescription;
+		private final String ratePromo;
+		private final long expires;
+
+		Entry(RatingInfo ratingInfo, long expires) {
+			this.responseCode = ratingInfo.getResponseCode();
+			this.rate = ratingInfo.getRate();
+			this.rateDescription = ratingInfo.getRateDescription();
+			this.ratePromo = ratingInfo.getRatePromo();
+			this.expires = expires;
+		}
+	}
+
+}
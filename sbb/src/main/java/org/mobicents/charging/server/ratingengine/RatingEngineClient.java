@@ -22,6 +22,7 @@
 
 package org.mobicents.charging.server.ratingengine;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 
 /**
@@ -37,6 +38,24 @@ public interface RatingEngineClient {
 	 */
 	public void init();
 
+	/**
+	 * Gets the rate for a service.
+	 * 
+	 * @param params the request parameters
+	 * @return the rating information, or null if it will be delivered asynchronously through
+	 *         {@link org.mobicents.charging.server.DiameterChargingServer#getRateForServiceResult(RatingInfo)}
+	 */
 	@SuppressWarnings("rawtypes")
 	RatingInfo getRateForService(HashMap params);
+
+	/**
+	 * Gets the rates for several items (eg, services and unit types) of the same request, with a single request to the
+	 * Rating Engine.
+	 * 
+	 * @param paramsList the request parameters of each item
+	 * @return the rating information of each item, in the same order, or null if it will be delivered asynchronously
+	 *         through {@link org.mobicents.charging.server.DiameterChargingServer#getRatesForServiceResult(ArrayList)}
+	 */
+	@SuppressWarnings("rawtypes")
+	ArrayList<RatingInfo> getRatesForService(ArrayList<HashMap> paramsList);
 }
@@ -0,0 +1,79 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2013, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.ratingengine;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Base for {@link RatingEngineClient}s wrapping another one, such as the Rating Engine Child SBB.
+ * 
+ * As asynchronous answers are delivered to the parent SBB and not through the client, the parent should pass them
+ * through {@link #onRateForServiceResult(HashMap, RatingInfo)} before using them.
+ * 
+ * @author ammendonca
+ */
+public abstract class RatingEngineClientDecorator implements RatingEngineClient {
+
+	protected final RatingEngineClient delegate;
+
+	protected RatingEngineClientDecorator(RatingEngineClient delegate) {
+		this.delegate = delegate;
+	}
+
+	@Override
+	public void init() {
+		delegate.init();
+	}
+
+	/**
+	 * Handles a rating info delivered asynchronously.
+	 * 
+	 * @param params the parameters of the rating request
+	 * @param ratingInfo the rating info received
+	 * @return the rating info to use, which may differ from the one received
+	 */
+	@SuppressWarnings("rawtypes")
+	public RatingInfo onRateForServiceResult(HashMap params, RatingInfo ratingInfo) {
+		if (delegate instanceof RatingEngineClientDecorator) {
+			return ((RatingEngineClientDecorator) delegate).onRateForServiceResult(params, ratingInfo);
+		}
+		return ratingInfo;
+	}
+
+	/**
+	 * Handles the rating infos of a batch delivered asynchronously.
+	 * 
+	 * @param paramsList the parameters of each item of the rating request
+	 * @param ratingInfos the rating infos received, in the same order
+	 * @return the rating infos to use, which may differ from the ones received
+	 */
+	@SuppressWarnings("rawtypes")
+	public ArrayList<RatingInfo> onRatesForServiceResult(ArrayList<HashMap> paramsList, ArrayList<RatingInfo> ratingInfos) {
+		if (delegate instanceof RatingEngineClientDecorator) {
+			return ((RatingEngineClientDecorator) delegate).onRatesForServiceResult(paramsList, ratingInfos);
+		}
+		return ratingInfos;
+	}
+
+}
@@ -53,6 +53,7 @@ public class RatingInfo implements Serializable {
 		this.currentTime = currentTime;
 		this.rate = rate;
 		this.rateDescription = rateDescription;
+		this.ratePromo = ratePromo;
 	}
 
 	public int getResponseCode() {
@@ -117,7 +118,7 @@ public class RatingInfo implements Serializable {
 			"sessionId: " 			+ sessionId + "; " +
 			"actualTime: " 			+ actualTime + "; " +
 			"currentTime: " 		+ currentTime + "; " +
-			"sessionId: " 			+ rate + "; " +
+			"rate: " 				+ rate + "; " +
 			"rateDescription: " 	+ rateDescription + "; " +
 			"ratePromo: " 			+ ratePromo + "; " +
 			"]";
@@ -23,12 +23,14 @@
 package org.mobicents.charging.server.ratingengine.http;
 
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.naming.Context;
 import javax.naming.InitialContext;
@@ -38,19 +40,18 @@ import javax.slee.Sbb;
 import javax.slee.SbbContext;
 import javax.slee.facilities.Tracer;
 import javax.slee.resource.StartActivityException;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 
 import net.java.client.slee.resource.http.HttpClientActivity;
 import net.java.client.slee.resource.http.HttpClientActivityContextInterfaceFactory;
 import net.java.client.slee.resource.http.HttpClientResourceAdaptorSbbInterface;
 import net.java.client.slee.resource.http.event.ResponseEvent;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.BufferedHttpEntity;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.util.EntityUtils;
 import org.mobicents.charging.server.BaseSbb;
@@ -58,12 +59,6 @@ import org.mobicents.charging.server.DiameterChargingServer;
 import org.mobicents.charging.server.ratingengine.RatingEngineClient;
 import org.mobicents.charging.server.ratingengine.RatingInfo;
 import org.mobicents.slee.SbbContextExt;
-import org.w3c.dom.CharacterData;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
 
 /**
  * SBB for Rating Engine Client implementation in HTTP
@@ -86,6 +81,8 @@ public abstract class HTTPClientSbb extends BaseSbb implements Sbb, RatingEngine
 
 	private boolean sync = true;
 
+	private RatingHttpTransport transport;
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -104,6 +101,19 @@ public abstract class HTTPClientSbb extends BaseSbb implements Sbb, RatingEngine
 			raSbbInterface = (HttpClientResourceAdaptorSbbInterface) ctx.lookup("slee/resources/http-client/sbbinterface");
 
 			httpURLString = (String) ctx.lookup("HTTPURL");
+
+			try {
+				sync = !(Boolean) ctx.lookup("asyncRating");
+			}
+			catch (NamingException ne) {
+				tracer.warning("Unable to read 'asyncRating' env entry. Defaulting to synchronous mode.");
+			}
+
+			transport = RatingHttpTransport.getInstance(httpURLString,
+					(Integer) loadEnvEntry(ctx, "ratingMaxConnections", 20, tracer),
+					(Integer) loadEnvEntry(ctx, "ratingPoolTimeout", 100, tracer),
+					(Integer) loadEnvEntry(ctx, "ratingConnectTimeout", 1000, tracer),
+					(Integer) loadEnvEntry(ctx, "ratingReadTimeout", 2000, tracer));
 		}
 		catch (NamingException ne) {
 			tracer.severe("Could not set SBB context:", ne);
@@ -119,32 +129,67 @@ public abstract class HTTPClientSbb extends BaseSbb implements Sbb, RatingEngine
 	}
 
 	// Event handler methods
+	@SuppressWarnings({ "rawtypes", "unchecked" })
 	public void onResponseEvent(ResponseEvent event, ActivityContextInterface aci) {
+		// a batch request carries the list of params, a single request its params
+		Object applicationData = event.getRequestApplicationData();
+		ArrayList<HashMap> paramsList;
+		if (applicationData instanceof ArrayList) {
+			paramsList = (ArrayList<HashMap>) applicationData;
+		}
+		else {
+			paramsList = new ArrayList<HashMap>(1);
+			paramsList.add((HashMap) applicationData);
+		}
+		ArrayList<RatingInfo> ratingInfos;
+
 		HttpResponse response = event.getHttpResponse();
-		if (tracer.isInfoEnabled()) {
-			tracer.info("[<<] Received HTTP Response. Status Code = " + response.getStatusLine().getStatusCode());
-			if (tracer.isFineEnabled()) {
-				try {
-					tracer.fine("[<<] Received HTTP Response. Response Body = [" + EntityUtils.toString(response.getEntity()) + "]");
-				}
-				catch (Exception e) {
-					tracer.severe("[xx] Failed reading response body", e);
+		if (response == null) {
+			tracer.severe("[xx] Failed to send HTTP Request to Rating Engine.", event.getException());
+			ratingInfos = failed(paramsList);
+		}
+		else {
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[<<] Received HTTP Response. Status Code = " + response.getStatusLine().getStatusCode());
+				if (tracer.isFineEnabled()) {
+					try {
+						// buffered, as the body is read again for parsing
+						response.setEntity(new BufferedHttpEntity(response.getEntity()));
+						tracer.fine("[<<] Received HTTP Response. Response Body = [" + EntityUtils.toString(response.getEntity()) + "]");
+					}
+					catch (Exception e) {
+						tracer.severe("[xx] Failed reading response body", e);
+					}
 				}
 			}
+
+			Object startTime = paramsList.get(0).get("startTime");
+			if (startTime != null) {
+				tracer.info("[%%] Response from Rating Engine took " + (System.currentTimeMillis() - (Long) startTime) + " milliseconds.");
+			}
+
+			ratingInfos = buildRatingInfos(response, paramsList);
 		}
 
 		// end http activity
 		((HttpClientActivity) aci.getActivity()).endActivity();
 
 		// call back parent
-		HashMap params = (HashMap) event.getRequestApplicationData();
-		RatingInfo ratInfo = buildRatingInfo(response, params);
 		final DiameterChargingServer parent = (DiameterChargingServer) sbbContext.getSbbLocalObject().getParent();
-		parent.getRateForServiceResult(ratInfo);
+		if (applicationData instanceof ArrayList) {
+			parent.getRatesForServiceResult(ratingInfos);
+		}
+		else {
+			parent.getRateForServiceResult(ratingInfos.get(0));
+		}
 	}
 
 	//----------------------- HTTP Implementation ------------------------------------//
 
+	/**
+	 * Gets the rate for a service. In asynchronous mode the request is sent and null is returned, with the result
+	 * delivered later through {@link DiameterChargingServer#getRateForServiceResult(RatingInfo)}.
+	 */
 	public RatingInfo getRateForService(HashMap params) {
 		if (sync) {
 			return getRateForServiceSync(params);
@@ -154,74 +199,137 @@ public abstract class HTTPClientSbb extends BaseSbb implements Sbb, RatingEngine
 		}
 	}
 
+	/**
+	 * Gets the rates for several items with a single POST, where the parameters with the same value in all items are
+	 * sent once, and the others once per item, suffixed with the item index (eg, ServiceId.0, ServiceId.1). The number
+	 * of items is sent as 'Items'. In asynchronous mode the request is sent and null is returned, with the result
+	 * delivered later through {@link DiameterChargingServer#getRatesForServiceResult(ArrayList)}.
+	 */
+	@SuppressWarnings("rawtypes")
+	public ArrayList<RatingInfo> getRatesForService(ArrayList<HashMap> paramsList) {
+		if (sync) {
+			return executeSync(buildBatchHTTPRequest(paramsList), paramsList);
+		}
+		else {
+			paramsList.get(0).put("startTime", System.currentTimeMillis());
+			return executeAsync(buildBatchHTTPRequest(paramsList), paramsList) ? null : failed(paramsList);
+		}
+	}
+
 	public RatingInfo getRateForServiceSync(HashMap params) {
-		String sessionIdFromRequest = params.get("SessionId").toString();
-		HttpClient client = raSbbInterface.getHttpClient();
+		ArrayList<HashMap> paramsList = new ArrayList<HashMap>(1);
+		paramsList.add(params);
+		return executeSync(buildHTTPRequest(params), paramsList).get(0);
+	}
 
+	public RatingInfo getRateForServiceAsync(HashMap params) {
+		params.put("startTime", System.currentTimeMillis());
+		if (executeAsync(buildHTTPRequest(params), params)) {
+			return null;
+		}
+		return new RatingInfo(-1, params.get("SessionId").toString());
+	}
+
+	@SuppressWarnings("rawtypes")
+	private ArrayList<RatingInfo> executeSync(HttpPost httpPost, ArrayList<HashMap> paramsList) {
 		long bmStart = System.currentTimeMillis();
-		HttpPost httpPost = buildHTTPRequest(params);
 
 		// Synchronous call
 		HttpResponse response = null;
 		try {
 			tracer.info("[>>] Sending HTTP Request to Rating Client in synchronous mode.");
-			response = client.execute(httpPost);
+			response = transport.execute(httpPost);
 		}
 		catch (IOException e) {
-			tracer.severe("[xx] Failed to send HTTP Request to Rating Engine.");
-			return new RatingInfo(-1, sessionIdFromRequest);
+			tracer.severe("[xx] Failed to send HTTP Request to Rating Engine. " + transport, e);
+			return failed(paramsList);
 		}
 		tracer.info("[%%] Response from Rating Engine took " + (System.currentTimeMillis() - bmStart) + " milliseconds.");
+		if (tracer.isFineEnabled()) {
+			tracer.fine("[%%] " + transport);
+		}
 
-		return buildRatingInfo(response, params);
+		return buildRatingInfos(response, paramsList);
 	}
 
-	public RatingInfo getRateForServiceAsync(HashMap params) {
-		String sessionIdFromRequest = params.get("SessionId").toString();
-
+	/**
+	 * @return true if the request was sent, false if the HTTP Client Activity could not be created
+	 */
+	private boolean executeAsync(HttpPost httpPost, Object applicationData) {
 		HttpClientActivity clientActivity = null;
 		try {
 			clientActivity = raSbbInterface.createHttpClientActivity(true, null);
 		} catch (StartActivityException e) {
 			tracer.severe("[xx] Failed creating HTTP Client Activity to send HTTP Request to Rating Engine.");
-			return new RatingInfo(-1, sessionIdFromRequest);
+			return false;
 		}
 
 		ActivityContextInterface clientAci = httpClientAci.getActivityContextInterface(clientActivity);
 		clientAci.attach(sbbContext.getSbbLocalObject());
 
-		params.put("startTime", System.currentTimeMillis());
-		HttpPost httpPost = buildHTTPRequest(params);
-
 		// Asynchronous call
-		clientActivity.execute(httpPost, params);
+		clientActivity.execute(httpPost, applicationData);
 		tracer.info("[>>] Sent HTTP Request to Rating Client in asynchronous mode.");
 
-		return null;
+		return true;
 	}
 
+	@SuppressWarnings("rawtypes")
 	private HttpPost buildHTTPRequest(HashMap params) {
-		HttpPost httpPost = new HttpPost(httpURLString);
-
-		tracer.info("------ HTTP Request Params to Rating Engine ------");
-		String httpRequestParams = "";
 		List<NameValuePair> nameValuePairs = new ArrayList<NameValuePair>(params.size());
-
 		for (Object o: params.entrySet()) {
 			Map.Entry entry = (Map.Entry) o;
-			String key = null;
-			String val = null;
-			if (entry.getKey() != null) {
-				key = entry.getKey().toString();
+			addParam(nameValuePairs, entry.getKey(), "", entry.getValue());
+		}
+		return buildHTTPRequest(nameValuePairs);
+	}
+
+	@SuppressWarnings("rawtypes")
+	private HttpPost buildBatchHTTPRequest(ArrayList<HashMap> paramsList) {
+		Set<Object> keys = new LinkedHashSet<Object>();
+		for (HashMap params : paramsList) {
+			keys.addAll(params.keySet());
+		}
+
+		List<NameValuePair> nameValuePairs = new ArrayList<NameValuePair>();
+		nameValuePairs.add(new BasicNameValuePair("Items", String.valueOf(paramsList.size())));
+		for (Object key : keys) {
+			Object value = paramsList.get(0).get(key);
+			boolean common = true;
+			for (HashMap params : paramsList) {
+				Object other = params.get(key);
+				if (value == null ? other != null : !value.equals(other)) {
+					common = false;
+					break;
+				}
 			}
-			if (entry.getValue() != null) {
-				val = entry.getValue().toString();
+			if (common) {
+				addParam(nameValuePairs, key, "", value);
 			}
-			if (key==null || val==null) {
-				continue;
+			else {
+				for (int i = 0; i < paramsList.size(); i++) {
+					addParam(nameValuePairs, key, "." + i, paramsList.get(i).get(key));
+				}
 			}
-			nameValuePairs.add(new BasicNameValuePair(key, val));
-			httpRequestParams += key + "=" + val + "; ";
+		}
+		return buildHTTPRequest(nameValuePairs);
+	}
+
+	private void addParam(List<NameValuePair> nameValuePairs, Object key, String suffix, Object value) {
+		if (key == null || value == null) {
+			return;
+		}
+		nameValuePairs.add(new BasicNameValuePair(key.toString() + suffix, value.toString()));
+	}
+
+	private HttpPost buildHTTPRequest(List<NameValuePair> nameValuePairs) {
+		HttpPost httpPost = new HttpPost(httpURLString);
+		httpPost.setHeader("Accept", "application/xml");
+
+		tracer.info("------ HTTP Request Params to Rating Engine ------");
+		String httpRequestParams = "";
+		for (NameValuePair nameValuePair : nameValuePairs) {
+			httpRequestParams += nameValuePair.getName() + "=" + nameValuePair.getValue() + "; ";
 		}
 		try {
 			httpPost.setEntity(new UrlEncodedFormEntity(nameValuePairs));
@@ -233,72 +341,58 @@ public abstract class HTTPClientSbb extends BaseSbb implements Sbb, RatingEngine
 		return httpPost;
 	}
 
-	private RatingInfo buildRatingInfo(HttpResponse response, HashMap params) {
-		String responseBody = "";
+	@SuppressWarnings("rawtypes")
+	private ArrayList<RatingInfo> buildRatingInfos(HttpResponse response, ArrayList<HashMap> paramsList) {
+		String diameterSessionId = (String) paramsList.get(0).get("SessionId");
+		HttpEntity entity = response.getEntity();
+		if (entity == null) {
+			tracer.severe("[xx] HTTP Rating Engine response has no body.");
+			return failed(paramsList);
+		}
 
-		String diameterSessionId = (String) params.get("SessionId");
+		ArrayList<RatingInfo> ratingInfos;
+		InputStream in = null;
 		try {
-			responseBody = EntityUtils.toString(response.getEntity());
+			in = entity.getContent();
+			ratingInfos = RatingResponseParser.parseAll(in, EntityUtils.getContentCharSet(entity), diameterSessionId);
+			if (ratingInfos.size() != paramsList.size()) {
+				throw new IllegalStateException("Expected " + paramsList.size() + " response(s), received " + ratingInfos.size() + ".");
+			}
 		}
 		catch (Exception e) {
-			tracer.severe("[xx] Failed reading HTTP Rating Engine response body.", e);
-			return new RatingInfo(-1, diameterSessionId);
+			tracer.warning("[xx] Malformed response from Rating Engine for request:\n" + paramsList, e);
+			return failed(paramsList);
 		}
-		//tracer.info("Response Body = " + responseBody);
-
-		// The response body is an XML payload. Let's parse it using DOM.
-		int responseCode = -1;
-		String sessionId = diameterSessionId;
-		long actualTime = 0;
-		long currentTime = 0;
-		double rate = 0.0D;
-		String rateDescription = "";
-		String ratePromo = "";
-		try {
-			DocumentBuilder db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-			InputSource is = new InputSource();
-			is.setCharacterStream(new StringReader(responseBody));
-			Document doc = db.parse(is);
-
-			NodeList nodes = doc.getElementsByTagName("response");
-			Element element = (Element) nodes.item(0);
-
-			responseCode = Integer.parseInt(getCharacterDataFromElement((Element) element.getElementsByTagName("responseCode").item(0)));
-			sessionId = getCharacterDataFromElement((Element) element.getElementsByTagName("sessionId").item(0));
-			if (!diameterSessionId.equals(sessionId)){
-				tracer.warning("SessionID Mismatch! Something is wrong with the response from the Rating Engine. Expected '" + diameterSessionId + "', received '"+sessionId+"'");
+		finally {
+			if (in != null) {
+				try {
+					in.close();
+				}
+				catch (IOException e) {
+					tracer.warning("[!!] Failed closing HTTP Rating Engine response body.", e);
+				}
 			}
-			actualTime = Long.parseLong(getCharacterDataFromElement((Element) element.getElementsByTagName("actualTime").item(0)));
-			currentTime = Long.parseLong(getCharacterDataFromElement((Element) element.getElementsByTagName("currentTime").item(0)));
-			rate = Double.parseDouble(getCharacterDataFromElement((Element) element.getElementsByTagName("rate").item(0)));
-			rateDescription = getCharacterDataFromElement((Element) element.getElementsByTagName("rateDescription").item(0));
-			ratePromo = getCharacterDataFromElement((Element) element.getElementsByTagName("ratePromo").item(0));
-
-			tracer.info(
-					"responseCode="+responseCode+"; "+
-							"sessionId="+sessionId+"; "+
-							"actualTime="+actualTime+"; "+
-							"currentTime="+currentTime+"; "+
-							"rate="+rate+"; "+
-							"rateDescription="+rateDescription+"; "+
-							"ratePromo="+ratePromo);
-
 		}
-		catch (Exception e) {
-			tracer.warning("[xx] Malformed response from Rating Engine for request:\n" + params + "\n\nResponse Received was:"+responseBody, e);
-			return new RatingInfo(-1, diameterSessionId);
+
+		for (RatingInfo ratingInfo : ratingInfos) {
+			if (!diameterSessionId.equals(ratingInfo.getSessionId())) {
+				tracer.warning("SessionID Mismatch! Something is wrong with the response from the Rating Engine. Expected '" + diameterSessionId + "', received '" + ratingInfo.getSessionId() + "'");
+			}
+			if (tracer.isInfoEnabled()) {
+				tracer.info(ratingInfo.toString());
+			}
 		}
 
-		return new RatingInfo(responseCode, sessionId, actualTime, currentTime, rate, rateDescription, ratePromo);
+		return ratingInfos;
 	}
 
-	private String getCharacterDataFromElement(Element e) {
-		Node child = e.getFirstChild();
-		if (child instanceof CharacterData) {
-			CharacterData cd = (CharacterData) child;
-			return cd.getData();
+	@SuppressWarnings("rawtypes")
+	private ArrayList<RatingInfo> failed(ArrayList<HashMap> paramsList) {
+		ArrayList<RatingInfo> ratingInfos = new ArrayList<RatingInfo>(paramsList.size());
+		for (HashMap params : paramsList) {
+			ratingInfos.add(new RatingInfo(-1, (String) params.get("SessionId")));
 		}
-		return "?";
+		return ratingInfos;
 	}
 
 }
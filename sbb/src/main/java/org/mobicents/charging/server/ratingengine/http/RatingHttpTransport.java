@@ -0,0 +1,165 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2013, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.ratingengine.http;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+/**
+ * HTTP transport dedicated to the Rating Engine, with a bounded pool of keep-alive connections per rating URL.
+ *
+ * Every request has its own timeouts: waiting for a pooled connection, connecting and reading the response. A slow
+ * Rating Engine can then hold at most the pool size of connections, and callers fail fast once it is saturated
+ * instead of queueing behind it. Pool usage and timeouts are counted, see {@link #toString()}.
+ *
+ * Callers must always close (or abort) the response entity, so the connection goes back to the pool.
+ *
+ * @author ammendonca
+ */
+public class RatingHttpTransport {
+
+	private static final Map<String, RatingHttpTransport> transports = new HashMap<String, RatingHttpTransport>();
+
+	private final ThreadSafeClientConnManager connectionManager;
+	private final DefaultHttpClient client;
+
+	private final int maxConnections;
+	private final int poolTimeout;
+	private final int connectTimeout;
+	private final int readTimeout;
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong poolTimeouts = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	/**
+	 * Gets the transport for a rating URL, creating it on first use. Later calls for the same URL get the same
+	 * transport, regardless of the settings passed.
+	 *
+	 * @param url the rating URL
+	 * @param maxConnections the maximum number of connections to the rating URL
+	 * @param poolTimeout time (in ms) to wait for a connection when all are in use
+	 * @param connectTimeout time (in ms) to wait for a connection to be established
+	 * @param readTimeout time (in ms) to wait for response data
+	 * @return the transport
+	 */
+	public static synchronized RatingHttpTransport getInstance(String url, int maxConnections, int poolTimeout, int connectTimeout, int readTimeout) {
+		RatingHttpTransport transport = transports.get(url);
+		if (transport == null) {
+			transport = new RatingHttpTransport(maxConnections, poolTimeout, connectTimeout, readTimeout);
+			transports.put(url, transport);
+		}
+		return transport;
+	}
+
+	private RatingHttpTransport(int maxConnections, int poolTimeout, int connectTimeout, int readTimeout) {
+		this.maxConnections = maxConnections;
+		this.poolTimeout = poolTimeout;
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+
+		connectionManager = new ThreadSafeClientConnManager();
+		// a transport serves a single URL, so a single route
+		connectionManager.setMaxTotal(maxConnections);
+		connectionManager.setDefaultMaxPerRoute(maxConnections);
+		client = new DefaultHttpClient(connectionManager);
+	}
+
+	/**
+	 * Sends a request. On failure the request is aborted, releasing its connection.
+	 *
+	 * @param request the request
+	 * @return the response, whose entity must be closed by the caller
+	 * @throws IOException if there is no connection available in time, or the request fails
+	 */
+	public HttpResponse execute(HttpPost request) throws IOException {
+		requests.incrementAndGet();
+
+		HttpParams params = request.getParams();
+		params.setLongParameter(ClientPNames.CONN_MANAGER_TIMEOUT, poolTimeout);
+		HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+		HttpConnectionParams.setSoTimeout(params, readTimeout);
+
+		try {
+			return client.execute(request);
+		}
+		catch (ConnectionPoolTimeoutException e) {
+			poolTimeouts.incrementAndGet();
+			request.abort();
+			throw e;
+		}
+		catch (IOException e) {
+			failures.incrementAndGet();
+			request.abort();
+			throw e;
+		}
+		catch (RuntimeException e) {
+			failures.incrementAndGet();
+			request.abort();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the number of connections currently open, either in use or idle in the pool
+	 */
+	public int getConnections() {
+		return connectionManager.getConnectionsInPool();
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * @return the number of requests failed for having no connection available in time, ie, with the pool saturated
+	 */
+	public long getPoolTimeouts() {
+		return poolTimeouts.get();
+	}
+
+	public long getFailures() {
+		return failures.get();
+	}
+
+	@Override
+	public String toString() {
+		return "RatingHttpTransport[connections=" + getConnections() + "/" + maxConnections + "; requests=" + requests.get() + "; poolTimeouts=" + poolTimeouts.get() + "; failures=" + failures.get() + "]";
+	}
+
+}
@@ -0,0 +1,184 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2013, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.ratingengine.http;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.mobicents.charging.server.ratingengine.RatingInfo;
+
+/**
+ * Streaming parser for the Rating Engine XML response, read directly from the HTTP entity stream:
+ *
+ * <pre>
+ * &lt;response&gt;
+ *   &lt;responseCode&gt;0&lt;/responseCode&gt;
+ *   &lt;sessionId&gt;...&lt;/sessionId&gt;
+ *   &lt;actualTime&gt;...&lt;/actualTime&gt;
+ *   &lt;currentTime&gt;...&lt;/currentTime&gt;
+ *   &lt;rate&gt;1.0&lt;/rate&gt;
+ *   &lt;rateDescription&gt;...&lt;/rateDescription&gt;
+ *   &lt;ratePromo&gt;...&lt;/ratePromo&gt;
+ * &lt;/response&gt;
+ * </pre>
+ *
+ * Batch responses wrap a &lt;response&gt; element per item in a &lt;responses&gt; element.
+ *
+ * Elements are read in a single pass, in any order, and unknown elements are skipped. The factory is shared, as it is
+ * thread-safe once configured.
+ *
+ * @author ammendonca
+ */
+public class RatingResponseParser {
+
+	private static final XMLInputFactory factory = XMLInputFactory.newInstance();
+
+	static {
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+	}
+
+	private RatingResponseParser() {
+	}
+
+	/**
+	 * Parses the response.
+	 *
+	 * @param in the response body
+	 * @param encoding the response charset, or null to detect it from the payload
+	 * @param sessionId the session id to use if the response has none
+	 * @return the rating info
+	 * @throws XMLStreamException if the response is malformed
+	 * @throws NumberFormatException if a numeric element has an invalid value
+	 */
+	public static RatingInfo parse(InputStream in, String encoding, String sessionId) throws XMLStreamException {
+		ArrayList<RatingInfo> ratingInfos = parseAll(in, encoding, sessionId);
+		if (ratingInfos.size() != 1) {
+			throw new XMLStreamException("Expected a single <response> element, found " + ratingInfos.size() + ".");
+		}
+		return ratingInfos.get(0);
+	}
+
+	/**
+	 * Parses a batch response, with a &lt;response&gt; element per item inside a &lt;responses&gt; element, in the same
+	 * order as the items were requested. A single &lt;response&gt; element is also accepted.
+	 *
+	 * @param in the response body
+	 * @param encoding the response charset, or null to detect it from the payload
+	 * @param sessionId the session id to use if a response has none
+	 * @return the rating infos
+	 * @throws XMLStreamException if the response is malformed
+	 * @throws NumberFormatException if a numeric element has an invalid value
+	 */
+	public static ArrayList<RatingInfo> parseAll(InputStream in, String encoding, String sessionId) throws XMLStreamException {
+		XMLStreamReader reader = encoding != null ? factory.createXMLStreamReader(in, encoding) : factory.createXMLStreamReader(in);
+		try {
+			ArrayList<RatingInfo> ratingInfos = new ArrayList<RatingInfo>();
+			reader.nextTag();
+			if ("response".equals(reader.getLocalName())) {
+				ratingInfos.add(parseResponse(reader, sessionId));
+			}
+			else if ("responses".equals(reader.getLocalName())) {
+				while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+					if (!"response".equals(reader.getLocalName())) {
+						throw new XMLStreamException("Unexpected <" + reader.getLocalName() + "> element in <responses>.");
+					}
+					ratingInfos.add(parseResponse(reader, sessionId));
+				}
+			}
+			else {
+				throw new XMLStreamException("Missing <response> element.");
+			}
+			return ratingInfos;
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Reads a &lt;response&gt; element, from its start element up to its end element.
+	 */
+	private static RatingInfo parseResponse(XMLStreamReader reader, String sessionId) throws XMLStreamException {
+		int responseCode = -1;
+		long actualTime = 0;
+		long currentTime = 0;
+		double rate = 0.0D;
+		String rateDescription = "";
+		String ratePromo = "";
+
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+				if (depth == 2) {
+					String name = reader.getLocalName();
+					if ("responseCode".equals(name)) {
+						responseCode = Integer.parseInt(readText(reader));
+					}
+					else if ("sessionId".equals(name)) {
+						sessionId = readText(reader);
+					}
+					else if ("actualTime".equals(name)) {
+						actualTime = Long.parseLong(readText(reader));
+					}
+					else if ("currentTime".equals(name)) {
+						currentTime = Long.parseLong(readText(reader));
+					}
+					else if ("rate".equals(name)) {
+						rate = Double.parseDouble(readText(reader));
+					}
+					else if ("rateDescription".equals(name)) {
+						rateDescription = readText(reader);
+					}
+					else if ("ratePromo".equals(name)) {
+						ratePromo = readText(reader);
+					}
+					else {
+						// unknown element, its end element is counted below
+						continue;
+					}
+					// the text was read up to the end element
+					depth--;
+				}
+			}
+			else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+
+		return new RatingInfo(responseCode, sessionId, actualTime, currentTime, rate, rateDescription, ratePromo);
+	}
+
+	private static String readText(XMLStreamReader reader) throws XMLStreamException {
+		return reader.getElementText().trim();
+	}
+
+}
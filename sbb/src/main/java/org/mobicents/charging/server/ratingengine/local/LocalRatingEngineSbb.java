@@ -23,19 +23,30 @@
 package org.mobicents.charging.server.ratingengine.local;
 
 import org.mobicents.charging.server.BaseSbb;
+import org.mobicents.charging.server.ConfigReloader;
 import org.mobicents.charging.server.ratingengine.RatingEngineClient;
 import org.mobicents.charging.server.ratingengine.RatingInfo;
 import org.mobicents.slee.SbbContextExt;
 
+import javax.naming.Context;
+import javax.naming.InitialContext;
 import javax.slee.Sbb;
 import javax.slee.SbbContext;
 import javax.slee.facilities.Tracer;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
 
 /**
- * SBB for Rating Engine Client implementation sample. This always returns success.
+ * SBB for Rating Engine Client implementation running in-process, rating from the tariff plans in
+ * 'tariffs.properties' (see {@link TariffTable}). The tariff and the service id units files can be set with the
+ * 'tariffFile' and 'serviceIdUnitsFile' env entries, in which case they are reloaded when changed, see
+ * {@link ConfigReloader}.
  *
  * @author ammendonca
  */
@@ -45,42 +56,122 @@ public class LocalRatingEngineSbb extends BaseSbb implements Sbb, RatingEngineCl
 
 	private SbbContextExt sbbContext;
 
+	// immutable, replaced as a whole on reload
+	private static volatile TariffTable tariffs;
+	private static volatile Map<Integer, Integer> serviceIdUnits;
+
+	private static File tariffFile;
+	private static File serviceIdUnitsFile;
+
 	public void setSbbContext(SbbContext context) {
 		this.sbbContext = (SbbContextExt) context;
 		this.tracer = sbbContext.getTracer("CS-RF-SMPL");
+		load();
 	}
 
-	private HashMap<Integer, Integer> serviceIdUnits;
+	/**
+	 * Loads the tariffs and the service id units, and starts watching their files, unless already done since the
+	 * service started.
+	 */
+	private void load() {
+		synchronized (LocalRatingEngineSbb.class) {
+			if (tariffs == null) {
+				long reloadInterval = 0;
+				try {
+					Context ctx = (Context) new InitialContext().lookup("java:comp/env");
+					tariffFile = toFile((String) loadEnvEntry(ctx, "tariffFile", "", tracer));
+					serviceIdUnitsFile = toFile((String) loadEnvEntry(ctx, "serviceIdUnitsFile", "", tracer));
+					reloadInterval = (Long) loadEnvEntry(ctx, "reloadInterval", 60000L, tracer);
+				}
+				catch (Exception e) {
+					tracer.warning("[!!] Unable to read Local Rating Engine env entries. Using classpath files.", e);
+				}
 
-	@Override
-	public void init() {
+				try {
+					tariffs = TariffTable.compile(loadProperties(tariffFile, "tariffs.properties"));
+					if (tracer.isInfoEnabled()) {
+						tracer.info("[--] Loaded tariffs from " + (tariffFile != null ? tariffFile.getAbsolutePath() : "classpath") + ": " + tariffs);
+					}
+				}
+				catch (Exception e) {
+					tracer.warning("[!!] Unable to load tariffs. Using rate 1.0 for everything!", e);
+					tariffs = TariffTable.compile(new Properties());
+				}
+				loadServiceIdUnits();
+
+				if (reloadInterval > 0) {
+					if (tariffFile != null) {
+						ConfigReloader.watch("tariffs", tariffFile, reloadInterval, new ConfigReloader.Reloadable() {
+							public void reload(Properties props) {
+								tariffs = TariffTable.compile(props);
+							}
+						}, tracer);
+					}
+					if (serviceIdUnitsFile != null) {
+						ConfigReloader.watch("service id units", serviceIdUnitsFile, reloadInterval, new ConfigReloader.Reloadable() {
+							public void reload(Properties props) {
+								serviceIdUnits = compileServiceIdUnits(props);
+							}
+						}, tracer);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forgets the tariffs and the service id units when the service stops, along with the watches of their files (see
+	 * {@link ConfigReloader#stopAll()}), so both are loaded again on the next use.
+	 */
+	public static void unload() {
+		synchronized (LocalRatingEngineSbb.class) {
+			tariffs = null;
+			serviceIdUnits = null;
+		}
+	}
+
+	private static File toFile(String path) {
+		return path.trim().length() > 0 ? new File(path.trim()) : null;
+	}
+
+	/**
+	 * Loads the given file, or the given classpath resource if there is no file.
+	 */
+	private Properties loadProperties(File file, String resource) throws IOException {
+		if (file != null) {
+			return ConfigReloader.load(file);
+		}
+		Properties props = new Properties();
+		InputStream in = this.getClass().getClassLoader().getResourceAsStream(resource);
+		if (in != null) {
+			try {
+				props.load(in);
+			}
+			finally {
+				in.close();
+			}
+		}
+		return props;
+	}
+
+	private static Map<Integer, Integer> compileServiceIdUnits(Properties props) {
+		HashMap<Integer, Integer> units = new HashMap<Integer, Integer>();
+		for (String key : props.stringPropertyNames()) {
+			units.put(Integer.valueOf(key.trim()), Integer.valueOf(props.getProperty(key).trim()));
+		}
+		return Collections.unmodifiableMap(units);
+	}
+
+	private void loadServiceIdUnits() {
 		// Load service id units (Unit Determination)
 		// TODO: Need to port this to database.
 		try {
-			Properties props = new Properties();
-			props.load(this.getClass().getClassLoader().getResourceAsStream("serviceid-units.properties"));
-			serviceIdUnits = new HashMap<Integer, Integer>();
-			for (Object key : props.keySet()) {
-				String serviceId = ((String) key).trim();
-				String unitTypeID = props.getProperty(serviceId).trim();
-				serviceIdUnits.put(Integer.valueOf(serviceId),Integer.valueOf(unitTypeID));
-			}
+			serviceIdUnits = compileServiceIdUnits(loadProperties(serviceIdUnitsFile, "serviceid-units.properties"));
 			if (tracer.isInfoEnabled()) {
 				tracer.info("[--] Loaded service id units from properties file. Dumping info.");
-			}
-			// dump info...
-			for (Object o : serviceIdUnits.entrySet()) {
-				Map.Entry entry = (Map.Entry) o;
-				String key = null;
-				String val = null;
-				if (entry.getKey() != null) {
-					key = entry.getKey().toString();
-				}
-				if (entry.getValue() != null) {
-					val = entry.getValue().toString();
-				}
-				if (tracer.isInfoEnabled()) {
-					tracer.info("[--] Service-ID:" + key + " => Unit-Type-ID:" + val);
+				// dump info...
+				for (Map.Entry<Integer, Integer> entry : serviceIdUnits.entrySet()) {
+					tracer.info("[--] Service-ID:" + entry.getKey() + " => Unit-Type-ID:" + entry.getValue());
 				}
 			}
 		}
@@ -90,16 +181,43 @@ public class LocalRatingEngineSbb extends BaseSbb implements Sbb, RatingEngineCl
 		}
 	}
 
+	@Override
+	public void init() {
+		loadServiceIdUnits();
+	}
+
 	@Override
 	public RatingInfo getRateForService(HashMap params) {
 		String sessionId = (String) params.get("SessionId");
 		if (tracer.isInfoEnabled()) {
-			tracer.info("[$$] SID<" + sessionId + "> Performing rating with the SIMPLE Rating Module.");
+			tracer.info("[$$] SID<" + sessionId + "> Performing rating with the Local Rating Module.");
+		}
+
+		long now = System.currentTimeMillis();
+		TariffTable tariffs = LocalRatingEngineSbb.tariffs;
+		if (tariffs == null) {
+			// unloaded when the service stopped, this object outlived it
+			load();
+			tariffs = LocalRatingEngineSbb.tariffs;
 		}
-		RatingInfo ri = new RatingInfo(0, sessionId);
-		ri.setRate(1.0);
+		Object beginTime = params.get("BeginTime");
+		int tariff = tariffs.find(toLong(params.get("ServiceId")), toLong(params.get("UnitTypeId")), (int) toLong(params.get("SubscriptionIdType")));
+		double rate = tariffs.getRate(tariff, beginTime != null ? toLong(beginTime) : now);
 
-		return ri;
+		return new RatingInfo(0, sessionId, now, now, rate, tariffs.getDescription(tariff), "");
+	}
+
+	private static long toLong(Object value) {
+		return value instanceof Number ? ((Number) value).longValue() : -1;
+	}
+
+	@SuppressWarnings("rawtypes")
+	public ArrayList<RatingInfo> getRatesForService(ArrayList<HashMap> paramsList) {
+		ArrayList<RatingInfo> ratingInfos = new ArrayList<RatingInfo>(paramsList.size());
+		for (HashMap params : paramsList) {
+			ratingInfos.add(getRateForService(params));
+		}
+		return ratingInfos;
 	}
 
 }
@@ -0,0 +1,199 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2013, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.ratingengine.local;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * Immutable tariff plans, compiled from a properties file for the local Rating Engine:
+ *
+ * <pre>
+ * # rate used when no tariff matches
+ * default = 1.0
+ * # time zone of the time-of-day bands (defaults to the JVM time zone)
+ * timezone = UTC
+ * # service-id.unit-type-id[.subscriber-class] = rate | from-to:rate,...
+ * 17.0 = 0.02
+ * 17.0.1 = 00-08:0.01,08-20:0.02,20-24:0.015
+ * </pre>
+ *
+ * The subscriber class is the Subscription-Id type (AVP 450). A tariff without it applies to every class with no
+ * tariff of its own. Bands are whole hours, and hours not covered by any band use the default rate.
+ *
+ * Tariffs are kept in a sorted array of keys, with the rates of all 24 hours in a flat array, so a lookup is a binary
+ * search and an array read, with no allocation. A table is never changed once built; reloading builds a new one.
+ *
+ * @author ammendonca
+ */
+public class TariffTable {
+
+	public static final int ANY_CLASS = -1;
+
+	private static final int HOURS = 24;
+	private static final long HOUR = 60 * 60 * 1000L;
+
+	// service id (32 bits) | unit type id (16 bits) | subscriber class + 1 (8 bits), 0 being any class
+	private final long[] keys;
+	private final double[] rates;
+	private final String[] descriptions;
+
+	private final double defaultRate;
+	private final TimeZone timeZone;
+
+	private TariffTable(long[] keys, double[] rates, String[] descriptions, double defaultRate, TimeZone timeZone) {
+		this.keys = keys;
+		this.rates = rates;
+		this.descriptions = descriptions;
+		this.defaultRate = defaultRate;
+		this.timeZone = timeZone;
+	}
+
+	/**
+	 * Compiles the tariff plans.
+	 *
+	 * @param props the tariff plans, in the format described above
+	 * @return the tariff table
+	 * @throws IllegalArgumentException if a tariff is malformed
+	 */
+	public static TariffTable compile(Properties props) {
+		double defaultRate = Double.parseDouble(props.getProperty("default", "1.0").trim());
+		String timeZoneId = props.getProperty("timezone");
+		TimeZone timeZone = timeZoneId != null ? TimeZone.getTimeZone(timeZoneId.trim()) : TimeZone.getDefault();
+
+		TreeMap<Long, String> tariffs = new TreeMap<Long, String>();
+		for (String name : props.stringPropertyNames()) {
+			if (name.equals("default") || name.equals("timezone")) {
+				continue;
+			}
+			String[] parts = name.trim().split("\\.");
+			if (parts.length < 2 || parts.length > 3) {
+				throw new IllegalArgumentException("Invalid tariff key '" + name + "', expected service-id.unit-type-id[.subscriber-class].");
+			}
+			long key = key(Long.parseLong(parts[0]), Long.parseLong(parts[1]), parts.length == 3 ? Integer.parseInt(parts[2]) : ANY_CLASS);
+			if (key < 0) {
+				throw new IllegalArgumentException("Tariff key '" + name + "' out of range.");
+			}
+			if (tariffs.put(key, name.trim()) != null) {
+				throw new IllegalArgumentException("Duplicate tariff '" + name + "'.");
+			}
+		}
+
+		long[] keys = new long[tariffs.size()];
+		double[] rates = new double[tariffs.size() * HOURS];
+		String[] descriptions = new String[tariffs.size()];
+		int i = 0;
+		for (Map.Entry<Long, String> tariff : tariffs.entrySet()) {
+			keys[i] = tariff.getKey();
+			descriptions[i] = tariff.getValue();
+			parseBands(tariff.getValue(), props.getProperty(tariff.getValue()).trim(), defaultRate, rates, i * HOURS);
+			i++;
+		}
+
+		return new TariffTable(keys, rates, descriptions, defaultRate, timeZone);
+	}
+
+	private static void parseBands(String name, String value, double defaultRate, double[] rates, int offset) {
+		if (value.indexOf(':') < 0) {
+			Arrays.fill(rates, offset, offset + HOURS, Double.parseDouble(value));
+			return;
+		}
+
+		Arrays.fill(rates, offset, offset + HOURS, defaultRate);
+		for (String band : value.split(",")) {
+			String[] hoursRate = band.trim().split(":");
+			String[] hours = hoursRate.length == 2 ? hoursRate[0].split("-") : new String[0];
+			if (hours.length != 2) {
+				throw new IllegalArgumentException("Invalid band '" + band + "' in tariff '" + name + "', expected from-to:rate.");
+			}
+			int from = Integer.parseInt(hours[0].trim());
+			int to = Integer.parseInt(hours[1].trim());
+			if (from < 0 || to > HOURS || from >= to) {
+				throw new IllegalArgumentException("Invalid hours in band '" + band + "' of tariff '" + name + "'.");
+			}
+			Arrays.fill(rates, offset + from, offset + to, Double.parseDouble(hoursRate[1].trim()));
+		}
+	}
+
+	private static long key(long serviceId, long unitTypeId, int subscriberClass) {
+		if (serviceId < 0 || serviceId > 0xFFFFFFFFL || unitTypeId < 0 || unitTypeId > 0xFFFFL || subscriberClass < ANY_CLASS || subscriberClass > 0xFE) {
+			return -1;
+		}
+		return serviceId << 24 | unitTypeId << 8 | (subscriberClass + 1);
+	}
+
+	/**
+	 * Finds the tariff for a service, unit type and subscriber class, falling back to the tariff for any class.
+	 *
+	 * @return the tariff index, or -1 if there is none
+	 */
+	public int find(long serviceId, long unitTypeId, int subscriberClass) {
+		long key = key(serviceId, unitTypeId, subscriberClass);
+		if (key < 0) {
+			return -1;
+		}
+		int index = Arrays.binarySearch(keys, key);
+		if (index < 0 && subscriberClass != ANY_CLASS) {
+			index = Arrays.binarySearch(keys, key(serviceId, unitTypeId, ANY_CLASS));
+		}
+		return index < 0 ? -1 : index;
+	}
+
+	/**
+	 * @param tariff the tariff index, as returned by {@link #find(long, long, int)}, or -1 for the default rate
+	 * @param time the time of the event, in ms since the epoch
+	 * @return the rate at the given time
+	 */
+	public double getRate(int tariff, long time) {
+		if (tariff < 0) {
+			return defaultRate;
+		}
+		long local = time + timeZone.getOffset(time);
+		int hour = (int) ((local / HOUR) % HOURS);
+		if (hour < 0) {
+			hour += HOURS;
+		}
+		return rates[tariff * HOURS + hour];
+	}
+
+	/**
+	 * @param tariff the tariff index, as returned by {@link #find(long, long, int)}, or -1 for the default rate
+	 * @return the tariff key as in the properties file, or "default"
+	 */
+	public String getDescription(int tariff) {
+		return tariff < 0 ? "default" : descriptions[tariff];
+	}
+
+	public int size() {
+		return keys.length;
+	}
+
+	@Override
+	public String toString() {
+		return "TariffTable[tariffs=" + keys.length + "; default=" + defaultRate + "; timezone=" + timeZone.getID() + "]";
+	}
+
+}